@@ -40,6 +40,7 @@ import io.virtualapp.delegate.MyAppRequestListener;
 import io.virtualapp.delegate.MyComponentDelegate;
 import io.virtualapp.delegate.MyTaskDescDelegate;
 import io.virtualapp.home.BackHomeActivity;
+import io.virtualapp.home.repo.AppIconCache;
 import jonathanfinerty.once.Once;
 import mirror.android.app.LoadedApk;
 import mirror.android.content.res.CompatibilityInfo;
@@ -330,7 +331,7 @@ public class App extends Application {
             public void onMainProcess() {
                 AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
                 Once.initialise(App.this);
-
+                AppIconCache.get().watchPackages();
             }
 
             @Override
@@ -5,7 +5,10 @@ import android.app.ProgressDialog;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
 
 import com.lody.virtual.client.VClient;
@@ -25,6 +28,7 @@ import io.virtualapp.home.models.AppData;
 import io.virtualapp.home.models.AppInfoLite;
 import io.virtualapp.home.models.MultiplePackageAppData;
 import io.virtualapp.home.models.PackageAppData;
+import io.virtualapp.home.repo.AppIconCache;
 import io.virtualapp.home.repo.AppRepository;
 import io.virtualapp.home.repo.PackageAppDataStorage;
 import jonathanfinerty.once.Once;
@@ -36,6 +40,12 @@ import static io.virtualapp.VCommends.REQUEST_PERMISSION;
  */
 class HomePresenterImpl implements HomeContract.HomePresenter {
 
+    private static final String TAG = "HomePresenter";
+    /**
+     * Whether the apps were shown once in this process, the first time is the cold render.
+     */
+    private static boolean sRendered;
+
     private HomeContract.HomeView mView;
     private Activity mActivity;
     private AppRepository mRepo;
@@ -136,7 +146,30 @@ class HomePresenterImpl implements HomeContract.HomePresenter {
     @Override
     public void dataChanged() {
         mView.showLoading();
-        mRepo.getVirtualApps().done(mView::loadFinish).fail(mView::loadError);
+        long start = SystemClock.uptimeMillis();
+        mRepo.getVirtualApps().done(list -> {
+            mView.loadFinish(list);
+            if (!sRendered) {
+                sRendered = true;
+                reportRenderTime(start);
+            }
+        }).fail(mView::loadError);
+    }
+
+    /**
+     * Log the time from the start of the loading to the first frame that shows the apps.
+     */
+    private void reportRenderTime(long start) {
+        View decor = mActivity.getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i(TAG, "cold home screen rendered in " + (SystemClock.uptimeMillis() - start)
+                        + "ms, icon cache: " + AppIconCache.get().getStatistics());
+                return true;
+            }
+        });
     }
 
     @Override
@@ -1,8 +1,6 @@
 package io.virtualapp.home.models;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 
 import com.lody.virtual.remote.InstalledAppInfo;
 import com.lody.virtual.remote.vloc.VLocation;
@@ -20,23 +18,7 @@ public class LocationData extends SettingsData{
     public LocationData(Context context, InstalledAppInfo installedAppInfo, int userId) {
         this.packageName = installedAppInfo.packageName;
         this.userId = userId;
-        loadData(context, installedAppInfo.getApplicationInfo(installedAppInfo.getInstalledUsers()[0]));
-    }
-
-    private void loadData(Context context, ApplicationInfo appInfo) {
-        if (appInfo == null) {
-            return;
-        }
-        PackageManager pm = context.getPackageManager();
-        try {
-            CharSequence sequence = appInfo.loadLabel(pm);
-            if (sequence != null) {
-                name = sequence.toString();
-            }
-            icon = appInfo.loadIcon(pm);
-        } catch (Throwable e) {
-            e.printStackTrace();
-        }
+        loadData(context, installedAppInfo.getPackageInfo(installedAppInfo.getInstalledUsers()[0]));
     }
 
     @Override
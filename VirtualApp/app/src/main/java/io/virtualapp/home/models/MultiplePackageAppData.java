@@ -3,7 +3,6 @@ package io.virtualapp.home.models;
 import android.graphics.drawable.Drawable;
 
 import com.lody.virtual.client.core.VirtualCore;
-import com.lody.virtual.remote.InstalledAppInfo;
 
 /**
  * @author Lody
@@ -11,16 +10,18 @@ import com.lody.virtual.remote.InstalledAppInfo;
 
 public class MultiplePackageAppData extends AppData {
 
-    public InstalledAppInfo appInfo;
     public int userId;
     public Drawable icon;
     public String name;
     public String packageName;
 
     public MultiplePackageAppData(PackageAppData target, int userId) {
+        this(target, userId, !VirtualCore.get().isPackageLaunched(userId, target.packageName));
+    }
+
+    public MultiplePackageAppData(PackageAppData target, int userId, boolean firstOpen) {
         this.userId = userId;
-        this.appInfo = VirtualCore.get().getInstalledAppInfo(target.packageName, 0);
-        this.isFirstOpen = !appInfo.isLaunched(userId);
+        this.isFirstOpen = firstOpen;
         if (target.icon != null) {
             Drawable.ConstantState state = target.icon.getConstantState();
             if (state != null) {
@@ -1,11 +1,13 @@
 package io.virtualapp.home.models;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
+import android.content.pm.PackageInfo;
 import android.graphics.drawable.Drawable;
 
 import com.lody.virtual.remote.InstalledAppInfo;
+import com.lody.virtual.remote.LauncherAppInfo;
+
+import io.virtualapp.home.repo.AppIconCache;
 
 /**
  * @author Lody
@@ -19,20 +21,27 @@ public class PackageAppData extends AppData {
     public PackageAppData(Context context, InstalledAppInfo installedAppInfo) {
         this.packageName = installedAppInfo.packageName;
         this.isFirstOpen = !installedAppInfo.isLaunched(0);
-        loadData(context, installedAppInfo.getApplicationInfo(installedAppInfo.getInstalledUsers()[0]));
+        loadData(context, installedAppInfo.getPackageInfo(installedAppInfo.getInstalledUsers()[0]));
+    }
+
+    /**
+     * @param entry the icon of the app, see {@link AppIconCache#getAsync}
+     */
+    public PackageAppData(Context context, LauncherAppInfo launcherAppInfo, AppIconCache.Entry entry) {
+        this.packageName = launcherAppInfo.packageName;
+        this.isFirstOpen = !launcherAppInfo.isLaunched(0);
+        this.name = launcherAppInfo.label;
+        this.icon = entry.newIcon(context.getResources());
     }
 
-    private void loadData(Context context, ApplicationInfo appInfo) {
-        if (appInfo == null) {
+    private void loadData(Context context, PackageInfo packageInfo) {
+        if (packageInfo == null) {
             return;
         }
-        PackageManager pm = context.getPackageManager();
-        try {
-            name = appInfo.loadLabel(pm).toString();
-            icon = appInfo.loadIcon(pm);
-        } catch (Throwable e) {
-            e.printStackTrace();
-        }
+        AppIconCache.Entry entry = AppIconCache.get().get(packageName, packageInfo.lastUpdateTime,
+                packageInfo.applicationInfo);
+        name = entry.label;
+        icon = entry.newIcon(context.getResources());
     }
 
     @Override
@@ -1,12 +1,13 @@
 package io.virtualapp.home.models;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
+import android.content.pm.PackageInfo;
 import android.graphics.drawable.Drawable;
 
 import com.lody.virtual.remote.InstalledAppInfo;
 
+import io.virtualapp.home.repo.AppIconCache;
+
 /**
  * @see android.location.Location
  */
@@ -23,21 +24,17 @@ public class SettingsData {
         this.packageName = installedAppInfo == null ? null : installedAppInfo.packageName;
         this.userId = userId;
         if (installedAppInfo != null) {
-            loadData(context, installedAppInfo.getApplicationInfo(installedAppInfo.getInstalledUsers()[0]));
+            loadData(context, installedAppInfo.getPackageInfo(installedAppInfo.getInstalledUsers()[0]));
         }
     }
 
-    private void loadData(Context context, ApplicationInfo appInfo) {
-        if (appInfo == null) {
+    protected void loadData(Context context, PackageInfo packageInfo) {
+        if (packageInfo == null) {
             return;
         }
-        PackageManager pm = context.getPackageManager();
-        try {
-            CharSequence sequence = appInfo.loadLabel(pm);
-            name = sequence.toString();
-            icon = appInfo.loadIcon(pm);
-        } catch (Throwable e) {
-            e.printStackTrace();
-        }
+        AppIconCache.Entry entry = AppIconCache.get().get(packageInfo.packageName, packageInfo.lastUpdateTime,
+                packageInfo.applicationInfo);
+        name = entry.label;
+        icon = entry.newIcon(context.getResources());
     }
 }
@@ -0,0 +1,517 @@
+package io.virtualapp.home.repo;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.client.ipc.VPackageManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.virtualapp.App;
+
+/**
+ * @author Lody
+ * <p>
+ * Icons and labels of the apps, kept as pre-scaled bitmaps in a memory LRU and in a single
+ * indexed file, so that the lists do not open the resources of every apk each time they are built.
+ * <p>
+ * An entry is keyed by the package, the version given by the package manager, the density and
+ * the locale of the label. The file holds one record per package and apk, a record with another
+ * key supersedes the previous one.
+ */
+public class AppIconCache {
+
+    private static final String TAG = "AppIconCache";
+    private static final String FILE_NAME = "app_icons.cache";
+    private static final int FILE_MAGIC = 0x76696331; // vic1
+    private static final int RECORD_MAGIC = 0x76697263; // virc
+    private static final int FILE_HEADER_SIZE = 4;
+    /**
+     * The file is compacted when it holds more superseded bytes than this and than live ones.
+     */
+    private static final long COMPACT_THRESHOLD = 256 * 1024;
+
+    private static final AppIconCache CACHE = new AppIconCache(App.getApp());
+
+    public static final class Entry {
+        public final String label;
+        public final Bitmap icon;
+
+        Entry(String label, Bitmap icon) {
+            this.label = label;
+            this.icon = icon;
+        }
+
+        public Drawable newIcon(Resources res) {
+            return icon != null ? new BitmapDrawable(res, icon) : null;
+        }
+    }
+
+    private static final class Record {
+        final String key;
+        final String label;
+        /**
+         * Offset of the start of the record.
+         */
+        final long offset;
+        final long length;
+        /**
+         * Offset and length of the png.
+         */
+        final long iconOffset;
+        final int iconLength;
+
+        Record(String key, String label, long offset, long length, long iconOffset, int iconLength) {
+            this.key = key;
+            this.label = label;
+            this.offset = offset;
+            this.length = length;
+            this.iconOffset = iconOffset;
+            this.iconLength = iconLength;
+        }
+    }
+
+    private final Context mContext;
+    private final File mFile;
+    private final LruCache<String, Entry> mMemory;
+    private final ExecutorService mExecutor;
+    /**
+     * [Key] = packageName|apk path, guarded by itself with the file.
+     */
+    private final Map<String, Record> mIndex = new HashMap<>();
+    /**
+     * Bumped by {@link #remove}, an entry loaded across a removal is not stored.
+     */
+    private int mRemoveGeneration;
+    private boolean mIndexLoaded;
+    private long mLiveBytes;
+    private long mStaleBytes;
+
+    private final AtomicInteger mMemoryHits = new AtomicInteger();
+    private final AtomicInteger mDiskHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    private AppIconCache(Context context) {
+        mContext = context;
+        mFile = new File(context.getCacheDir(), FILE_NAME);
+        int maxSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        mMemory = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.icon != null ? value.icon.getByteCount() : 1;
+            }
+        };
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        mExecutor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, TAG);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    public static AppIconCache get() {
+        return CACHE;
+    }
+
+    /**
+     * Load the entries of the apps installed or updated in VA on the background, so they are
+     * on disk before the launcher asks for them.
+     */
+    public void watchPackages() {
+        VirtualCore.get().registerObserver(new VirtualCore.PackageObserver() {
+            @Override
+            public void onPackageInstalled(String packageName) {
+                prefetch(packageName);
+            }
+
+            @Override
+            public void onPackageUninstalled(String packageName) {
+                remove(packageName);
+            }
+
+            @Override
+            public void onPackageUpdate(String packageName) {
+                prefetch(packageName);
+            }
+
+            @Override
+            public void onPackageInstalledAsUser(int userId, String packageName) {
+            }
+
+            @Override
+            public void onPackageUninstalledAsUser(int userId, String packageName) {
+            }
+
+            @Override
+            public void onPackageUpdateAsUser(int userId, String packageName) {
+            }
+        });
+    }
+
+    private void prefetch(String packageName) {
+        mExecutor.execute(() -> {
+            PackageInfo packageInfo = VPackageManager.get().getPackageInfo(packageName, 0, 0);
+            if (packageInfo != null) {
+                get(packageName, packageInfo.lastUpdateTime, packageInfo.applicationInfo);
+            }
+        });
+    }
+
+    /**
+     * Load the entry on a background thread, several of them are loaded in parallel.
+     */
+    public Future<Entry> getAsync(String packageName, long version, ApplicationInfo appInfo) {
+        return mExecutor.submit(() -> get(packageName, version, appInfo));
+    }
+
+    /**
+     * @param version changes whenever the package is updated, the last update time given by
+     *                the package manager, see {@link com.lody.virtual.remote.LauncherAppInfo#iconVersion}
+     * @return the entry, loaded from the apk if it is neither in memory nor on disk
+     */
+    public Entry get(String packageName, long version, ApplicationInfo appInfo) {
+        String path = null;
+        if (appInfo != null) {
+            path = appInfo.publicSourceDir != null ? appInfo.publicSourceDir : appInfo.sourceDir;
+        }
+        String slot = packageName + "|" + path;
+        String key = buildKey(slot, version);
+        Entry entry = mMemory.get(key);
+        if (entry != null) {
+            mMemoryHits.incrementAndGet();
+            return entry;
+        }
+        int generation;
+        synchronized (mIndex) {
+            generation = mRemoveGeneration;
+        }
+        byte[] png = null;
+        entry = readEntry(slot, key);
+        if (entry != null) {
+            mDiskHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            entry = loadEntry(packageName, appInfo);
+            png = compress(entry.icon);
+        }
+        synchronized (mIndex) {
+            // The package may have been uninstalled while it was loaded.
+            if (generation == mRemoveGeneration) {
+                if (png != null) {
+                    writeEntryLocked(slot, key, entry.label, png);
+                }
+                mMemory.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    public void remove(String packageName) {
+        String prefix = packageName + "|";
+        synchronized (mIndex) {
+            mRemoveGeneration++;
+            for (String key : mMemory.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    mMemory.remove(key);
+                }
+            }
+            loadIndexLocked();
+            List<String> slots = new ArrayList<>();
+            for (String slot : mIndex.keySet()) {
+                if (slot.startsWith(prefix)) {
+                    slots.add(slot);
+                }
+            }
+            if (slots.isEmpty()) {
+                return;
+            }
+            // An empty key drops the slot when the index is read again.
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(mFile, "rw");
+                raf.seek(raf.length());
+                for (String slot : slots) {
+                    Record record = mIndex.remove(slot);
+                    mLiveBytes -= record.length;
+                    mStaleBytes += record.length;
+                    byte[] bytes = buildRecord(slot, "", "", new byte[0]);
+                    raf.write(bytes);
+                    mStaleBytes += bytes.length;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to remove the icons of " + packageName, e);
+            } finally {
+                closeQuietly(raf);
+            }
+        }
+    }
+
+    public String getStatistics() {
+        return "memory hits=" + mMemoryHits.get() + ", disk hits=" + mDiskHits.get()
+                + ", misses=" + mMisses.get();
+    }
+
+    private String buildKey(String slot, long version) {
+        Resources res = mContext.getResources();
+        return slot + "|" + version + "|" + res.getDisplayMetrics().densityDpi
+                + "|" + res.getConfiguration().locale;
+    }
+
+    private Entry loadEntry(String packageName, ApplicationInfo appInfo) {
+        String label = packageName;
+        Bitmap icon = null;
+        if (appInfo != null) {
+            PackageManager pm = mContext.getPackageManager();
+            try {
+                CharSequence sequence = appInfo.loadLabel(pm);
+                if (sequence != null) {
+                    label = sequence.toString();
+                }
+                icon = toBitmap(appInfo.loadIcon(pm));
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+        return new Entry(label, icon);
+    }
+
+    private Bitmap toBitmap(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+        ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        int size = am.getLauncherLargeIconSize();
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null && bitmap.getWidth() == size && bitmap.getHeight() == size) {
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, size, size);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    /**
+     * Only the lookup takes the index lock. The file is opened under it, so that a compaction
+     * renaming another file over it does not move the record being read.
+     */
+    private Entry readEntry(String slot, String key) {
+        Record record;
+        RandomAccessFile raf = null;
+        byte[] png;
+        try {
+            synchronized (mIndex) {
+                loadIndexLocked();
+                record = mIndex.get(slot);
+                if (record == null || !record.key.equals(key)) {
+                    return null;
+                }
+                raf = new RandomAccessFile(mFile, "r");
+            }
+            png = new byte[record.iconLength];
+            raf.seek(record.iconOffset);
+            raf.readFully(png);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the icon of " + slot, e);
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+        Bitmap icon = BitmapFactory.decodeByteArray(png, 0, png.length);
+        return icon != null ? new Entry(record.label, icon) : null;
+    }
+
+    private static byte[] compress(Bitmap icon) {
+        if (icon == null) {
+            return null;
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        if (!icon.compress(Bitmap.CompressFormat.PNG, 100, png)) {
+            return null;
+        }
+        return png.toByteArray();
+    }
+
+    private void writeEntryLocked(String slot, String key, String label, byte[] png) {
+        loadIndexLocked();
+        RandomAccessFile raf = null;
+        long offset = -1;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            offset = raf.length();
+            byte[] bytes = buildRecord(slot, key, label, png);
+            raf.seek(offset);
+            raf.write(bytes);
+            Record old = mIndex.put(slot, new Record(key, label, offset, bytes.length,
+                    offset + bytes.length - png.length, png.length));
+            mLiveBytes += bytes.length;
+            if (old != null) {
+                mLiveBytes -= old.length;
+                mStaleBytes += old.length;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the icon of " + slot, e);
+            if (offset >= 0) {
+                // Drop the partial record, the next one is appended after it otherwise.
+                try {
+                    raf.setLength(offset);
+                } catch (IOException ignored) {
+                    // The torn record is dropped when the index is read again.
+                }
+            }
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static byte[] buildRecord(String slot, String key, String label, byte[] png) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(png.length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(RECORD_MAGIC);
+        out.writeUTF(slot);
+        out.writeUTF(key);
+        out.writeUTF(label);
+        out.writeInt(png.length);
+        out.write(png);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the index of the file on first use, truncate a torn last record and compact the
+     * file if it is mostly made of superseded records.
+     */
+    private void loadIndexLocked() {
+        if (mIndexLoaded) {
+            return;
+        }
+        mIndexLoaded = true;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            if (raf.length() < FILE_HEADER_SIZE || raf.readInt() != FILE_MAGIC) {
+                raf.setLength(0);
+                raf.seek(0);
+                raf.writeInt(FILE_MAGIC);
+                return;
+            }
+            long length = raf.length();
+            long offset = FILE_HEADER_SIZE;
+            try {
+                while (offset < length) {
+                    raf.seek(offset);
+                    if (raf.readInt() != RECORD_MAGIC) {
+                        throw new IOException("Bad record at " + offset);
+                    }
+                    String slot = raf.readUTF();
+                    String key = raf.readUTF();
+                    String label = raf.readUTF();
+                    int iconLength = raf.readInt();
+                    long iconOffset = raf.getFilePointer();
+                    long end = iconOffset + iconLength;
+                    if (iconLength < 0 || end > length) {
+                        throw new EOFException("Torn record at " + offset);
+                    }
+                    Record old;
+                    if (key.isEmpty()) {
+                        old = mIndex.remove(slot);
+                        mStaleBytes += end - offset;
+                    } else {
+                        old = mIndex.put(slot, new Record(key, label, offset, end - offset, iconOffset, iconLength));
+                        mLiveBytes += end - offset;
+                    }
+                    if (old != null) {
+                        mLiveBytes -= old.length;
+                        mStaleBytes += old.length;
+                    }
+                    offset = end;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Drop the icon cache after " + offset + ": " + e);
+                raf.setLength(offset);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open the icon cache", e);
+        } finally {
+            closeQuietly(raf);
+        }
+        if (mStaleBytes > COMPACT_THRESHOLD && mStaleBytes > mLiveBytes) {
+            compactLocked();
+        }
+    }
+
+    private void compactLocked() {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        Map<String, Record> index = new HashMap<>();
+        RandomAccessFile in = null;
+        RandomAccessFile out = null;
+        try {
+            in = new RandomAccessFile(mFile, "r");
+            out = new RandomAccessFile(tempFile, "rw");
+            out.setLength(0);
+            out.writeInt(FILE_MAGIC);
+            for (Map.Entry<String, Record> entry : mIndex.entrySet()) {
+                Record record = entry.getValue();
+                byte[] bytes = new byte[(int) record.length];
+                in.seek(record.offset);
+                in.readFully(bytes);
+                long offset = out.getFilePointer();
+                out.write(bytes);
+                index.put(entry.getKey(), new Record(record.key, record.label, offset, record.length,
+                        offset + record.iconOffset - record.offset, record.iconLength));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact the icon cache", e);
+            tempFile.delete();
+            return;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+        if (tempFile.renameTo(mFile)) {
+            mIndex.clear();
+            mIndex.putAll(index);
+            mStaleBytes = 0;
+        } else {
+            tempFile.delete();
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ import com.lody.virtual.client.stub.StubManifest;
 import com.lody.virtual.remote.InstallOptions;
 import com.lody.virtual.remote.InstallResult;
 import com.lody.virtual.remote.InstalledAppInfo;
+import com.lody.virtual.remote.LauncherAppInfo;
 
 import org.jdeferred.Promise;
 
@@ -25,6 +26,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import io.virtualapp.abs.ui.VUiKit;
 import io.virtualapp.home.models.AppData;
@@ -68,24 +70,30 @@ public class AppRepository implements AppDataSource {
 
         return VUiKit.defer().when(() -> {
             List<AppData> models = new ArrayList<>();
-            List<InstalledAppInfo> infos = VirtualCore.get().getInstalledApps(0);
-            for (InstalledAppInfo info : infos) {
-                if (!VirtualCore.get().isPackageLaunchable(info.packageName)) {
-                    if (!InstallerSetting.PROVIDER_MEDIA_PKG.equals(info.packageName)
-                            && !InstallerSetting.PROVIDER_CONTACTS_PKG.equals(info.packageName)
-                            && !InstallerSetting.PROVIDER_TELEPHONY_PKG.equals(info.packageName)) {
-                        continue;
-                    }
+            List<LauncherAppInfo> infos = new ArrayList<>();
+            for (LauncherAppInfo info : VirtualCore.get().getLauncherApps()) {
+                if (info.launchable
+                        || InstallerSetting.PROVIDER_MEDIA_PKG.equals(info.packageName)
+                        || InstallerSetting.PROVIDER_CONTACTS_PKG.equals(info.packageName)
+                        || InstallerSetting.PROVIDER_TELEPHONY_PKG.equals(info.packageName)) {
+                    infos.add(info);
                 }
-                PackageAppData data = new PackageAppData(mContext, info);
-                if (VirtualCore.get().isAppInstalledAsUser(0, info.packageName)) {
+            }
+            // Load the icons in parallel, most of them come from the icon cache.
+            List<Future<AppIconCache.Entry>> icons = new ArrayList<>(infos.size());
+            for (LauncherAppInfo info : infos) {
+                icons.add(AppIconCache.get().getAsync(info.packageName, info.iconVersion, info.applicationInfo));
+            }
+            for (int i = 0; i < infos.size(); i++) {
+                LauncherAppInfo info = infos.get(i);
+                PackageAppData data = new PackageAppData(mContext, info, icons.get(i).get());
+                if (info.isInstalled(0)) {
                     models.add(data);
                 }
                 mLabels.put(info.packageName, data.name);
-                int[] userIds = info.getInstalledUsers();
-                for (int userId : userIds) {
+                for (int userId : info.installedUsers) {
                     if (userId != 0) {
-                        models.add(new MultiplePackageAppData(data, userId));
+                        models.add(new MultiplePackageAppData(data, userId, !info.isLaunched(userId)));
                     }
                 }
             }
@@ -119,6 +127,8 @@ public class AppRepository implements AppDataSource {
                     pkgInfo = context.getPackageManager().getPackageArchiveInfo(f.getAbsolutePath(), PackageManager.GET_PERMISSIONS);
                     pkgInfo.applicationInfo.sourceDir = f.getAbsolutePath();
                     pkgInfo.applicationInfo.publicSourceDir = f.getAbsolutePath();
+                    // Not set for an archive, it versions the icon of the apk.
+                    pkgInfo.lastUpdateTime = f.lastModified();
                 } catch (Exception e) {
                     // Ignore
                 }
@@ -131,8 +141,8 @@ public class AppRepository implements AppDataSource {
 
     private List<AppInfo> convertPackageInfoToAppData(Context context, List<PackageInfo> pkgList,
                                                       boolean cloneMode, boolean hideGApps) {
-        PackageManager pm = context.getPackageManager();
         List<AppInfo> list = new ArrayList<>(pkgList.size());
+        List<Future<AppIconCache.Entry>> icons = new ArrayList<>(pkgList.size());
         for (PackageInfo pkg : pkgList) {
             // ignore the host package
             if (StubManifest.isHostPackageName(pkg.packageName)) {
@@ -155,8 +165,6 @@ public class AppRepository implements AppDataSource {
             info.packageName = pkg.packageName;
             info.cloneMode = cloneMode;
             info.path = path;
-            info.icon = ai.loadIcon(pm);
-            info.name = ai.loadLabel(pm);
             info.targetSdkVersion = pkg.applicationInfo.targetSdkVersion;
             info.requestedPermissions = pkg.requestedPermissions;
             if (installedAppInfo != null) {
@@ -164,6 +172,17 @@ public class AppRepository implements AppDataSource {
                 info.cloneCount = installedAppInfo.getInstalledUsers().length;
             }
             list.add(info);
+            icons.add(AppIconCache.get().getAsync(pkg.packageName, pkg.lastUpdateTime, ai));
+        }
+        for (int i = 0; i < list.size(); i++) {
+            AppInfo info = list.get(i);
+            try {
+                AppIconCache.Entry entry = icons.get(i).get();
+                info.icon = entry.newIcon(context.getResources());
+                info.name = entry.label;
+            } catch (Exception e) {
+                info.name = info.packageName;
+            }
         }
         Collections.sort(list, (lhs, rhs) -> {
             int compareCloneCount = Integer.compare(lhs.cloneCount, rhs.cloneCount);
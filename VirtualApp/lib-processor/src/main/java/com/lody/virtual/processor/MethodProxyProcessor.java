@@ -0,0 +1,360 @@
+package com.lody.virtual.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * @author Lody
+ * <p>
+ * Generates at build time the binding of the method proxies of the stubs annotated with @Inject,
+ * that MethodInvocationProxy otherwise discovers by reflection in every process start.
+ * <p>
+ * For a stub Foo, Foo_MethodProxies adds the same proxies as the reflective scan of the @Inject class:
+ * its non abstract MethodProxy member classes without @SkipInject, created with their constructor,
+ * and its public static methods, called directly instead of through Method.invoke.
+ * MethodProxyRegistry dispatches a stub to its generated binding.
+ */
+public class MethodProxyProcessor extends AbstractProcessor {
+
+    private static final String INJECT = "com.lody.virtual.client.hook.annotations.Inject";
+    private static final String SKIP_INJECT = "com.lody.virtual.client.hook.annotations.SkipInject";
+    private static final String METHOD_PROXY = "com.lody.virtual.client.hook.base.MethodProxy";
+    private static final String METHOD_INVOCATION_PROXY = "com.lody.virtual.client.hook.base.MethodInvocationProxy";
+    private static final String METHOD_INVOCATION_STUB = "com.lody.virtual.client.hook.base.MethodInvocationStub";
+    private static final String STATIC_METHOD_PROXY = "com.lody.virtual.client.hook.base.StaticMethodProxy";
+    private static final String REGISTRY_PACKAGE = "com.lody.virtual.client.hook.base";
+    private static final String REGISTRY_NAME = "MethodProxyRegistry";
+    private static final String SUFFIX = "_MethodProxies";
+
+    private Filer mFiler;
+    private Messager mMessager;
+    private Elements mElements;
+    private Types mTypes;
+    private boolean mRegistryWritten;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        mFiler = processingEnv.getFiler();
+        mMessager = processingEnv.getMessager();
+        mElements = processingEnv.getElementUtils();
+        mTypes = processingEnv.getTypeUtils();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(INJECT);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (mRegistryWritten || roundEnv.processingOver()) {
+            return false;
+        }
+        TypeElement inject = mElements.getTypeElement(INJECT);
+        if (inject == null) {
+            return false;
+        }
+        List<String> stubs = new ArrayList<>();
+        List<String> bindings = new ArrayList<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(inject)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                continue;
+            }
+            TypeElement stub = (TypeElement) element;
+            if (!stub.getModifiers().contains(Modifier.PUBLIC)) {
+                mMessager.printMessage(Diagnostic.Kind.WARNING,
+                        "the stub is not public, its method proxies are bound by reflection", stub);
+                continue;
+            }
+            TypeElement proxies = getInjectValue(stub);
+            if (proxies == null) {
+                continue;
+            }
+            String binding = writeBinding(stub, proxies);
+            if (binding != null) {
+                stubs.add(stub.getQualifiedName().toString());
+                bindings.add(binding);
+            }
+        }
+        writeRegistry(stubs, bindings);
+        mRegistryWritten = true;
+        return false;
+    }
+
+    private TypeElement getInjectValue(TypeElement stub) {
+        for (AnnotationMirror mirror : stub.getAnnotationMirrors()) {
+            if (!INJECT.equals(((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().toString())) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("value")) {
+                    Object value = entry.getValue().getValue();
+                    if (value instanceof DeclaredType) {
+                        return (TypeElement) ((DeclaredType) value).asElement();
+                    }
+                }
+            }
+        }
+        error(stub, "unable to read the value of @Inject");
+        return null;
+    }
+
+    /**
+     * @return the qualified name of the generated binding, or null on error
+     */
+    private String writeBinding(TypeElement stub, TypeElement proxies) {
+        String packageName = getPackage(stub).getQualifiedName().toString();
+        String stubName = stub.getQualifiedName().toString();
+        String bindingName = getFlatName(stub) + SUFFIX;
+        TypeMirror methodProxy = mTypes.erasure(mElements.getTypeElement(METHOD_PROXY).asType());
+
+        StringBuilder body = new StringBuilder();
+        boolean ok = true;
+        for (TypeElement member : ElementFilter.typesIn(proxies.getEnclosedElements())) {
+            if (member.getModifiers().contains(Modifier.ABSTRACT)
+                    || !mTypes.isAssignable(mTypes.erasure(member.asType()), methodProxy)
+                    || hasAnnotation(member, SKIP_INJECT)) {
+                continue;
+            }
+            String creation = getCreation(stub, member);
+            if (creation == null) {
+                ok = false;
+                continue;
+            }
+            body.append("        stub.addMethodProxy(").append(creation).append(");\n");
+        }
+        for (ExecutableElement method : getPublicStaticMethods(proxies)) {
+            if (hasAnnotation(method, SKIP_INJECT)) {
+                continue;
+            }
+            if (!isDirectCall(method)) {
+                error(method, "a public static method of an @Inject class must be (Object, Method, Object[])");
+                ok = false;
+                continue;
+            }
+            String target = proxies.getQualifiedName() + "." + method.getSimpleName() + "(who, method, args)";
+            body.append("        stub.addMethodProxy(new ").append(STATIC_METHOD_PROXY).append("(\"")
+                    .append(method.getSimpleName()).append("\") {\n")
+                    .append("            @Override\n")
+                    .append("            public Object call(Object who, java.lang.reflect.Method method, Object... args) throws Throwable {\n");
+            if (method.getReturnType().getKind() == TypeKind.VOID) {
+                body.append("                ").append(target).append(";\n")
+                        .append("                return null;\n");
+            } else {
+                body.append("                return ").append(target).append(";\n");
+            }
+            body.append("            }\n")
+                    .append("        });\n");
+        }
+        if (!ok) {
+            return null;
+        }
+
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(packageName).append(";\n\n")
+                .append("/**\n")
+                .append(" * Generated by ").append(MethodProxyProcessor.class.getName())
+                .append(" from {@link ").append(stubName).append("}, do not edit.\n")
+                .append(" */\n")
+                .append("public final class ").append(bindingName).append(" {\n\n")
+                .append("    private ").append(bindingName).append("() {\n")
+                .append("    }\n\n")
+                .append("    public static void bind(").append(METHOD_INVOCATION_PROXY).append("<?> invocationProxy) {\n")
+                .append("        final ").append(stubName).append(" proxy = (").append(stubName).append(") invocationProxy;\n")
+                .append("        ").append(METHOD_INVOCATION_STUB).append("<?> stub = proxy.getInvocationStub();\n")
+                .append(body)
+                .append("    }\n")
+                .append("}\n");
+        String qualifiedName = packageName.isEmpty() ? bindingName : packageName + "." + bindingName;
+        if (!write(qualifiedName, source, stub)) {
+            return null;
+        }
+        return qualifiedName;
+    }
+
+    /**
+     * Mirror the reflective scan, which creates the proxy with its first declared constructor,
+     * passing the stub if it takes an argument.
+     */
+    private String getCreation(TypeElement stub, TypeElement member) {
+        if (member.getModifiers().contains(Modifier.PRIVATE)) {
+            error(member, "a method proxy of an @Inject class must not be private");
+            return null;
+        }
+        if (member.getNestingKind().isNested() && !member.getModifiers().contains(Modifier.STATIC)) {
+            error(member, "a method proxy of an @Inject class must be static");
+            return null;
+        }
+        if (!getPackage(member).equals(getPackage(stub)) && !member.getModifiers().contains(Modifier.PUBLIC)) {
+            error(member, "a method proxy of an @Inject class in another package must be public");
+            return null;
+        }
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(member.getEnclosedElements());
+        if (constructors.size() != 1) {
+            error(member, "a method proxy of an @Inject class must have exactly one constructor");
+            return null;
+        }
+        ExecutableElement constructor = constructors.get(0);
+        if (constructor.getModifiers().contains(Modifier.PRIVATE)) {
+            error(constructor, "the constructor of a method proxy must not be private");
+            return null;
+        }
+        String type = member.getQualifiedName().toString();
+        List<? extends VariableElement> parameters = constructor.getParameters();
+        if (parameters.isEmpty()) {
+            return "new " + type + "()";
+        }
+        if (parameters.size() == 1) {
+            TypeMirror parameter = mTypes.erasure(parameters.get(0).asType());
+            TypeMirror stubType = mTypes.erasure(stub.asType());
+            if (mTypes.isAssignable(stubType, parameter)) {
+                return "new " + type + "(proxy)";
+            }
+            if (mTypes.isAssignable(parameter, stubType)) {
+                return "new " + type + "((" + parameter + ") proxy)";
+            }
+        }
+        error(constructor, "the constructor of a method proxy must take no argument or the stub");
+        return null;
+    }
+
+    /**
+     * Same as Class.getMethods filtered on static: the public static methods of the class and its superclasses.
+     */
+    private List<ExecutableElement> getPublicStaticMethods(TypeElement type) {
+        List<ExecutableElement> methods = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        TypeElement current = type;
+        while (current != null) {
+            for (ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+                Set<Modifier> modifiers = method.getModifiers();
+                if (modifiers.contains(Modifier.PUBLIC) && modifiers.contains(Modifier.STATIC)
+                        && names.add(method.getSimpleName() + mTypes.erasure(method.asType()).toString())) {
+                    methods.add(method);
+                }
+            }
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return methods;
+    }
+
+    private boolean isDirectCall(ExecutableElement method) {
+        List<? extends VariableElement> parameters = method.getParameters();
+        return parameters.size() == 3
+                && isType(parameters.get(0).asType(), "java.lang.Object")
+                && isType(parameters.get(1).asType(), "java.lang.reflect.Method")
+                && parameters.get(2).asType().getKind() == TypeKind.ARRAY
+                && mTypes.isSameType(parameters.get(2).asType(),
+                mTypes.getArrayType(mElements.getTypeElement("java.lang.Object").asType()));
+    }
+
+    private boolean isType(TypeMirror type, String name) {
+        return mTypes.isSameType(type, mElements.getTypeElement(name).asType());
+    }
+
+    private void writeRegistry(List<String> stubs, List<String> bindings) {
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(REGISTRY_PACKAGE).append(";\n\n")
+                .append("/**\n")
+                .append(" * Generated by ").append(MethodProxyProcessor.class.getName()).append(", do not edit.\n")
+                .append(" */\n")
+                .append("public final class ").append(REGISTRY_NAME).append(" {\n\n")
+                .append("    private ").append(REGISTRY_NAME).append("() {\n")
+                .append("    }\n\n")
+                .append("    /**\n")
+                .append("     * @return false if the stub has no generated binding\n")
+                .append("     */\n")
+                .append("    public static boolean bind(MethodInvocationProxy<?> proxy) {\n")
+                .append("        Class<?> type = proxy.getClass();\n");
+        for (int i = 0; i < stubs.size(); i++) {
+            source.append("        if (type == ").append(stubs.get(i)).append(".class) {\n")
+                    .append("            ").append(bindings.get(i)).append(".bind(proxy);\n")
+                    .append("            return true;\n")
+                    .append("        }\n");
+        }
+        source.append("        return false;\n")
+                .append("    }\n")
+                .append("}\n");
+        write(REGISTRY_PACKAGE + "." + REGISTRY_NAME, source, null);
+    }
+
+    private boolean write(String qualifiedName, CharSequence source, Element origin) {
+        try {
+            Writer writer = origin != null
+                    ? mFiler.createSourceFile(qualifiedName, origin).openWriter()
+                    : mFiler.createSourceFile(qualifiedName).openWriter();
+            try {
+                writer.write(source.toString());
+            } finally {
+                writer.close();
+            }
+            return true;
+        } catch (IOException e) {
+            error(origin, "unable to write " + qualifiedName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean hasAnnotation(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (annotation.equals(((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PackageElement getPackage(Element element) {
+        return mElements.getPackageOf(element);
+    }
+
+    private String getFlatName(TypeElement type) {
+        String packageName = getPackage(type).getQualifiedName().toString();
+        String name = type.getQualifiedName().toString();
+        if (!packageName.isEmpty()) {
+            name = name.substring(packageName.length() + 1);
+        }
+        return name.replace('.', '_');
+    }
+
+    private void error(Element element, String message) {
+        mMessager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -42,6 +42,7 @@ import com.lody.virtual.client.core.SettingConfig;
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.VirtualRuntime;
 import com.lody.virtual.client.fixer.ContextFixer;
+import com.lody.virtual.client.hook.base.InvocationStatistics;
 import com.lody.virtual.client.hook.delegate.AppInstrumentation;
 import com.lody.virtual.client.hook.providers.ProviderHook;
 import com.lody.virtual.client.hook.proxies.am.HCallbackStub;
@@ -58,6 +59,7 @@ import com.lody.virtual.helper.compat.StorageManagerCompat;
 import com.lody.virtual.helper.compat.StrictModeCompat;
 import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.helper.utils.FileUtils;
+import com.lody.virtual.helper.utils.LaunchTrace;
 import com.lody.virtual.helper.utils.Reflect;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VEnvironment;
@@ -258,6 +260,7 @@ public final class VClient extends IVClient.Stub {
     }
     //xdja
     int countOfActivity = 0;
+    private boolean mFirstActivityResumed;
     @Override
     public boolean isAppForeground(){
         return countOfActivity > 0;
@@ -349,6 +352,7 @@ public final class VClient extends IVClient.Stub {
         if (processName == null) {
             processName = packageName;
         }
+        long traceBind = LaunchTrace.begin();
         systemPid = VActivityManager.get().getSystemPid();
         try {
             setupUncaughtHandler();
@@ -451,17 +455,23 @@ public final class VClient extends IVClient.Stub {
 
         if (getConfig().isEnableIORedirect()) {
             if (VirtualCore.get().isIORelocateWork()) {
+                long traceIO = LaunchTrace.begin();
                 startIORelocater(info, isSubRemote);
+                LaunchTrace.end("startIORelocater", processName, traceIO);
             } else {
                 VLog.w(TAG, "IO Relocate verify fail.");
             }
         }
+        long traceEngine = LaunchTrace.begin();
         NativeEngine.launchEngine();
+        LaunchTrace.end("launchEngine", processName, traceEngine);
         mEnvironmentPrepared = true;
         Object mainThread = VirtualCore.mainThread();
         NativeEngine.startDexOverride();
         initDataStorage(isSubRemote, userId, packageName);
+        long traceContext = LaunchTrace.begin();
         Context context = createPackageContext(data.appInfo);
+        LaunchTrace.end("createPackageContext", processName, traceContext);
         File codeCacheDir;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             codeCacheDir = context.getCodeCacheDir();
@@ -562,7 +572,9 @@ public final class VClient extends IVClient.Stub {
 //            if(LoadedApk.mApplication != null) {
 //                LoadedApk.mApplication.set(data.info, null);
 //            }
+            long traceMake = LaunchTrace.begin();
             mInitialApplication = LoadedApk.makeApplication.call(data.info, false, null);
+            LaunchTrace.end("makeApplication", processName, traceMake);
         } catch (Throwable e) {
             throw new RuntimeException("Unable to makeApplication", e);
         }
@@ -594,9 +606,12 @@ public final class VClient extends IVClient.Stub {
          */
         List<ProviderInfo> providers = ActivityThread.AppBindData.providers.get(boundApp);
         if (providers != null && !providers.isEmpty()) {
+            long traceProviders = LaunchTrace.begin();
             installContentProviders(mInitialApplication, providers);
+            LaunchTrace.end("installContentProviders", processName, traceProviders);
         }
         VirtualCore.get().getAppCallback().beforeApplicationCreate(packageName, processName, mInitialApplication);
+        long traceCreate = LaunchTrace.begin();
         try {
             mInstrumentation.callApplicationOnCreate(mInitialApplication);
             InvocationStubManager.getInstance().checkEnv(HCallbackStub.class);
@@ -623,6 +638,7 @@ public final class VClient extends IVClient.Stub {
                 throw new RuntimeException("Unable to create application " + data.appInfo.name + ": " + e.toString(), e);
             }
         }
+        LaunchTrace.end("Application.onCreate", processName, traceCreate);
         mInitialApplication.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
             @Override
             public void onActivityCreated(Activity activity, Bundle bundle) { }
@@ -633,6 +649,10 @@ public final class VClient extends IVClient.Stub {
             }
             @Override
             public void onActivityResumed(Activity activity) {
+                if (!mFirstActivityResumed) {
+                    mFirstActivityResumed = true;
+                    LaunchTrace.mark("firstActivityResumed", activity.getComponentName().flattenToShortString());
+                }
                 //检测截屏权限
                 boolean screenShort = VAppPermissionManager.get().getAppPermissionEnable(
                         activity.getPackageName(), VAppPermissionManager.PROHIBIT_SCREEN_SHORT_RECORDER);
@@ -658,6 +678,7 @@ public final class VClient extends IVClient.Stub {
         });
         VirtualCore.get().getAppCallback().afterApplicationCreate(packageName, processName, mInitialApplication);
         VActivityManager.get().appDoneExecuting(info.packageName);
+        LaunchTrace.end("bindApplication", processName, traceBind);
 
         //xdja
        /* context.getCacheDir();
@@ -1149,6 +1170,11 @@ public final class VClient extends IVClient.Stub {
                 data.intent.setComponent(data.component);
             }
             receiver.onReceive(receiverContext, data.intent);
+            // Report the result to the server, which passes it to the next receiver of an ordered broadcast.
+            data.pendingResult.mResultCode = result.getResultCode();
+            data.pendingResult.mResultData = result.getResultData();
+            data.pendingResult.mResultExtras = result.getResultExtras(false);
+            data.pendingResult.mAbortBroadcast = result.getAbortBroadcast();
             if (mirror.android.content.BroadcastReceiver.getPendingResult.call(receiver) != null) {
                 result.finish();
             }
@@ -1218,6 +1244,21 @@ public final class VClient extends IVClient.Stub {
         ServiceManager.get().stopService(component);
     }
 
+    @Override
+    public void setHookStatisticsEnabled(boolean enabled) {
+        InvocationStatistics.setEnabled(enabled);
+    }
+
+    @Override
+    public String getHookStatistics(boolean reset) {
+        return InvocationStatistics.dump(reset);
+    }
+
+    @Override
+    public String getLaunchTrace(boolean reset) {
+        return LaunchTrace.dump(clientConfig != null ? clientConfig.processName : VirtualCore.get().getProcessName(), reset);
+    }
+
     private static class RootThreadGroup extends ThreadGroup {
 
         RootThreadGroup(ThreadGroup parent) {
@@ -1,7 +1,10 @@
 package com.lody.virtual.client.core;
 
+import android.content.Context;
 import android.os.Build;
+import android.os.IBinder;
 
+import com.lody.virtual.client.hook.base.BinderInvocationProxy;
 import com.lody.virtual.client.hook.base.MethodInvocationProxy;
 import com.lody.virtual.client.hook.base.MethodInvocationStub;
 import com.lody.virtual.client.hook.delegate.AppInstrumentation;
@@ -69,9 +72,10 @@ import com.lody.virtual.client.hook.proxies.window.WindowManagerStub;
 import com.lody.virtual.client.interfaces.IInjector;
 import com.lody.virtual.helper.compat.BuildCompat;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import mirror.android.os.ServiceManager;
 import mirror.com.android.internal.app.ISmtOpsService;
 import mirror.com.android.internal.telephony.IHwTelephony;
 
@@ -85,13 +89,19 @@ import static android.os.Build.VERSION_CODES.N;
 
 /**
  * @author Lody
+ * <p>
+ * Most system services are hooked lazily, see {@link SettingConfig#isLazyInjectSystemServices()}:
+ * a placeholder is put in the cache of the ServiceManager, and the stub is built the first time
+ * the app gets the service. The stubs that patch more than the cache, or are used by every app,
+ * are injected when the process starts.
  */
 public final class InvocationStubManager {
 
     private static InvocationStubManager sInstance = new InvocationStubManager();
     private static boolean sInit;
 
-    private Map<Class<?>, IInjector> mInjectors = new HashMap<>(13);
+    private Map<Class<?>, IInjector> mInjectors = new ConcurrentHashMap<>(13);
+    private Map<Class<?>, LazyServiceBinder> mLazyInjectors = new ConcurrentHashMap<>(48);
 
     private InvocationStubManager() {
     }
@@ -104,6 +114,9 @@ public final class InvocationStubManager {
         for (IInjector injector : mInjectors.values()) {
             injector.inject();
         }
+        for (LazyServiceBinder binder : mLazyInjectors.values()) {
+            binder.install();
+        }
         if (VirtualCore.get().isVAppProcess()) {
             // XXX: Lazy inject the Instrumentation,
             addInjector(AppInstrumentation.getDefault());
@@ -141,95 +154,95 @@ public final class InvocationStubManager {
             addInjector(new ActivityManagerStub());
             addInjector(new PackageManagerStub());
             addInjector(HCallbackStub.getDefault());
-            addInjector(new ISmsStub());
-            addInjector(new ISubStub());
+            addLazyInjector(ISmsStub.class, "isms");
+            addLazyInjector(ISubStub.class, "isub");
             addInjector(new DropBoxManagerStub());
             addInjector(new NotificationManagerStub());
             addInjector(new LocationManagerStub());
             addInjector(new WindowManagerStub());
             addInjector(new ClipBoardStub());
-            addInjector(new MountServiceStub());
-            addInjector(new BackupManagerStub());
-            addInjector(new TelephonyStub());
-            addInjector(new AccessibilityManagerStub());
+            addLazyInjector(MountServiceStub.class, "mount");
+            addLazyInjector(BackupManagerStub.class, "backup");
+            addLazyInjector(TelephonyStub.class, Context.TELEPHONY_SERVICE);
+            addLazyInjector(AccessibilityManagerStub.class, Context.ACCESSIBILITY_SERVICE);
             if (BuildCompat.isOreo()) {
                 if (IHwTelephony.TYPE != null) {
-                    addInjector(new HwTelephonyStub());
+                    addLazyInjector(HwTelephonyStub.class, "phone_huawei");
                 }
             }
-            addInjector(new TelephonyRegistryStub());
-            addInjector(new PhoneSubInfoStub());
-            addInjector(new PowerManagerStub());
-            addInjector(new AppWidgetManagerStub());
+            addLazyInjector(TelephonyRegistryStub.class, "telephony.registry");
+            addLazyInjector(PhoneSubInfoStub.class, "iphonesubinfo");
+            addLazyInjector(PowerManagerStub.class, Context.POWER_SERVICE);
+            addLazyInjector(AppWidgetManagerStub.class, Context.APPWIDGET_SERVICE);
             addInjector(new AccountManagerStub());
-            addInjector(new AudioManagerStub());
-            addInjector(new SearchManagerStub());
+            addLazyInjector(AudioManagerStub.class, Context.AUDIO_SERVICE);
+            addLazyInjector(SearchManagerStub.class, Context.SEARCH_SERVICE);
             addInjector(new ContentServiceStub());
-            addInjector(new ConnectivityStub());
-            addInjector(new BluetoothStub());
+            addLazyInjector(ConnectivityStub.class, Context.CONNECTIVITY_SERVICE);
+            addLazyInjector(BluetoothStub.class, BluetoothStub.SERVER_NAME);
 
             if (Build.VERSION.SDK_INT >= JELLY_BEAN_MR2) {
-                addInjector(new VibratorStub());
+                addLazyInjector(VibratorStub.class, Context.VIBRATOR_SERVICE);
                 addInjector(new WifiManagerStub());
-                addInjector(new ContextHubServiceStub());
+                addLazyInjector(ContextHubServiceStub.class, ContextHubServiceStub.getServiceName());
             }
 
             if (Build.VERSION.SDK_INT >= JELLY_BEAN_MR1) {
-                addInjector(new UserManagerStub());
+                addLazyInjector(UserManagerStub.class, Context.USER_SERVICE);
             }
 
             if (Build.VERSION.SDK_INT >= JELLY_BEAN_MR1) {
                 addInjector(new DisplayStub());
             }
             if (Build.VERSION.SDK_INT >= LOLLIPOP) {
-                addInjector(new PersistentDataBlockServiceStub());
+                addLazyInjector(PersistentDataBlockServiceStub.class, "persistent_data_block");
                 addInjector(new InputMethodManagerStub());
-                addInjector(new MmsStub());
-                addInjector(new SessionManagerStub());
-                addInjector(new JobServiceStub());
-                addInjector(new RestrictionStub());
-                addInjector(new TelecomManagerStub());
+                addLazyInjector(MmsStub.class, "imms");
+                addLazyInjector(SessionManagerStub.class, Context.MEDIA_SESSION_SERVICE);
+                addLazyInjector(JobServiceStub.class, Context.JOB_SCHEDULER_SERVICE);
+                addLazyInjector(RestrictionStub.class, Context.RESTRICTIONS_SERVICE);
+                addLazyInjector(TelecomManagerStub.class, Context.TELECOM_SERVICE);
             }
             if (Build.VERSION.SDK_INT >= KITKAT) {
                 addInjector(new AlarmManagerStub());
                 addInjector(new AppOpsManagerStub());
-                addInjector(new MediaRouterServiceStub());
+                addLazyInjector(MediaRouterServiceStub.class, Context.MEDIA_ROUTER_SERVICE);
                 if (ISmtOpsService.TYPE != null) {
-                    addInjector(new SmtOpsManagerStub());
+                    addLazyInjector(SmtOpsManagerStub.class, "smtops");
                 }
             }
             if (Build.VERSION.SDK_INT >= LOLLIPOP_MR1) {
-                addInjector(new GraphicsStatsStub());
-                addInjector(new UsageStatsManagerStub());
+                addLazyInjector(GraphicsStatsStub.class, "graphicsstats");
+                addLazyInjector(UsageStatsManagerStub.class, Context.USAGE_STATS_SERVICE);
             }
             if (Build.VERSION.SDK_INT >= M) {
-                addInjector(new FingerprintManagerStub());
-                addInjector(new NetworkManagementStub());
+                addLazyInjector(FingerprintManagerStub.class, Context.FINGERPRINT_SERVICE);
+                addLazyInjector(NetworkManagementStub.class, "network_management");
             }
             if (Build.VERSION.SDK_INT >= N) {
                 addInjector(new WifiScannerStub());
-                addInjector(new ShortcutServiceStub());
-                addInjector(new DevicePolicyManagerStub());
+                addLazyInjector(ShortcutServiceStub.class, Context.SHORTCUT_SERVICE);
+                addLazyInjector(DevicePolicyManagerStub.class, Context.DEVICE_POLICY_SERVICE);
                 addInjector(new BatteryStatsHub());
                 addInjector(new WallpaperManagerStub());
             }
             if (BuildCompat.isOreo()) {
                 addInjector(new AutoFillManagerStub());
-                addInjector(new StorageStatsStub());
+                addLazyInjector(StorageStatsStub.class, Context.STORAGE_STATS_SERVICE);
             }
             if (BuildCompat.isPie()) {
                 addInjector(new SystemUpdateStub());
                 addInjector(new LockSettingsStub());
             }
             if (mirror.oem.IFlymePermissionService.TYPE != null) {
-                addInjector(new FlymePermissionServiceStub());
+                addLazyInjector(FlymePermissionServiceStub.class, "flyme_permission");
             }
             if (BuildCompat.isQ()) {
                 addInjector(new ActivityTaskManagerStub());
-                addInjector(new DeviceIdentifiersPolicyServiceHub());
-                addInjector(new RoleStub());
+                addLazyInjector(DeviceIdentifiersPolicyServiceHub.class, "device_identifiers");
+                addLazyInjector(RoleStub.class, "role");
             }
-            addInjector(new NfcAdapterStub());
+            addLazyInjector(NfcAdapterStub.class, Context.NFC_SERVICE);
             addInjector(new UsbManagerStub());
         }
     }
@@ -238,12 +251,43 @@ public final class InvocationStubManager {
         mInjectors.put(IInjector.getClass(), IInjector);
     }
 
+    /**
+     * @param serviceName the name of the service in the ServiceManager, as given to the stub
+     */
+    private void addLazyInjector(Class<? extends BinderInvocationProxy> type, String serviceName) throws Throwable {
+        if (!VirtualCore.getConfig().isLazyInjectSystemServices()) {
+            addInjector(type.newInstance());
+            return;
+        }
+        IBinder binder = ServiceManager.getService.call(serviceName);
+        if (binder != null) {
+            mLazyInjectors.put(type, new LazyServiceBinder(serviceName, type, binder));
+        }
+    }
+
+    void onLazyInjected(BinderInvocationProxy proxy) {
+        mInjectors.put(proxy.getClass(), proxy);
+    }
+
     public <T extends IInjector> T findInjector(Class<T> clazz) {
+        IInjector injector = mInjectors.get(clazz);
+        if (injector == null) {
+            LazyServiceBinder binder = mLazyInjectors.get(clazz);
+            if (binder != null) {
+                injector = binder.getProxy();
+            }
+        }
         // noinspection unchecked
-        return (T) mInjectors.get(clazz);
+        return (T) injector;
     }
 
     public <T extends IInjector> void checkEnv(Class<T> clazz) {
+        LazyServiceBinder binder = mLazyInjectors.get(clazz);
+        if (binder != null && !mInjectors.containsKey(clazz)) {
+            // Not used yet, keep it lazy.
+            binder.checkEnv();
+            return;
+        }
         IInjector IInjector = findInjector(clazz);
         if (IInjector != null && IInjector.isEnvBad()) {
             try {
@@ -264,6 +308,9 @@ public final class InvocationStubManager {
                 }
             }
         }
+        for (LazyServiceBinder binder : mLazyInjectors.values()) {
+            binder.checkEnv();
+        }
     }
 
     public <T extends IInjector, H extends MethodInvocationStub> H getInvocationStub(Class<T> injectorClass) {
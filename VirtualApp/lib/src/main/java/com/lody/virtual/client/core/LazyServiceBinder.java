@@ -0,0 +1,136 @@
+package com.lody.virtual.client.core;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.lody.virtual.client.hook.base.BinderInvocationProxy;
+import com.lody.virtual.helper.utils.VLog;
+
+import java.io.FileDescriptor;
+
+import mirror.android.os.ServiceManager;
+
+/**
+ * @author Lody
+ * <p>
+ * Placeholder of a system service in the cache of the ServiceManager, that builds its
+ * {@link BinderInvocationProxy} the first time the service is turned into an interface,
+ * see {@link InvocationStubManager}.
+ * The raw binder calls go straight to the service, as they do with the proxy.
+ */
+final class LazyServiceBinder implements IBinder {
+
+    private static final String TAG = LazyServiceBinder.class.getSimpleName();
+
+    private final String mServiceName;
+    private final Class<? extends BinderInvocationProxy> mType;
+    private final IBinder mBaseBinder;
+    private volatile BinderInvocationProxy mProxy;
+    private boolean mFailed;
+
+    LazyServiceBinder(String serviceName, Class<? extends BinderInvocationProxy> type, IBinder baseBinder) {
+        mServiceName = serviceName;
+        mType = type;
+        mBaseBinder = baseBinder;
+    }
+
+    boolean isInstalled() {
+        return ServiceManager.sCache.get().get(mServiceName) == this;
+    }
+
+    void install() {
+        ServiceManager.sCache.get().put(mServiceName, this);
+    }
+
+    /**
+     * @return the proxy of the service, built on the first call, or null if it could not be built
+     */
+    BinderInvocationProxy getProxy() {
+        BinderInvocationProxy proxy = mProxy;
+        if (proxy != null) {
+            return proxy;
+        }
+        synchronized (this) {
+            if (mProxy == null && !mFailed) {
+                long start = SystemClock.uptimeMillis();
+                // Built on the real service, the cache only ever holds this placeholder or the stub,
+                // so that no other thread can get the binder without the hooks meanwhile.
+                try {
+                    proxy = BinderInvocationProxy.newInstance(mType, mBaseBinder);
+                    proxy.inject();
+                    mProxy = proxy;
+                    InvocationStubManager.getInstance().onLazyInjected(proxy);
+                    VLog.d(TAG, "inject %s in %dms", mServiceName, SystemClock.uptimeMillis() - start);
+                } catch (Throwable e) {
+                    mFailed = true;
+                    VLog.e(TAG, "unable to inject %s: %s", mServiceName, e);
+                }
+            }
+            return mProxy;
+        }
+    }
+
+    /**
+     * Put back the placeholder if the cache was reset before the service was used.
+     */
+    synchronized void checkEnv() {
+        if (mProxy == null && !mFailed && !isInstalled()) {
+            install();
+        }
+    }
+
+    @Override
+    public IInterface queryLocalInterface(String descriptor) {
+        BinderInvocationProxy proxy = getProxy();
+        if (proxy != null && proxy.getInvocationStub().getBaseInterface() != null) {
+            return proxy.getInvocationStub().queryLocalInterface(descriptor);
+        }
+        return mBaseBinder.queryLocalInterface(descriptor);
+    }
+
+    @Override
+    public String getInterfaceDescriptor() throws RemoteException {
+        return mBaseBinder.getInterfaceDescriptor();
+    }
+
+    @Override
+    public boolean pingBinder() {
+        return mBaseBinder.pingBinder();
+    }
+
+    @Override
+    public boolean isBinderAlive() {
+        return mBaseBinder.isBinderAlive();
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, String[] args) throws RemoteException {
+        mBaseBinder.dump(fd, args);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    @Override
+    public void dumpAsync(FileDescriptor fd, String[] args) throws RemoteException {
+        mBaseBinder.dumpAsync(fd, args);
+    }
+
+    @Override
+    public boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        return mBaseBinder.transact(code, data, reply, flags);
+    }
+
+    @Override
+    public void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException {
+        mBaseBinder.linkToDeath(recipient, flags);
+    }
+
+    @Override
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+        return mBaseBinder.unlinkToDeath(recipient, flags);
+    }
+}
@@ -19,6 +19,7 @@ import com.lody.virtual.client.stub.StubManifest;
 import com.lody.virtual.client.stub.WindowPreviewActivity;
 import com.lody.virtual.helper.compat.BundleCompat;
 import com.lody.virtual.helper.compat.NotificationChannelCompat;
+import com.lody.virtual.server.am.ProcessEvictionPolicy;
 
 /**
  * @author Lody
@@ -171,6 +172,35 @@ public abstract class SettingConfig {
 
     }
 
+    /**
+     * 预先启动的空闲stub进程数，0则不预启动（默认），空闲进程常驻，会占用内存和电量
+     * @param is64bit 64位进程池，需要安装64位插件
+     */
+    public int getWarmProcessCount(boolean is64bit){
+        return 0;
+    }
+
+    /**
+     * 系统服务的hook是否在app第一次获取服务时才创建，关闭则在进程启动时全部创建
+     */
+    public boolean isLazyInjectSystemServices(){
+        return true;
+    }
+
+    /**
+     * 是否记录app启动各阶段的耗时，见{@link com.lody.virtual.client.ipc.VActivityManager#dumpLaunchTrace}，默认关闭
+     */
+    public boolean isLaunchTraceEnabled(){
+        return false;
+    }
+
+    /**
+     * stub进程不足时回收哪些进程，在server进程调用
+     */
+    public ProcessEvictionPolicy getProcessEvictionPolicy(){
+        return new ProcessEvictionPolicy();
+    }
+
     /**
      *
      * @param intent 如果需要默认组件，就设置intent#setComponent
@@ -54,15 +54,19 @@ import com.lody.virtual.helper.compat.BundleCompat;
 import com.lody.virtual.helper.utils.BitmapUtils;
 import com.lody.virtual.helper.utils.FileUtils;
 import com.lody.virtual.helper.utils.IInterfaceUtils;
+import com.lody.virtual.helper.utils.LaunchTrace;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VUserHandle;
 import com.lody.virtual.remote.BroadcastIntentData;
 import com.lody.virtual.remote.InstallOptions;
 import com.lody.virtual.remote.InstallResult;
 import com.lody.virtual.remote.InstalledAppInfo;
+import com.lody.virtual.remote.InstalledPackageSet;
+import com.lody.virtual.remote.LauncherAppInfo;
 import com.lody.virtual.server.bit64.V64BitHelper;
 import com.lody.virtual.server.interfaces.IAppManager;
 import com.lody.virtual.server.interfaces.IPackageObserver;
+import com.lody.virtual.server.interfaces.IPackageSetObserver;
 import com.lody.virtual.server.pm.PrivilegeAppOptimizer;
 import com.xdja.activitycounter.ActivityCounterManager;
 import com.xdja.call.CallLogObserver;
@@ -83,6 +87,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import mirror.android.app.ActivityThread;
 
@@ -128,6 +133,19 @@ public final class VirtualCore {
     private TaskDescriptionDelegate mTaskDescriptionDelegate;
     private SettingConfig mConfig;
     private AppRequestListener mAppRequestListener;
+    /**
+     * Local replica of the installed packages, registered on first use and then pushed by the server.
+     */
+    private volatile InstalledPackageSet mPackageSet;
+    private final Object mPackageSetLock = new Object();
+    private boolean mPackageSetRegistered;
+    private final IPackageSetObserver.Stub mPackageSetObserver = new IPackageSetObserver.Stub() {
+        @Override
+        public void onPackageSetChanged(InstalledPackageSet packageSet) {
+            updatePackageSet(packageSet);
+        }
+    };
+    private final AtomicLong mLocalPackageLookups = new AtomicLong();
 
     private VirtualCore() {
     }
@@ -279,6 +297,7 @@ public final class VirtualCore {
             }
             mInitLock = new ConditionVariable();
             mConfig = config;
+            LaunchTrace.setEnabled(config.isLaunchTraceEnabled());
             String packageName = config.getHostPackageName();
             String packageName64 = config.getPluginEnginePackageName();
             Constants.ACTION_SHORTCUT = packageName + Constants.ACTION_SHORTCUT;
@@ -691,6 +710,8 @@ public final class VirtualCore {
             @Override
             protected void onReceiveResult(int resultCode, Bundle resultData) {
                 resultData.setClassLoader(InstallResult.class.getClassLoader());
+                // The result may come before the pushed package set.
+                refreshPackageSet();
                 if (callback != null) {
                     InstallResult res = resultData.getParcelable("result");
                     callback.onFinish(res);
@@ -761,6 +782,11 @@ public final class VirtualCore {
     }
 
     public boolean isAppInstalled(String pkg) {
+        InstalledPackageSet packageSet = getPackageSet();
+        if (packageSet != null) {
+            mLocalPackageLookups.incrementAndGet();
+            return packageSet.contains(pkg);
+        }
         try {
             return getService().isAppInstalled(pkg);
         } catch (RemoteException e) {
@@ -768,6 +794,56 @@ public final class VirtualCore {
         }
     }
 
+    /**
+     * @return the number of installation checks answered by the local replica, i.e. the binder calls saved
+     */
+    public long getLocalPackageLookupCount() {
+        return mLocalPackageLookups.get();
+    }
+
+    private InstalledPackageSet getPackageSet() {
+        InstalledPackageSet packageSet = mPackageSet;
+        if (packageSet != null) {
+            return packageSet;
+        }
+        synchronized (mPackageSetLock) {
+            if (mPackageSetRegistered) {
+                // Still null while another thread registers, the caller asks the service.
+                return mPackageSet;
+            }
+            mPackageSetRegistered = true;
+        }
+        // Not under the lock: in the server process the observer is called in place,
+        // while the service holds its own lock.
+        try {
+            updatePackageSet(getService().registerPackageSetObserver(mPackageSetObserver));
+        } catch (RemoteException e) {
+            synchronized (mPackageSetLock) {
+                mPackageSetRegistered = false;
+            }
+        }
+        return mPackageSet;
+    }
+
+    private void refreshPackageSet() {
+        if (mPackageSet == null) {
+            return;
+        }
+        try {
+            updatePackageSet(getService().getInstalledPackageSet());
+        } catch (RemoteException e) {
+            // Ignore, the next push will update it.
+        }
+    }
+
+    private void updatePackageSet(InstalledPackageSet packageSet) {
+        synchronized (mPackageSetLock) {
+            if (packageSet != null && (mPackageSet == null || packageSet.version > mPackageSet.version)) {
+                mPackageSet = packageSet;
+            }
+        }
+    }
+
     public boolean isPackageLaunchable(String packageName) {
         InstalledAppInfo info = getInstalledAppInfo(packageName, 0);
         return info != null
@@ -981,7 +1057,9 @@ public final class VirtualCore {
         try {
             if(PackagePermissionManager.getProtectUninstallList().contains(pkgName))
                 return false;
-            return getService().uninstallPackageAsUser(pkgName, userId);
+            boolean result = getService().uninstallPackageAsUser(pkgName, userId);
+            refreshPackageSet();
+            return result;
         } catch (RemoteException e) {
             // Ignore
         }
@@ -992,7 +1070,9 @@ public final class VirtualCore {
         try {
             if(PackagePermissionManager.getProtectUninstallList().contains(pkgName))
                 return false;
-            return getService().uninstallPackage(pkgName);
+            boolean result = getService().uninstallPackage(pkgName);
+            refreshPackageSet();
+            return result;
         } catch (RemoteException e) {
             // Ignore
         }
@@ -1067,6 +1147,17 @@ public final class VirtualCore {
         }
     }
 
+    /**
+     * @return everything a launcher shows of the installed packages, in a single call
+     */
+    public List<LauncherAppInfo> getLauncherApps() {
+        try {
+            return getService().getLauncherApps().getList();
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
     public void scanApps() {
         try {
             getService().scanApps();
@@ -1101,13 +1192,23 @@ public final class VirtualCore {
 
     public boolean installPackageAsUser(int userId, String packageName) {
         try {
-            return getService().installPackageAsUser(userId, packageName);
+            boolean result = getService().installPackageAsUser(userId, packageName);
+            refreshPackageSet();
+            return result;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
     }
 
     public boolean isAppInstalledAsUser(int userId, String packageName) {
+        InstalledPackageSet packageSet = getPackageSet();
+        if (packageSet != null) {
+            int installed = packageSet.isInstalledAsUser(userId, packageName);
+            if (installed != InstalledPackageSet.UNKNOWN) {
+                mLocalPackageLookups.incrementAndGet();
+                return installed == InstalledPackageSet.INSTALLED;
+            }
+        }
         try {
             return getService().isAppInstalledAsUser(userId, packageName);
         } catch (RemoteException e) {
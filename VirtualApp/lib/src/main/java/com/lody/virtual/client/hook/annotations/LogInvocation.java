@@ -13,6 +13,7 @@ import java.lang.annotation.RetentionPolicy;
  * log all the calls and their arguments.
  *
  * Obviously, this is only useful for debugging.
+ * Use {@link com.lody.virtual.client.hook.base.InvocationStatistics} to profile the hooks in production.
  */
 @Retention(RetentionPolicy.RUNTIME)
 public @interface LogInvocation {
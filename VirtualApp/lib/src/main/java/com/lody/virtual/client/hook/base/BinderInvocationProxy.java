@@ -16,6 +16,23 @@ import mirror.android.os.ServiceManager;
 public abstract class BinderInvocationProxy extends MethodInvocationProxy<BinderInvocationStub> {
 
 	protected String mServiceName;
+	/**
+	 * The binder of the service given to {@link #newInstance}, while the proxy is built.
+	 */
+	private static final ThreadLocal<IBinder> sBaseBinder = new ThreadLocal<>();
+
+	/**
+	 * Build a proxy on the given binder of its service instead of the one in the ServiceManager,
+	 * which may be a placeholder of the service.
+	 */
+	public static <T extends BinderInvocationProxy> T newInstance(Class<T> type, IBinder baseBinder) throws Throwable {
+		sBaseBinder.set(baseBinder);
+		try {
+			return type.newInstance();
+		} finally {
+			sBaseBinder.remove();
+		}
+	}
 
 	public BinderInvocationProxy(IInterface stub, String serviceName) {
 		this(new BinderInvocationStub(stub), serviceName);
@@ -32,6 +49,10 @@ public abstract class BinderInvocationProxy extends MethodInvocationProxy<Binder
 	}
 
 	private static IBinder getService(String serviceName){
+		IBinder baseBinder = sBaseBinder.get();
+		if (baseBinder != null) {
+			return baseBinder;
+		}
 	    return ServiceManager.getService.call(serviceName);
     }
 
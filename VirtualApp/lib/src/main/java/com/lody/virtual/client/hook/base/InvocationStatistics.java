@@ -0,0 +1,224 @@
+package com.lody.virtual.client.hook.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Lody
+ * <p>
+ * Per-interface, per-method counters of the calls going through {@link MethodInvocationStub}.
+ * <p>
+ * Disabled by default, in which case the invocation handler only reads {@link #isEnabled()}.
+ * When enabled, each call records the time spent in {@link MethodProxy#beforeCall},
+ * {@link MethodProxy#call} (or the original method) and {@link MethodProxy#afterCall}
+ * into lock-free log2 histograms. Unlike {@link com.lody.virtual.client.hook.annotations.LogInvocation}
+ * it never stringifies arguments, so it is cheap enough to leave on in production.
+ */
+public final class InvocationStatistics {
+
+    /**
+     * Bucket i holds durations in [2^(i-1), 2^i) microseconds, bucket 0 holds less than 1us.
+     */
+    private static final int BUCKET_COUNT = 24;
+
+    private static volatile boolean sEnabled;
+    private static final ConcurrentHashMap<String, InvocationStatistics> sInterfaces = new ConcurrentHashMap<>();
+
+    private final String mInterfaceName;
+    private final ConcurrentHashMap<String, MethodStatistics> mMethods = new ConcurrentHashMap<>();
+
+    private InvocationStatistics(String interfaceName) {
+        mInterfaceName = interfaceName;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static InvocationStatistics of(String interfaceName) {
+        InvocationStatistics statistics = sInterfaces.get(interfaceName);
+        if (statistics == null) {
+            statistics = new InvocationStatistics(interfaceName);
+            InvocationStatistics old = sInterfaces.putIfAbsent(interfaceName, statistics);
+            if (old != null) {
+                statistics = old;
+            }
+        }
+        return statistics;
+    }
+
+    public String getInterfaceName() {
+        return mInterfaceName;
+    }
+
+    public MethodStatistics getMethod(String methodName) {
+        MethodStatistics statistics = mMethods.get(methodName);
+        if (statistics == null) {
+            statistics = new MethodStatistics(mInterfaceName, methodName);
+            MethodStatistics old = mMethods.putIfAbsent(methodName, statistics);
+            if (old != null) {
+                statistics = old;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Reset all the collected counters of this process.
+     */
+    public static void reset() {
+        for (InvocationStatistics statistics : sInterfaces.values()) {
+            statistics.mMethods.clear();
+        }
+    }
+
+    /**
+     * Dump the counters of this process, sorted by total time spent, one method per line.
+     *
+     * @param reset reset the counters after they have been dumped
+     */
+    public static String dump(boolean reset) {
+        List<MethodStatistics> all = new ArrayList<>();
+        for (InvocationStatistics statistics : sInterfaces.values()) {
+            all.addAll(statistics.mMethods.values());
+        }
+        Collections.sort(all, new Comparator<MethodStatistics>() {
+            @Override
+            public int compare(MethodStatistics lhs, MethodStatistics rhs) {
+                long l = lhs.getTotalNanos();
+                long r = rhs.getTotalNanos();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        StringBuilder sb = new StringBuilder(128 + all.size() * 128);
+        sb.append("interface.method calls hooked exceptions total(ms) | before/call/after p50/p99(us)\n");
+        for (MethodStatistics method : all) {
+            method.dump(sb);
+            sb.append('\n');
+        }
+        if (reset) {
+            reset();
+        }
+        return sb.toString();
+    }
+
+    public static final class MethodStatistics {
+        private final String mInterfaceName;
+        private final String mMethodName;
+        private final AtomicLong mCalls = new AtomicLong();
+        private final AtomicLong mHookedCalls = new AtomicLong();
+        private final AtomicLong mExceptions = new AtomicLong();
+        private final Histogram mBefore = new Histogram();
+        private final Histogram mCall = new Histogram();
+        private final Histogram mAfter = new Histogram();
+
+        MethodStatistics(String interfaceName, String methodName) {
+            mInterfaceName = interfaceName;
+            mMethodName = methodName;
+        }
+
+        public void record(long beforeNanos, long callNanos, long afterNanos, boolean hooked, boolean error) {
+            mCalls.incrementAndGet();
+            if (hooked) {
+                mHookedCalls.incrementAndGet();
+            }
+            if (error) {
+                mExceptions.incrementAndGet();
+            }
+            mBefore.add(beforeNanos);
+            mCall.add(callNanos);
+            mAfter.add(afterNanos);
+        }
+
+        public String getMethodName() {
+            return mMethodName;
+        }
+
+        public long getCalls() {
+            return mCalls.get();
+        }
+
+        public long getHookedCalls() {
+            return mHookedCalls.get();
+        }
+
+        public long getExceptions() {
+            return mExceptions.get();
+        }
+
+        public long getTotalNanos() {
+            return mBefore.getTotalNanos() + mCall.getTotalNanos() + mAfter.getTotalNanos();
+        }
+
+        void dump(StringBuilder sb) {
+            sb.append(mInterfaceName).append('.').append(mMethodName)
+                    .append(' ').append(getCalls())
+                    .append(' ').append(getHookedCalls())
+                    .append(' ').append(getExceptions())
+                    .append(' ').append(String.format(Locale.US, "%.3f", getTotalNanos() / 1000000.0))
+                    .append(" | ");
+            mBefore.dump(sb);
+            sb.append(' ');
+            mCall.dump(sb);
+            sb.append(' ');
+            mAfter.dump(sb);
+        }
+    }
+
+    static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mTotalNanos = new AtomicLong();
+
+        void add(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            mTotalNanos.addAndGet(nanos);
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            if (bucket >= BUCKET_COUNT) {
+                bucket = BUCKET_COUNT - 1;
+            }
+            mBuckets.incrementAndGet(bucket);
+        }
+
+        long getTotalNanos() {
+            return mTotalNanos.get();
+        }
+
+        /**
+         * @return upper bound in microseconds of the bucket holding the given percentile
+         */
+        long percentile(int percent) {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += mBuckets.get(i);
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long threshold = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKET_COUNT - 1);
+        }
+
+        void dump(StringBuilder sb) {
+            sb.append(percentile(50)).append('/').append(percentile(99));
+        }
+    }
+}
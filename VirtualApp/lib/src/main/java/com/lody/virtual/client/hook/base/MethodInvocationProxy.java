@@ -19,7 +19,9 @@ import java.lang.reflect.Modifier;
  * This class is responsible with:
  * - Instantiating a {@link MethodInvocationStub.HookInvocationHandler} on {@link #getInvocationStub()} ()}
  * - Install a bunch of {@link MethodProxy}s, either with a @{@link Inject} annotation or manually
- * calling {@link #addMethodProxy(MethodProxy)} from {@link #onBindMethods()}
+ * calling {@link #addMethodProxy(MethodProxy)} from {@link #onBindMethods()}.
+ * The @{@link Inject} proxies of the stubs of this library are bound by {@link MethodProxyRegistry},
+ * generated at build time, the others by reflection
  * - Install the hooked object on the Runtime via {@link #inject()}
  * <p>
  * All {@link MethodInvocationProxy}s (plus a couple of other @{@link IInjector}s are installed by
@@ -46,6 +48,10 @@ public abstract class MethodInvocationProxy<T extends MethodInvocationStub> impl
         if (mInvocationStub == null) {
             return;
         }
+        // Bound by the code generated at build time, see lib-processor.
+        if (MethodProxyRegistry.bind(this)) {
+            return;
+        }
         Class<? extends MethodInvocationProxy> clazz = getClass();
         Inject inject = clazz.getAnnotation(Inject.class);
         if (inject != null) {
@@ -36,7 +36,20 @@ public class MethodInvocationStub<T> {
     private T mProxyInterface;
     private MethodProxy mDefaultProxy;
     private LogInvocation.Condition mInvocationLoggingCondition = LogInvocation.Condition.NEVER;
-
+    /**
+     * When enabled, each interface method is resolved to its {@link MethodProxy} only once,
+     * see {@link #setDispatchTableEnabled(boolean)}. Off by default, a stub opts in.
+     */
+    private volatile boolean mDispatchTableEnabled;
+    /**
+     * Copy on write, replaced under {@link #mDispatchTableLock}.
+     * Keyed by {@link Method#equals}, not by identity: the runtime passes a new {@link Method}
+     * to the proxy on every call, while equal ones share the declaring class, name and parameter types.
+     * It holds at most one entry per method of the proxy interfaces.
+     */
+    private volatile Map<Method, DispatchEntry> mDispatchTable = new HashMap<>();
+    private final Object mDispatchTableLock = new Object();
+    private boolean mStartup;
 
     public Map<String, MethodProxy> getAllHooks() {
         return mInternalMethodProxies;
@@ -59,6 +72,31 @@ public class MethodInvocationStub<T> {
 
     public void setInvocationLoggingCondition(LogInvocation.Condition invocationLoggingCondition) {
         mInvocationLoggingCondition = invocationLoggingCondition;
+        invalidateDispatchTable();
+    }
+
+    public boolean isDispatchTableEnabled() {
+        return mDispatchTableEnabled;
+    }
+
+    /**
+     * Switch between the name-based lookup done on every call and the precompiled
+     * dispatch table, which resolves each {@link Method} once and then skips the
+     * name lookup, the startup check and the logging decision on later calls.
+     */
+    public void setDispatchTableEnabled(boolean dispatchTableEnabled) {
+        mDispatchTableEnabled = dispatchTableEnabled;
+        invalidateDispatchTable();
+    }
+
+    /**
+     * Drop all resolved entries of the dispatch table.
+     * Must be called if a registered proxy changes its logging condition.
+     */
+    public void invalidateDispatchTable() {
+        synchronized (mDispatchTableLock) {
+            mDispatchTable = new HashMap<>();
+        }
     }
 
     public MethodInvocationStub(T baseInterface) {
@@ -72,6 +110,7 @@ public class MethodInvocationStub<T> {
      */
     public void copyMethodProxies(MethodInvocationStub from) {
         this.mInternalMethodProxies.putAll(from.getAllHooks());
+        invalidateDispatchTable();
     }
 
     /**
@@ -87,6 +126,7 @@ public class MethodInvocationStub<T> {
                 return methodProxy;
             }
             mInternalMethodProxies.put(methodProxy.getMethodName(), methodProxy);
+            invalidateDispatchTable();
         }
         return methodProxy;
     }
@@ -98,7 +138,9 @@ public class MethodInvocationStub<T> {
      * @return The proxy you removed
      */
     public MethodProxy removeMethodProxy(String hookName) {
-        return mInternalMethodProxies.remove(hookName);
+        MethodProxy removed = mInternalMethodProxies.remove(hookName);
+        invalidateDispatchTable();
+        return removed;
     }
 
     /**
@@ -117,6 +159,7 @@ public class MethodInvocationStub<T> {
      */
     public void removeAllMethodProxies() {
         mInternalMethodProxies.clear();
+        invalidateDispatchTable();
     }
 
     /**
@@ -137,6 +180,7 @@ public class MethodInvocationStub<T> {
 
     public  void setDefaultMethodProxy(MethodProxy proxy){
         mDefaultProxy = proxy;
+        invalidateDispatchTable();
     }
 
     /**
@@ -160,9 +204,68 @@ public class MethodInvocationStub<T> {
         return mInternalMethodProxies.size();
     }
 
+    /**
+     * Resolved state of one interface method.
+     * A null {@link #methodProxy} means the call is passed through to the base interface.
+     */
+    private static final class DispatchEntry {
+        final MethodProxy methodProxy;
+        final Method baseMethod;
+        final boolean mightLog;
+
+        DispatchEntry(MethodProxy methodProxy, Method baseMethod, boolean mightLog) {
+            this.methodProxy = methodProxy;
+            this.baseMethod = baseMethod;
+            this.mightLog = mightLog;
+        }
+    }
+
+    private DispatchEntry resolveDispatchEntry(Method method) {
+        Map<Method, DispatchEntry> table = mDispatchTable;
+        DispatchEntry entry = table.get(method);
+        if (entry != null) {
+            return entry;
+        }
+        MethodProxy methodProxy = getMethodProxy(method.getName());
+        boolean mightLog = (mInvocationLoggingCondition != LogInvocation.Condition.NEVER) ||
+                (methodProxy != null && methodProxy.getInvocationLoggingCondition() != LogInvocation.Condition.NEVER);
+        Method baseMethod = method;
+        try {
+            if (!baseMethod.isAccessible()) {
+                baseMethod.setAccessible(true);
+            }
+        } catch (Throwable e) {
+            // Fall back to the checked reflective call
+        }
+        entry = new DispatchEntry(methodProxy, baseMethod, mightLog);
+        synchronized (mDispatchTableLock) {
+            // The table was invalidated while the entry was resolved, keep the entry for this call only.
+            if (mDispatchTable == table) {
+                // Copy on write: the set of interface methods is small and is resolved only once.
+                Map<Method, DispatchEntry> newTable = new HashMap<>(table);
+                newTable.put(method, entry);
+                mDispatchTable = newTable;
+            }
+        }
+        return entry;
+    }
+
+    private boolean isStartup() {
+        if (!mStartup) {
+            mStartup = VirtualCore.get().isStartup();
+        }
+        return mStartup;
+    }
+
     private class HookInvocationHandler implements InvocationHandler {
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (mDispatchTableEnabled) {
+                DispatchEntry entry = resolveDispatchEntry(method);
+                if (!entry.mightLog) {
+                    return dispatch(entry, args);
+                }
+            }
             MethodProxy methodProxy = getMethodProxy(method.getName());
             boolean useProxy = VirtualCore.get().isStartup() && methodProxy != null && methodProxy.isEnable();
             boolean mightLog = (mInvocationLoggingCondition != LogInvocation.Condition.NEVER) ||
@@ -183,7 +286,9 @@ public class MethodInvocationStub<T> {
 
 
             try {
-                if (useProxy && methodProxy.beforeCall(mBaseInterface, method, args)) {
+                if (InvocationStatistics.isEnabled()) {
+                    res = invokeRecorded(useProxy ? methodProxy : null, method, args);
+                } else if (useProxy && methodProxy.beforeCall(mBaseInterface, method, args)) {
                     res = methodProxy.call(mBaseInterface, method, args);
                     res = methodProxy.afterCall(mBaseInterface, method, args, res);
                 } else {
@@ -221,6 +326,67 @@ public class MethodInvocationStub<T> {
         }
     }
 
+    private Object dispatch(DispatchEntry entry, Object[] args) throws Throwable {
+        MethodProxy methodProxy = entry.methodProxy;
+        try {
+            if (InvocationStatistics.isEnabled()) {
+                boolean useProxy = methodProxy != null && methodProxy.isEnable() && isStartup();
+                return invokeRecorded(useProxy ? methodProxy : null, entry.baseMethod, args);
+            }
+            if (methodProxy != null && methodProxy.isEnable() && isStartup()
+                    && methodProxy.beforeCall(mBaseInterface, entry.baseMethod, args)) {
+                Object res = methodProxy.call(mBaseInterface, entry.baseMethod, args);
+                return methodProxy.afterCall(mBaseInterface, entry.baseMethod, args, res);
+            }
+            return entry.baseMethod.invoke(mBaseInterface, args);
+        } catch (InvocationTargetException e) {
+            if (e.getTargetException() != null) {
+                throw e.getTargetException();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Same as the plain call path, but records the time of every phase into {@link InvocationStatistics}.
+     *
+     * @param methodProxy the proxy to go through, or null to call the base interface directly
+     */
+    private Object invokeRecorded(MethodProxy methodProxy, Method method, Object[] args) throws Throwable {
+        long start = System.nanoTime();
+        long beforeEnd = 0;
+        long callEnd = 0;
+        boolean hooked = false;
+        boolean error = true;
+        try {
+            Object res;
+            if (methodProxy != null && methodProxy.beforeCall(mBaseInterface, method, args)) {
+                hooked = true;
+                beforeEnd = System.nanoTime();
+                res = methodProxy.call(mBaseInterface, method, args);
+                callEnd = System.nanoTime();
+                res = methodProxy.afterCall(mBaseInterface, method, args, res);
+            } else {
+                beforeEnd = System.nanoTime();
+                res = method.invoke(mBaseInterface, args);
+                callEnd = System.nanoTime();
+            }
+            error = false;
+            return res;
+        } finally {
+            long end = System.nanoTime();
+            if (beforeEnd == 0) {
+                beforeEnd = end;
+            }
+            if (callEnd == 0) {
+                callEnd = end;
+            }
+            InvocationStatistics.of(method.getDeclaringClass().getName())
+                    .getMethod(method.getName())
+                    .record(beforeEnd - start, callEnd - beforeEnd, end - callEnd, hooked, error);
+        }
+    }
+
     private void dumpMethodProxies() {
         StringBuilder sb = new StringBuilder(50);
         sb.append("*********************");
@@ -27,7 +27,7 @@ import static android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
 public class BluetoothStub extends BinderInvocationProxy {
     private static final String TAG = "Test" + BluetoothStub.class.getSimpleName();
 
-    private final static String SERVER_NAME = Build.VERSION.SDK_INT >= JELLY_BEAN_MR1 ?
+    public static final String SERVER_NAME = Build.VERSION.SDK_INT >= JELLY_BEAN_MR1 ?
             "bluetooth_manager" : "bluetooth";
 
     public BluetoothStub() {
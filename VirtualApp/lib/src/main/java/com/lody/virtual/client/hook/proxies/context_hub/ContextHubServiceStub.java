@@ -12,7 +12,7 @@ public class ContextHubServiceStub extends BinderInvocationProxy {
         super(IContextHubService.Stub.asInterface, getServiceName());
     }
 
-    private static String getServiceName() {
+    public static String getServiceName() {
         return BuildCompat.isOreo() ? "contexthub" : "contexthub_service";
     }
 
@@ -0,0 +1,236 @@
+package com.lody.virtual.client.ipc;
+
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Parcel;
+import android.text.TextUtils;
+
+import com.lody.virtual.helper.compat.ObjectsCompat;
+import com.lody.virtual.server.interfaces.IPackageCacheObserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Lody
+ * <p>
+ * Size-bounded cache of the package queries made by this process through {@link VPackageManager},
+ * keyed by (call, args, flags, userId). Results, including null ones, are stored parceled so that
+ * every hit hands out a fresh copy the caller is free to modify.
+ * <p>
+ * The server pushes a new generation whenever an install, uninstall, component or user state
+ * change may affect a result, which drops every entry. A result fetched while the generation
+ * changed is not stored.
+ */
+public final class PackageQueryCache {
+
+    static final int GET_PACKAGE_INFO = 1;
+    static final int GET_APPLICATION_INFO = 2;
+    static final int RESOLVE_INTENT = 3;
+    static final int QUERY_INTENT_ACTIVITIES = 4;
+
+    /**
+     * Returned by {@link #get(Key)} when there is no entry, as null is a valid cached result.
+     */
+    static final Object MISS = new Object();
+
+    /**
+     * The requested permission flags depend on the runtime permission state, which is not
+     * tracked by the server generation.
+     */
+    private static final int UNCACHEABLE_FLAGS = PackageManager.GET_PERMISSIONS;
+
+    private final int mMaxEntries;
+    private final LinkedHashMap<Key, byte[]> mEntries;
+    private int mGeneration;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    private final IPackageCacheObserver.Stub mObserver = new IPackageCacheObserver.Stub() {
+        @Override
+        public void onPackageCacheInvalidated(int generation) {
+            invalidate(generation);
+        }
+    };
+
+    PackageQueryCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<Key, byte[]>(32, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    static boolean isCacheable(int flags) {
+        return (flags & UNCACHEABLE_FLAGS) == 0;
+    }
+
+    IPackageCacheObserver getObserver() {
+        return mObserver;
+    }
+
+    void invalidate(int generation) {
+        synchronized (mEntries) {
+            if (generation > mGeneration) {
+                mGeneration = generation;
+            }
+            mEntries.clear();
+        }
+        mInvalidations.incrementAndGet();
+    }
+
+    int getGeneration() {
+        synchronized (mEntries) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * @return a copy of the cached result, which may be null, or {@link #MISS}
+     */
+    Object get(Key key) {
+        byte[] data;
+        synchronized (mEntries) {
+            data = mEntries.get(key);
+        }
+        if (data == null) {
+            mMisses.incrementAndGet();
+            return MISS;
+        }
+        mHits.incrementAndGet();
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.readValue(PackageQueryCache.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @param generation the generation read by {@link #getGeneration()} before the query was made
+     */
+    void put(Key key, Object value, int generation) {
+        byte[] data;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeValue(value);
+            data = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        synchronized (mEntries) {
+            if (generation == mGeneration) {
+                mEntries.put(key, data);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    /**
+     * @return the number of queries answered without a binder transaction
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the number of invalidations pushed by the server
+     */
+    public long getInvalidationCount() {
+        return mInvalidations.get();
+    }
+
+    public void resetCounters() {
+        mHits.set(0);
+        mMisses.set(0);
+        mInvalidations.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "PackageQueryCache{size=" + size() + "/" + mMaxEntries
+                + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", invalidations=" + getInvalidationCount() + "}";
+    }
+
+    static final class Key {
+        final int call;
+        final String name;
+        final Intent.FilterComparison intent;
+        final String resolvedType;
+        final int flags;
+        final int userId;
+
+        /**
+         * Key of a query by package name.
+         */
+        Key(int call, String name, int flags, int userId) {
+            this.call = call;
+            this.name = name;
+            this.intent = null;
+            this.resolvedType = null;
+            this.flags = flags;
+            this.userId = userId;
+        }
+
+        /**
+         * Key of a query by intent, only the fields used for resolution are kept.
+         */
+        Key(int call, Intent intent, String resolvedType, int flags, int userId) {
+            this.call = call;
+            this.name = null;
+            this.intent = new Intent.FilterComparison(intent.cloneFilter());
+            this.resolvedType = resolvedType;
+            this.flags = flags;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return call == key.call && flags == key.flags && userId == key.userId
+                    && TextUtils.equals(name, key.name)
+                    && TextUtils.equals(resolvedType, key.resolvedType)
+                    && ObjectsCompat.equals(intent, key.intent);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = call;
+            result = 31 * result + (name != null ? name.hashCode() : 0);
+            result = 31 * result + (intent != null ? intent.hashCode() : 0);
+            result = 31 * result + (resolvedType != null ? resolvedType.hashCode() : 0);
+            result = 31 * result + flags;
+            result = 31 * result + userId;
+            return result;
+        }
+    }
+}
@@ -712,4 +712,52 @@ public class VActivityManager {
             VirtualRuntime.crash(e);
         }
     }
+
+    /**
+     * Turn the hook invocation counters on or off in every running and future app process.
+     */
+    public void setHookStatisticsEnabled(boolean enabled) {
+        try {
+            getService().setHookStatisticsEnabled(enabled);
+        } catch (RemoteException e) {
+            VirtualRuntime.crash(e);
+        }
+    }
+
+    /**
+     * @return the hook invocation counters of every process of the given app, one section per process
+     */
+    public String dumpHookStatistics(String packageName, int userId, boolean reset) {
+        try {
+            return getService().dumpHookStatistics(packageName, userId, reset);
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
+    /**
+     * @return the last processes reclaimed to free stub slots, one line per process
+     */
+    public String dumpProcessEvictions() {
+        try {
+            return getService().dumpProcessEvictions();
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
+    /**
+     * Collect the launch timelines of the server and the app processes, see {@link com.lody.virtual.helper.utils.LaunchTrace}.
+     * Only the host may call it, and only if the trace is enabled in the {@link com.lody.virtual.client.core.SettingConfig}.
+     *
+     * @param packageName only the processes of this app, or null for all of them
+     * @return a Chrome trace JSON document, to open in chrome://tracing or Perfetto
+     */
+    public String dumpLaunchTrace(String packageName, int userId, boolean reset) {
+        try {
+            return getService().dumpLaunchTrace(packageName, userId, reset);
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
 }
@@ -30,6 +30,7 @@ public class VPackageManager {
     private static final VPackageManager sMgr = new VPackageManager();
 
     private IPackageManager mService;
+    private volatile PackageQueryCache mQueryCache;
 
     public IPackageManager getService() {
         if (!IInterfaceUtils.isAlive(mService)) {
@@ -50,6 +51,63 @@ public class VPackageManager {
         return sMgr;
     }
 
+    /**
+     * Enable the in-process cache of {@link #getPackageInfo}, {@link #getApplicationInfo},
+     * {@link #resolveIntent} and {@link #queryIntentActivities}, which is disabled by default.
+     *
+     * @param maxEntries maximum number of cached results
+     */
+    public void enableQueryCache(int maxEntries) {
+        synchronized (this) {
+            if (mQueryCache != null) {
+                return;
+            }
+            PackageQueryCache cache = new PackageQueryCache(maxEntries);
+            try {
+                cache.invalidate(getService().registerPackageCacheObserver(cache.getObserver()));
+            } catch (RemoteException e) {
+                VirtualRuntime.crash(e);
+                return;
+            }
+            mQueryCache = cache;
+        }
+    }
+
+    public void disableQueryCache() {
+        synchronized (this) {
+            PackageQueryCache cache = mQueryCache;
+            if (cache == null) {
+                return;
+            }
+            mQueryCache = null;
+            cache.clear();
+            try {
+                getService().unregisterPackageCacheObserver(cache.getObserver());
+            } catch (RemoteException e) {
+                VirtualRuntime.crash(e);
+            }
+        }
+    }
+
+    /**
+     * @return the query cache with its hit and miss counters, or null if it is disabled
+     */
+    public PackageQueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
+    private PackageQueryCache getQueryCache(int flags) {
+        PackageQueryCache cache = mQueryCache;
+        return cache != null && PackageQueryCache.isCacheable(flags) ? cache : null;
+    }
+
+    private PackageQueryCache getQueryCache(Intent intent, int flags) {
+        if (intent == null || intent.getSelector() != null) {
+            return null;
+        }
+        return getQueryCache(flags);
+    }
+
     public int checkPermission(String permission, String pkgName, int userId) {
         try {
             return getService().checkPermission(VirtualCore.get().isPluginEngine(), permission, pkgName, userId);
@@ -84,16 +142,46 @@ public class VPackageManager {
     }
 
     public PackageInfo getPackageInfo(String packageName, int flags, int userId) {
+        PackageQueryCache cache = getQueryCache(flags);
+        PackageQueryCache.Key key = null;
+        int generation = 0;
+        if (cache != null) {
+            key = new PackageQueryCache.Key(PackageQueryCache.GET_PACKAGE_INFO, packageName, flags, userId);
+            Object cached = cache.get(key);
+            if (cached != PackageQueryCache.MISS) {
+                return (PackageInfo) cached;
+            }
+            generation = cache.getGeneration();
+        }
         try {
-            return getService().getPackageInfo(packageName, flags, userId);
+            PackageInfo info = getService().getPackageInfo(packageName, flags, userId);
+            if (cache != null) {
+                cache.put(key, info, generation);
+            }
+            return info;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
     }
 
     public ResolveInfo resolveIntent(Intent intent, String resolvedType, int flags, int userId) {
+        PackageQueryCache cache = getQueryCache(intent, flags);
+        PackageQueryCache.Key key = null;
+        int generation = 0;
+        if (cache != null) {
+            key = new PackageQueryCache.Key(PackageQueryCache.RESOLVE_INTENT, intent, resolvedType, flags, userId);
+            Object cached = cache.get(key);
+            if (cached != PackageQueryCache.MISS) {
+                return (ResolveInfo) cached;
+            }
+            generation = cache.getGeneration();
+        }
         try {
-            return getService().resolveIntent(intent, resolvedType, flags, userId);
+            ResolveInfo info = getService().resolveIntent(intent, resolvedType, flags, userId);
+            if (cache != null) {
+                cache.put(key, info, generation);
+            }
+            return info;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
@@ -164,8 +252,24 @@ public class VPackageManager {
     }
 
     public List<ResolveInfo> queryIntentActivities(Intent intent, String resolvedType, int flags, int userId) {
+        PackageQueryCache cache = getQueryCache(intent, flags);
+        PackageQueryCache.Key key = null;
+        int generation = 0;
+        if (cache != null) {
+            key = new PackageQueryCache.Key(PackageQueryCache.QUERY_INTENT_ACTIVITIES, intent, resolvedType, flags, userId);
+            Object cached = cache.get(key);
+            if (cached != PackageQueryCache.MISS) {
+                // noinspection unchecked
+                return (List<ResolveInfo>) cached;
+            }
+            generation = cache.getGeneration();
+        }
         try {
-            return getService().queryIntentActivities(intent, resolvedType, flags, userId);
+            List<ResolveInfo> infos = getService().queryIntentActivities(intent, resolvedType, flags, userId);
+            if (cache != null) {
+                cache.put(key, infos, generation);
+            }
+            return infos;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
@@ -180,8 +284,23 @@ public class VPackageManager {
     }
 
     public ApplicationInfo getApplicationInfo(String packageName, int flags, int userId) {
+        PackageQueryCache cache = getQueryCache(flags);
+        PackageQueryCache.Key key = null;
+        int generation = 0;
+        if (cache != null) {
+            key = new PackageQueryCache.Key(PackageQueryCache.GET_APPLICATION_INFO, packageName, flags, userId);
+            Object cached = cache.get(key);
+            if (cached != PackageQueryCache.MISS) {
+                return (ApplicationInfo) cached;
+            }
+            generation = cache.getGeneration();
+        }
         try {
-            return getService().getApplicationInfo(packageName, flags, userId);
+            ApplicationInfo info = getService().getApplicationInfo(packageName, flags, userId);
+            if (cache != null) {
+                cache.put(key, info, generation);
+            }
+            return info;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
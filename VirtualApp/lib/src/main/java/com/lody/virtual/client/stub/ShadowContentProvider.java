@@ -29,10 +29,23 @@ public class ShadowContentProvider extends ContentProvider {
 	public Bundle call(String method, String arg, Bundle extras) {
 		if ("_VA_|_init_process_".equals(method)) {
 			return initProcess(extras);
+		} else if ("_VA_|_warm_up_".equals(method)) {
+			return warmUp();
 		}
 		return null;
 	}
 
+	/**
+	 * Start the virtual environment only, the process is bound to an app later by {@link #initProcess}.
+	 */
+	private Bundle warmUp() {
+		VirtualCore.get().waitStartup();
+		Bundle res = new Bundle();
+		BundleCompat.putBinder(res, "_VA_|_client_", VClient.get().asBinder());
+		res.putInt("_VA_|_pid_", Process.myPid());
+		return res;
+	}
+
 	private Bundle initProcess(Bundle extras) {
 		VirtualCore.get().waitStartup();
 		extras.setClassLoader(ClientConfig.class.getClassLoader());
@@ -1,20 +1,69 @@
 package com.lody.virtual.helper;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
 import android.os.Parcel;
 
+import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.os.BackgroundThread;
+
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * @author Lody
+ * <p>
+ * The state is written to a temp file, synced and renamed over the persistence file, the
+ * previous file is kept as a backup. A trailer with the length and the CRC32 of the data
+ * lets {@link #read()} tell a torn or corrupt file from one of another format, and fall
+ * back to the backup instead of calling {@link #onPersistenceFileDamage()}.
+ * <p>
+ * {@link #save()} writes on the calling thread, {@link #scheduleSave()} only marks the state
+ * dirty and a burst of changes is written once on the background thread.
  */
 public abstract class PersistenceLayer {
 
+    private static final String TAG = PersistenceLayer.class.getSimpleName();
+
+    private static final int TRAILER_MAGIC = 0x76706c31; // vpl1
+    private static final int TRAILER_SIZE = 4 + 8 + 4;
+    private static final long SAVE_DELAY = 500;
+
+    /**
+     * The layers with a scheduled save, for {@link #flushAll()}.
+     */
+    private static final Set<PersistenceLayer> sPending = new LinkedHashSet<>();
+
     private File mPersistenceFile;
 
+    private final Object mLock = new Object();
+    private final Object mWriteLock = new Object();
+    /**
+     * Incremented on every save request, a snapshot is only written if it is newer
+     * than the one on disk.
+     */
+    private long mGeneration;
+    private long mWrittenGeneration;
+    private boolean mScheduled;
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
     public PersistenceLayer(File persistenceFile) {
         this.mPersistenceFile = persistenceFile;
     }
@@ -32,6 +81,9 @@ public abstract class PersistenceLayer {
         return true;
     }
 
+    /**
+     * May be called on the background thread, after {@link #scheduleSave()}.
+     */
     public abstract void writePersistenceData(Parcel p);
 
     public abstract void readPersistenceData(Parcel p, int version);
@@ -39,15 +91,116 @@ public abstract class PersistenceLayer {
     public void onPersistenceFileDamage() {
     }
 
+    /**
+     * Write the state now, on the calling thread.
+     */
     public void save() {
+        long generation;
+        synchronized (mLock) {
+            generation = ++mGeneration;
+            cancelScheduledLocked();
+        }
+        write(generation);
+    }
+
+    /**
+     * Mark the state dirty, it is written on the background thread shortly after.
+     */
+    public void scheduleSave() {
+        synchronized (mLock) {
+            mGeneration++;
+            if (!mScheduled) {
+                mScheduled = true;
+                synchronized (sPending) {
+                    sPending.add(this);
+                }
+                getHandler().postDelayed(mWriter, SAVE_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Write the state now if a save is scheduled.
+     */
+    public void flush() {
+        long generation;
+        synchronized (mLock) {
+            if (!mScheduled) {
+                return;
+            }
+            generation = mGeneration;
+            cancelScheduledLocked();
+        }
+        write(generation);
+    }
+
+    /**
+     * Write all the scheduled saves now, before the process may be killed.
+     */
+    public static void flushAll() {
+        List<PersistenceLayer> layers;
+        synchronized (sPending) {
+            layers = new ArrayList<>(sPending);
+        }
+        for (PersistenceLayer layer : layers) {
+            layer.flush();
+        }
+    }
+
+    /**
+     * Flush the scheduled saves when the host goes to background or runs low on memory.
+     */
+    public static void systemReady(Context context) {
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // Covers UI_HIDDEN and all the levels above RUNNING_LOW.
+                if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                    flushAll();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                flushAll();
+            }
+        });
+    }
+
+    private static Handler getHandler() {
+        return BackgroundThread.getHandler();
+    }
+
+    private void cancelScheduledLocked() {
+        if (mScheduled) {
+            mScheduled = false;
+            getHandler().removeCallbacks(mWriter);
+            synchronized (sPending) {
+                sPending.remove(this);
+            }
+        }
+    }
+
+    private void write(long generation) {
         Parcel p = Parcel.obtain();
         try {
+            // Subclasses take their own locks here, so no lock of the layer is held.
             writeMagic(p);
             p.writeInt(getCurrentVersion());
             writePersistenceData(p);
-            FileOutputStream fos = new FileOutputStream(mPersistenceFile);
-            fos.write(p.marshall());
-            fos.close();
+            byte[] data = p.marshall();
+            synchronized (mWriteLock) {
+                if (generation <= mWrittenGeneration) {
+                    // A newer snapshot has been written meanwhile.
+                    return;
+                }
+                writeFile(data);
+                mWrittenGeneration = generation;
+            }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -55,18 +208,53 @@ public abstract class PersistenceLayer {
         }
     }
 
+    private void writeFile(byte[] data) throws IOException {
+        File tempFile = getTempFile();
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            DataOutputStream out = new DataOutputStream(fos);
+            out.write(data);
+            out.writeInt(data.length);
+            out.writeLong(crc.getValue());
+            out.writeInt(TRAILER_MAGIC);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        File backupFile = getBackupFile();
+        if (mPersistenceFile.exists() && !mPersistenceFile.renameTo(backupFile)) {
+            VLog.w(TAG, "Unable to back up %s", mPersistenceFile);
+        }
+        if (!tempFile.renameTo(mPersistenceFile)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + mPersistenceFile);
+        }
+    }
+
+    private File getTempFile() {
+        return new File(mPersistenceFile.getPath() + ".tmp");
+    }
+
+    private File getBackupFile() {
+        return new File(mPersistenceFile.getPath() + ".bak");
+    }
+
     public void read() {
-        File file = mPersistenceFile;
+        byte[] data = readData(mPersistenceFile);
+        if (data == null) {
+            data = readData(getBackupFile());
+            if (data != null) {
+                VLog.w(TAG, "Restored %s from the backup", mPersistenceFile);
+            }
+        }
+        if (data == null) {
+            return;
+        }
         Parcel p = Parcel.obtain();
         try {
-            FileInputStream fis = new FileInputStream(file);
-            byte[] bytes = new byte[(int) file.length()];
-            int len = fis.read(bytes);
-            fis.close();
-            if (len != bytes.length) {
-                throw new IOException("Unable to read Persistence file.");
-            }
-            p.unmarshall(bytes, 0, bytes.length);
+            p.unmarshall(data, 0, data.length);
             p.setDataPosition(0);
             if (!verifyMagic(p)) {
                 onPersistenceFileDamage();
@@ -75,11 +263,59 @@ public abstract class PersistenceLayer {
             int fileVersion = p.readInt();
             readPersistenceData(p, fileVersion);
         } catch (Exception e) {
-            if (!(e instanceof FileNotFoundException)) {
-                e.printStackTrace();
-            }
+            e.printStackTrace();
         } finally {
             p.recycle();
         }
     }
+
+    /**
+     * @return the data of the file without the trailer, or null if the file is missing,
+     * torn or corrupt. Files written before the trailer was added are returned whole.
+     */
+    private static byte[] readData(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Persistence file too large: " + length);
+            }
+            byte[] bytes = new byte[(int) length];
+            raf.readFully(bytes);
+            if (bytes.length < TRAILER_SIZE) {
+                return bytes.length == 0 ? null : bytes;
+            }
+            ByteBuffer trailer = ByteBuffer.wrap(bytes, bytes.length - TRAILER_SIZE, TRAILER_SIZE);
+            int dataLength = trailer.getInt();
+            long checksum = trailer.getLong();
+            if (trailer.getInt() != TRAILER_MAGIC) {
+                return bytes;
+            }
+            if (dataLength != bytes.length - TRAILER_SIZE) {
+                throw new IOException("Torn persistence file: " + file);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, dataLength);
+            if (crc.getValue() != checksum) {
+                throw new IOException("Corrupt persistence file: " + file);
+            }
+            byte[] data = new byte[dataLength];
+            System.arraycopy(bytes, 0, data, 0, dataLength);
+            return data;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            VLog.e(TAG, "Unable to read %s: %s", file, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
 }
@@ -16,6 +16,37 @@ public class ArrayUtils {
 		return longer;
 	}
 
+	/**
+	 * @return a copy of {@code array} with {@code item} appended, {@code array} may be null.
+	 */
+	public static String[] append(String[] array, String item) {
+		if (array == null) {
+			return new String[]{item};
+		}
+		String[] longer = new String[array.length + 1];
+		System.arraycopy(array, 0, longer, 0, array.length);
+		longer[array.length] = item;
+		return longer;
+	}
+
+	/**
+	 * @return a copy of {@code array} without the first occurrence of {@code item},
+	 * {@code array} itself if it does not contain it, or null if the copy is empty.
+	 */
+	public static String[] remove(String[] array, String item) {
+		int index = indexOf(array, item);
+		if (index == -1) {
+			return array;
+		}
+		if (array.length == 1) {
+			return null;
+		}
+		String[] shorter = new String[array.length - 1];
+		System.arraycopy(array, 0, shorter, 0, index);
+		System.arraycopy(array, index + 1, shorter, index, array.length - index - 1);
+		return shorter;
+	}
+
 	public static <T> boolean contains(T[] array, T value) {
 		return indexOf(array, value) != -1;
 	}
@@ -0,0 +1,140 @@
+package com.lody.virtual.helper.utils;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.Collection;
+
+/**
+ * @author Lody
+ * <p>
+ * Timeline of the phases of an app launch, in a ring buffer of the process.
+ * <p>
+ * The server records the process start, the client the bind of the application up to
+ * the first resumed activity. The server collects the buffers of all the processes in
+ * the Chrome trace event format, which opens in chrome://tracing and Perfetto, see
+ * {@link com.lody.virtual.client.ipc.VActivityManager#dumpLaunchTrace}.
+ * Timestamps are taken on the boot time clock, shared by all the processes.
+ * It is off unless enabled by {@link com.lody.virtual.client.core.SettingConfig#isLaunchTraceEnabled()}.
+ */
+public final class LaunchTrace {
+
+    private static final int CAPACITY = 512;
+
+    private static volatile boolean sEnabled;
+
+    private static final String[] sNames = new String[CAPACITY];
+    private static final String[] sArgs = new String[CAPACITY];
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final long[] sDurations = new long[CAPACITY];
+    private static final int[] sThreads = new int[CAPACITY];
+    /**
+     * Total number of recorded events, the last {@link #CAPACITY} ones are kept.
+     */
+    private static long sCount;
+
+    private LaunchTrace() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return the start time of a phase, to pass to {@link #end}
+     */
+    public static long begin() {
+        return sEnabled ? now() : 0;
+    }
+
+    /**
+     * Record a phase started by {@link #begin}.
+     *
+     * @param arg the app or process the phase is about, or null
+     */
+    public static void end(String name, String arg, long begin) {
+        if (sEnabled && begin != 0) {
+            record(name, arg, begin, now() - begin);
+        }
+    }
+
+    /**
+     * Record an event without duration.
+     */
+    public static void mark(String name, String arg) {
+        if (sEnabled) {
+            record(name, arg, now(), -1);
+        }
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    private static void record(String name, String arg, long time, long duration) {
+        int tid = Process.myTid();
+        synchronized (LaunchTrace.class) {
+            int i = (int) (sCount % CAPACITY);
+            sNames[i] = name;
+            sArgs[i] = arg;
+            sTimes[i] = time;
+            sDurations[i] = duration;
+            sThreads[i] = tid;
+            sCount++;
+        }
+    }
+
+    /**
+     * Dump the events of this process as comma separated trace events, oldest first.
+     *
+     * @param processName the name given to the process in the timeline
+     * @param reset       clear the buffer after it has been dumped
+     */
+    public static String dump(String processName, boolean reset) {
+        return dump(processName, null, reset);
+    }
+
+    /**
+     * @param targets only the events about these apps or processes, or null for all of them
+     */
+    public static String dump(String processName, Collection<String> targets, boolean reset) {
+        int pid = Process.myPid();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                .append(",\"tid\":").append(pid)
+                .append(",\"args\":{\"name\":").append(JSONObject.quote(processName)).append("}}");
+        synchronized (LaunchTrace.class) {
+            long first = Math.max(0, sCount - CAPACITY);
+            for (long n = first; n < sCount; n++) {
+                int i = (int) (n % CAPACITY);
+                if (targets != null && (sArgs[i] == null || !targets.contains(sArgs[i]))) {
+                    continue;
+                }
+                sb.append(",\n{\"name\":").append(JSONObject.quote(sNames[i]))
+                        .append(",\"cat\":\"launch\"");
+                if (sDurations[i] >= 0) {
+                    sb.append(",\"ph\":\"X\",\"dur\":").append(sDurations[i]);
+                } else {
+                    sb.append(",\"ph\":\"i\",\"s\":\"p\"");
+                }
+                sb.append(",\"ts\":").append(sTimes[i])
+                        .append(",\"pid\":").append(pid)
+                        .append(",\"tid\":").append(sThreads[i]);
+                if (sArgs[i] != null) {
+                    sb.append(",\"args\":{\"target\":").append(JSONObject.quote(sArgs[i])).append('}');
+                }
+                sb.append('}');
+            }
+            if (reset) {
+                sCount = 0;
+            }
+        }
+        return sb.toString();
+    }
+}
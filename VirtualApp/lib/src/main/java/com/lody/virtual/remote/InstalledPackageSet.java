@@ -0,0 +1,115 @@
+package com.lody.virtual.remote;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Lody
+ * <p>
+ * Versioned copy of the installed packages, with the users each of them is installed for.
+ * Pushed by the server to every process on change, so that the installation checks of the
+ * hooks are answered without a binder call.
+ */
+public final class InstalledPackageSet implements Parcelable {
+
+    /**
+     * Highest user id tracked by the bitmaps, the installation for higher users is unknown.
+     */
+    public static final int MAX_USER_ID = 62;
+    private static final long UNKNOWN_USERS = 1L << 63;
+
+    public static final int NOT_INSTALLED = 0;
+    public static final int INSTALLED = 1;
+    public static final int UNKNOWN = -1;
+
+    public final int version;
+    /**
+     * Bit u is set if the package is installed for user u.
+     */
+    private final HashMap<String, Long> mUserBitmaps;
+
+    public InstalledPackageSet(int version) {
+        this.version = version;
+        this.mUserBitmaps = new HashMap<>();
+    }
+
+    public void put(String packageName, int[] installedUsers) {
+        long bitmap = 0;
+        for (int userId : installedUsers) {
+            if (userId >= 0 && userId <= MAX_USER_ID) {
+                bitmap |= 1L << userId;
+            } else {
+                bitmap |= UNKNOWN_USERS;
+            }
+        }
+        mUserBitmaps.put(packageName, bitmap);
+    }
+
+    public boolean contains(String packageName) {
+        return packageName != null && mUserBitmaps.containsKey(packageName);
+    }
+
+    /**
+     * @return {@link #INSTALLED}, {@link #NOT_INSTALLED} or {@link #UNKNOWN} for the users above {@link #MAX_USER_ID}
+     */
+    public int isInstalledAsUser(int userId, String packageName) {
+        Long bitmap = packageName != null ? mUserBitmaps.get(packageName) : null;
+        if (bitmap == null) {
+            return NOT_INSTALLED;
+        }
+        if (userId < 0 || userId > MAX_USER_ID) {
+            return (bitmap & UNKNOWN_USERS) != 0 ? UNKNOWN : NOT_INSTALLED;
+        }
+        return (bitmap & (1L << userId)) != 0 ? INSTALLED : NOT_INSTALLED;
+    }
+
+    public int size() {
+        return mUserBitmaps.size();
+    }
+
+    /**
+     * @return true if both sets hold the same packages and users, whatever their version
+     */
+    public boolean hasSameContent(InstalledPackageSet other) {
+        return other != null && mUserBitmaps.equals(other.mUserBitmaps);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(this.version);
+        dest.writeInt(mUserBitmaps.size());
+        for (Map.Entry<String, Long> entry : mUserBitmaps.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeLong(entry.getValue());
+        }
+    }
+
+    protected InstalledPackageSet(Parcel in) {
+        this.version = in.readInt();
+        int size = in.readInt();
+        this.mUserBitmaps = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            mUserBitmaps.put(in.readString(), in.readLong());
+        }
+    }
+
+    public static final Creator<InstalledPackageSet> CREATOR = new Creator<InstalledPackageSet>() {
+        @Override
+        public InstalledPackageSet createFromParcel(Parcel source) {
+            return new InstalledPackageSet(source);
+        }
+
+        @Override
+        public InstalledPackageSet[] newArray(int size) {
+            return new InstalledPackageSet[size];
+        }
+    };
+}
@@ -0,0 +1,83 @@
+package com.lody.virtual.remote;
+
+import android.content.pm.ApplicationInfo;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.lody.virtual.helper.utils.ArrayUtils;
+
+/**
+ * @author Lody
+ * <p>
+ * What a launcher shows of an installed package, built by the server in one pass,
+ * see {@link com.lody.virtual.client.core.VirtualCore#getLauncherApps()}.
+ */
+public final class LauncherAppInfo implements Parcelable {
+
+    public String packageName;
+    public String label;
+    /**
+     * Whether the package has a launcher or info activity.
+     */
+    public boolean launchable;
+    public int[] installedUsers;
+    public int[] launchedUsers;
+    /**
+     * The application of the first installed user, to load the icon from.
+     */
+    public ApplicationInfo applicationInfo;
+    /**
+     * The last update time of the package, it changes whenever the icon or the label may change.
+     */
+    public long iconVersion;
+
+    public LauncherAppInfo(String packageName) {
+        this.packageName = packageName;
+    }
+
+    public boolean isInstalled(int userId) {
+        return ArrayUtils.contains(installedUsers, userId);
+    }
+
+    public boolean isLaunched(int userId) {
+        return ArrayUtils.contains(launchedUsers, userId);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(this.packageName);
+        dest.writeString(this.label);
+        dest.writeByte(this.launchable ? (byte) 1 : (byte) 0);
+        dest.writeIntArray(this.installedUsers);
+        dest.writeIntArray(this.launchedUsers);
+        dest.writeParcelable(this.applicationInfo, flags);
+        dest.writeLong(this.iconVersion);
+    }
+
+    protected LauncherAppInfo(Parcel in) {
+        this.packageName = in.readString();
+        this.label = in.readString();
+        this.launchable = in.readByte() != 0;
+        this.installedUsers = in.createIntArray();
+        this.launchedUsers = in.createIntArray();
+        this.applicationInfo = in.readParcelable(ApplicationInfo.class.getClassLoader());
+        this.iconVersion = in.readLong();
+    }
+
+    public static final Creator<LauncherAppInfo> CREATOR = new Creator<LauncherAppInfo>() {
+        @Override
+        public LauncherAppInfo createFromParcel(Parcel source) {
+            return new LauncherAppInfo(source);
+        }
+
+        @Override
+        public LauncherAppInfo[] newArray(int size) {
+            return new LauncherAppInfo[size];
+        }
+    };
+}
@@ -18,6 +18,7 @@ import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.ipc.ServiceManagerNative;
 import com.lody.virtual.client.stub.KeepAliveService;
 import com.lody.virtual.client.stub.StubManifest;
+import com.lody.virtual.helper.PersistenceLayer;
 import com.lody.virtual.helper.compat.BundleCompat;
 import com.lody.virtual.helper.compat.NotificationChannelCompat;
 import com.lody.virtual.helper.utils.ComponentUtils;
@@ -97,6 +98,9 @@ public final class BinderProvider extends ContentProvider {
         if (!VirtualCore.get().isStartup()) {
             return false;
         }
+        if (context != null) {
+            PersistenceLayer.systemReady(context);
+        }
 
         addService(ServiceManagerNative.INSTALLERSETTING, InstallerSettingService.get());
         VPackageManagerService.systemReady();
@@ -341,6 +341,29 @@ public class ActiveServices {
         }
     }
 
+    /**
+     * @return true if a service is started or bound in the process
+     */
+    boolean hasRunningServices(ProcessRecord process) {
+        UserSpace userSpace;
+        synchronized (mUserSpaces) {
+            userSpace = mUserSpaces.get(process.userId);
+        }
+        if (userSpace == null) {
+            return false;
+        }
+        int appId = VUserHandle.getAppId(process.vuid);
+        synchronized (userSpace.mRunningServices) {
+            for (RunningServiceData data : userSpace.mRunningServices.values()) {
+                if (VUserHandle.getAppId(data.info.applicationInfo.uid) == appId
+                        && data.info.processName.equals(process.processName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public List<ActivityManager.RunningServiceInfo> getServices(int userId) {
         UserSpace userSpace;
         synchronized (mUserSpaces) {
@@ -19,13 +19,14 @@ import com.lody.virtual.client.ipc.VActivityManager;
 import com.lody.virtual.client.stub.InstallerSetting;
 import com.lody.virtual.client.stub.StubManifest;
 import com.lody.virtual.helper.collection.SparseArray;
-import com.lody.virtual.helper.compat.ObjectsCompat;
 import com.lody.virtual.helper.utils.ArrayUtils;
 import com.lody.virtual.helper.utils.ClassUtils;
 import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.remote.AppTaskInfo;
 import com.lody.virtual.remote.StubActivityRecord;
+import com.lody.virtual.server.pm.VPackageManagerService;
+import com.lody.virtual.server.pm.parser.VPackage;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -54,8 +55,19 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
 
     /**
      * [Key] = TaskId [Value] = TaskRecord
+     * <p>
+     * Its lock is the lock of the whole stack: the tasks, their activities and the indexes below.
      */
     private final SparseArray<TaskRecord> mHistory = new SparseArray<>();
+    /**
+     * The activities of the tasks by token, written with the stack locked and read without lock.
+     */
+    private final Map<IBinder, ActivityRecord> mActivitiesByToken = new ConcurrentHashMap<>();
+    /**
+     * The tasks by (userId, affinity) and by (userId, root component), in taskId order.
+     */
+    private final Map<TaskKey, List<TaskRecord>> mTasksByAffinity = new HashMap<>();
+    private final Map<TaskKey, List<TaskRecord>> mTasksByRoot = new HashMap<>();
     private final List<ActivityRecord> mLaunchingActivities = new ArrayList<>();
     private final Map<ActivityInfo, IBinder> mExcludeRecentActivityRecord = new HashMap<>();
     private final Map<ActivityRecord, LaunchingActivity> pendingNewIntents = new ConcurrentHashMap<>();
@@ -90,45 +102,108 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
         }
     }
 
-    private TaskRecord findTaskByAffinityLocked(int userId, String affinity) {
-        for (int i = 0; i < this.mHistory.size(); i++) {
-            TaskRecord r = this.mHistory.valueAt(i);
-            if (userId == r.userId && affinity.equals(r.affinity)) {
-                return r;
-            }
+    private static final class TaskKey {
+        final int userId;
+        final Object name;
+
+        TaskKey(int userId, Object name) {
+            this.userId = userId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TaskKey)) return false;
+            TaskKey key = (TaskKey) o;
+            return userId == key.userId && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * userId + name.hashCode();
         }
-        return null;
+    }
+
+    private static void addToIndex(Map<TaskKey, List<TaskRecord>> index, TaskKey key, TaskRecord task) {
+        List<TaskRecord> tasks = index.get(key);
+        if (tasks == null) {
+            tasks = new ArrayList<>(1);
+            index.put(key, tasks);
+        }
+        int i = 0;
+        while (i < tasks.size() && tasks.get(i).taskId < task.taskId) {
+            i++;
+        }
+        tasks.add(i, task);
+    }
+
+    private static void removeFromIndex(Map<TaskKey, List<TaskRecord>> index, TaskKey key, TaskRecord task) {
+        List<TaskRecord> tasks = index.get(key);
+        if (tasks != null && tasks.remove(task) && tasks.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static TaskKey rootKey(TaskRecord task) {
+        ComponentName root = task.taskRoot != null ? task.taskRoot.getComponent() : null;
+        return root != null ? new TaskKey(task.userId, root) : null;
+    }
+
+    private void addTaskLocked(TaskRecord task) {
+        mHistory.put(task.taskId, task);
+        if (task.affinity != null) {
+            addToIndex(mTasksByAffinity, new TaskKey(task.userId, task.affinity), task);
+        }
+        TaskKey rootKey = rootKey(task);
+        if (rootKey != null) {
+            addToIndex(mTasksByRoot, rootKey, task);
+        }
+    }
+
+    private void removeTaskLocked(TaskRecord task) {
+        mHistory.remove(task.taskId);
+        if (task.affinity != null) {
+            removeFromIndex(mTasksByAffinity, new TaskKey(task.userId, task.affinity), task);
+        }
+        TaskKey rootKey = rootKey(task);
+        if (rootKey != null) {
+            removeFromIndex(mTasksByRoot, rootKey, task);
+        }
+        for (ActivityRecord r : task.activities) {
+            removeActivityTokenLocked(r);
+        }
+    }
+
+    private void removeActivityTokenLocked(ActivityRecord r) {
+        if (r.token != null && mActivitiesByToken.get(r.token) == r) {
+            mActivitiesByToken.remove(r.token);
+        }
+    }
+
+    private TaskRecord findTaskByAffinityLocked(int userId, String affinity) {
+        List<TaskRecord> tasks = mTasksByAffinity.get(new TaskKey(userId, affinity));
+        return tasks != null ? tasks.get(0) : null;
     }
 
     private TaskRecord findTaskByIntentLocked(int userId, Intent intent) {
-        for (int i = 0; i < this.mHistory.size(); i++) {
-            TaskRecord r = this.mHistory.valueAt(i);
-            if (userId == r.userId && r.taskRoot != null
-                    && ObjectsCompat.equals(intent.getComponent(), r.taskRoot.getComponent())) {
-                return r;
-            }
+        ComponentName component = intent.getComponent();
+        if (component == null) {
+            return null;
         }
-        return null;
+        List<TaskRecord> tasks = mTasksByRoot.get(new TaskKey(userId, component));
+        return tasks != null ? tasks.get(0) : null;
     }
 
+    /**
+     * Does not need the stack lock.
+     */
     private ActivityRecord findActivityByToken(int userId, IBinder token) {
-        ActivityRecord target = null;
-        if (token != null) {
-            for (int i = 0; i < this.mHistory.size(); i++) {
-                TaskRecord task = this.mHistory.valueAt(i);
-                if (task.userId != userId) {
-                    continue;
-                }
-                synchronized (task.activities) {
-                    for (ActivityRecord r : task.activities) {
-                        if (r.token == token) {
-                            target = r;
-                        }
-                    }
-                }
-            }
+        if (token == null) {
+            return null;
         }
-        return target;
+        ActivityRecord r = mActivitiesByToken.get(token);
+        return r != null && r.task.userId == userId ? r : null;
     }
 
     /**
@@ -153,7 +228,7 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
                 }
             }
             if (!taskAlive) {
-                mHistory.removeAt(N);
+                removeTaskLocked(task);
             }
         }
     }
@@ -163,14 +238,12 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             int N = mHistory.size();
             while (N-- > 0) {
                 TaskRecord task = mHistory.valueAt(N);
-                synchronized (task.activities) {
-                    for (ActivityRecord r : task.activities) {
-                        Log.e("wxd", " finishActivity : " + r.component);
-                        try {
-                            r.process.client.finishActivity(r.token);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                for (ActivityRecord r : task.activities) {
+                    Log.e("wxd", " finishActivity : " + r.component);
+                    try {
+                        r.process.client.finishActivity(r.token);
+                    } catch (Exception e) {
+                        e.printStackTrace();
                     }
                 }
             }
@@ -183,15 +256,13 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             int N = mHistory.size();
             while (N-- > 0) {
                 TaskRecord task = mHistory.valueAt(N);
-                synchronized (task.activities) {
-                    for (ActivityRecord r : task.activities) {
-                        if (r.process.pid == record.pid) {
-                            Log.e("wxd", " finishActivity : " + r.component);
-                            try {
-                                r.process.client.finishActivity(r.token);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
+                for (ActivityRecord r : task.activities) {
+                    if (r.process.pid == record.pid) {
+                        Log.e("wxd", " finishActivity : " + r.component);
+                        try {
+                            r.process.client.finishActivity(r.token);
+                        } catch (Exception e) {
+                            e.printStackTrace();
                         }
                     }
                 }
@@ -200,14 +271,6 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
 
-    int startActivitiesLocked(int userId, Intent[] intents, ActivityInfo[] infos, String[] resolvedTypes, IBinder resultTo, Bundle options, int callingUid, int callingPid) {
-        for (int i = 0; i < intents.length; i++) {
-            startActivityLocked(userId, intents[i], infos[i], resultTo, options, null, 0, callingUid, callingPid);
-        }
-        return 0;
-    }
-
-
     private boolean isAllowUseSourceTask(ActivityRecord source, ActivityInfo info, int userId, String affinity) {
         if (source == null) {
             return false;
@@ -224,220 +287,238 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
         return true;
     }
 
+    /**
+     * Where the activity goes is decided under the stack lock as a whole, so that two starts
+     * into the same task or affinity see each other. The calls to the system and to the apps
+     * that the decision asks for, the start of the target process and the final start in the
+     * host run after it is released, so that a slow app does not hold back the whole stack.
+     */
     int startActivityLocked(int userId, Intent intent, ActivityInfo info, IBinder resultTo, Bundle options,
                             String resultWho, int requestCode, int callingUid, int callingPid) {
+        ActivityRecord sourceRecord;
+        TaskRecord sourceTask = null;
+        TaskRecord reuseTask = null;
+        int mLauncherFlags = 0;
+        ActivityRecord targetRecord = null;
+        List<ActivityRecord> finishing = null;
+        ActivityRecord newIntentRecord = null;
+        boolean done = false;
         synchronized (mHistory) {
             optimizeTasksLocked();
-        }
-        ActivityRecord sourceRecord = findActivityByToken(userId, resultTo);
-        if (sourceRecord == null) {
-            resultTo = null;
-        }
-        String affinity = ComponentUtils.getTaskAffinity(info);
-        int mLauncherFlags = 0;
-        boolean newTask = containFlags(intent, Intent.FLAG_ACTIVITY_NEW_TASK);
-        boolean clearTop = containFlags(intent, Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        boolean clearTask = containFlags(intent, Intent.FLAG_ACTIVITY_CLEAR_TASK);
-        boolean multipleTask = newTask && containFlags(intent, Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
-        boolean reorderToFront = containFlags(intent, Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
-        boolean singleTop = containFlags(intent, Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        boolean alwaysRetainTaskState = (info.flags & ActivityInfo.FLAG_ALWAYS_RETAIN_TASK_STATE) != 0;
-
-        if ((info.flags & ActivityInfo.FLAG_EXCLUDE_FROM_RECENTS) != 0
-                || containFlags(intent, Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS)) {
-            if (info.packageName.equals(InstallerSetting.MDM_CLIENT_PKG) &&
-            info.name.contains("ForceControlActivity")) {
-                synchronized (mExcludeRecentActivityRecord) {
-                    if (!mExcludeRecentActivityRecord.containsKey(info)) {
-                        mExcludeRecentActivityRecord.put(info, null);
+            sourceRecord = findActivityByToken(userId, resultTo);
+            if (sourceRecord == null) {
+                resultTo = null;
+            }
+            String affinity = ComponentUtils.getTaskAffinity(info);
+            boolean newTask = containFlags(intent, Intent.FLAG_ACTIVITY_NEW_TASK);
+            boolean clearTop = containFlags(intent, Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            boolean clearTask = containFlags(intent, Intent.FLAG_ACTIVITY_CLEAR_TASK);
+            boolean multipleTask = newTask && containFlags(intent, Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
+            boolean reorderToFront = containFlags(intent, Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
+            boolean singleTop = containFlags(intent, Intent.FLAG_ACTIVITY_SINGLE_TOP);
+            boolean alwaysRetainTaskState = (info.flags & ActivityInfo.FLAG_ALWAYS_RETAIN_TASK_STATE) != 0;
+
+            if ((info.flags & ActivityInfo.FLAG_EXCLUDE_FROM_RECENTS) != 0
+                    || containFlags(intent, Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS)) {
+                if (info.packageName.equals(InstallerSetting.MDM_CLIENT_PKG) &&
+                info.name.contains("ForceControlActivity")) {
+                    synchronized (mExcludeRecentActivityRecord) {
+                        if (!mExcludeRecentActivityRecord.containsKey(info)) {
+                            mExcludeRecentActivityRecord.put(info, null);
+                        }
                     }
+                } else {
+                    mLauncherFlags |= Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS;
                 }
-            } else {
-                mLauncherFlags |= Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS;
             }
-        }
 
-        boolean notStartToFront = false;
-        if (clearTop || singleTop || clearTask) {
-            notStartToFront = true;
-        }
-        if (!newTask) {
-            clearTask = false;
-        }
-        TaskRecord sourceTask = null;
-        if (sourceRecord != null) {
-            sourceTask = sourceRecord.task;
-        }
+            boolean notStartToFront = false;
+            if (clearTop || singleTop || clearTask) {
+                notStartToFront = true;
+            }
+            if (!newTask) {
+                clearTask = false;
+            }
+            if (sourceRecord != null) {
+                sourceTask = sourceRecord.task;
+            }
 
-        TaskRecord reuseTask = null;
-        if (!multipleTask) {
-            switch (info.launchMode) {
-                case LAUNCH_SINGLE_INSTANCE: {
-                    reuseTask = findTaskByAffinityLocked(userId, affinity);
-                    break;
-                }
-                case LAUNCH_SINGLE_TASK:
-                case LAUNCH_MULTIPLE:
-                case LAUNCH_SINGLE_TOP: {
-                    if (newTask || sourceTask == null) {
+            if (!multipleTask) {
+                switch (info.launchMode) {
+                    case LAUNCH_SINGLE_INSTANCE: {
                         reuseTask = findTaskByAffinityLocked(userId, affinity);
-                    } else if (isAllowUseSourceTask(sourceRecord, info, userId, affinity)) {
-                        if ((info.launchMode == LAUNCH_SINGLE_TASK) &&
-                                (sourceRecord.task != null) &&
-                                (!sourceRecord.task.affinity.equals(affinity))) {
+                        break;
+                    }
+                    case LAUNCH_SINGLE_TASK:
+                    case LAUNCH_MULTIPLE:
+                    case LAUNCH_SINGLE_TOP: {
+                        if (newTask || sourceTask == null) {
                             reuseTask = findTaskByAffinityLocked(userId, affinity);
-                        } else {
-                            reuseTask = sourceTask;
+                        } else if (isAllowUseSourceTask(sourceRecord, info, userId, affinity)) {
+                            if ((info.launchMode == LAUNCH_SINGLE_TASK) &&
+                                    (sourceRecord.task != null) &&
+                                    (!sourceRecord.task.affinity.equals(affinity))) {
+                                reuseTask = findTaskByAffinityLocked(userId, affinity);
+                            } else {
+                                reuseTask = sourceTask;
+                            }
                         }
-                    }
-                    break;
-                }
-
-            }
-        }
-        if (reuseTask == null || reuseTask.isFinishing()) {
-            return startActivityInNewTaskLocked(mLauncherFlags, userId, intent, info, options, callingUid, callingPid);
-        }
-        mAM.moveTaskToFront(reuseTask.taskId, 0);
-
-        /*
-         * 一个APP的界面已经打开，我们按Home，再从桌面打开App，不会重新启动App的界面，
-         * 而是直接仅仅把界面切到前台。
-         *
-         */
-        boolean startTaskToFront = !notStartToFront
-                && ComponentUtils.intentFilterEquals(reuseTask.taskRoot, intent)
-                && reuseTask.taskRoot.getFlags() == intent.getFlags();
-
-        ActivityRecord notifyNewIntentActivityRecord = null;
-        boolean marked = false;
-        ComponentName component = ComponentUtils.toComponentName(info);
-        if (info.launchMode == LAUNCH_SINGLE_INSTANCE) {
-            synchronized (reuseTask.activities) {
-                for (ActivityRecord r : reuseTask.activities) {
-                    if (r.component.equals(component)) {
-                        notifyNewIntentActivityRecord = r;
                         break;
                     }
+
                 }
             }
-        }
-        boolean notReorderToFront = false;
-        if (info.launchMode == LAUNCH_SINGLE_TASK || clearTop) {
-            synchronized (reuseTask.activities) {
-                notReorderToFront = true;
+            if (reuseTask != null && reuseTask.isFinishing()) {
+                reuseTask = null;
+            }
+            if (reuseTask == null) {
+                targetRecord = newActivityRecord(intent, info, null, userId);
+            } else {
                 /*
-                 * (1）如果当前task包含这个Activity，这个Activity以上的Activity出栈，这个Activity到达栈顶。
+                 * 一个APP的界面已经打开，我们按Home，再从桌面打开App，不会重新启动App的界面，
+                 * 而是直接仅仅把界面切到前台。
+                 *
                  */
-                int N = reuseTask.activities.size();
-                while (N-- > 0) {
-                    ActivityRecord r = reuseTask.activities.get(N);
-                    if (!r.marked && r.component.equals(component)) {
-                        notifyNewIntentActivityRecord = r;
-                        marked = true;
-                        break;
+                boolean startTaskToFront = !notStartToFront
+                        && ComponentUtils.intentFilterEquals(reuseTask.taskRoot, intent)
+                        && reuseTask.taskRoot.getFlags() == intent.getFlags();
+
+                ActivityRecord notifyNewIntentActivityRecord = null;
+                boolean marked = false;
+                ComponentName component = ComponentUtils.toComponentName(info);
+                if (info.launchMode == LAUNCH_SINGLE_INSTANCE) {
+                    for (ActivityRecord r : reuseTask.activities) {
+                        if (r.component.equals(component)) {
+                            notifyNewIntentActivityRecord = r;
+                            break;
+                        }
                     }
                 }
+                boolean notReorderToFront = false;
+                if (info.launchMode == LAUNCH_SINGLE_TASK || clearTop) {
+                    notReorderToFront = true;
+                    /*
+                     * (1）如果当前task包含这个Activity，这个Activity以上的Activity出栈，这个Activity到达栈顶。
+                     */
+                    int N = reuseTask.activities.size();
+                    while (N-- > 0) {
+                        ActivityRecord r = reuseTask.activities.get(N);
+                        if (!r.marked && r.component.equals(component)) {
+                            notifyNewIntentActivityRecord = r;
+                            marked = true;
+                            break;
+                        }
+                    }
 
-                if (marked) {
-                    while (N++ < reuseTask.activities.size() - 1) {
-                        reuseTask.activities.get(N).marked = true;
+                    if (marked) {
+                        while (N++ < reuseTask.activities.size() - 1) {
+                            reuseTask.activities.get(N).marked = true;
+                        }
+                        /*
+                         *  处理 ClearTop:
+                         * （2）如果这个Activity是standard模式，这个Activity也出栈，并且重新实例化到达栈顶。
+                         */
+                        if (clearTop && info.launchMode == LAUNCH_MULTIPLE) {
+                            notifyNewIntentActivityRecord.marked = true;
+                            notifyNewIntentActivityRecord = null;
+                        }
                     }
+                }
+                ActivityRecord pendingActivityRecorder = null;
+                if (info.launchMode == LAUNCH_SINGLE_TOP || singleTop) {
+                    notReorderToFront = true;
                     /*
-                     *  处理 ClearTop:
-                     * （2）如果这个Activity是standard模式，这个Activity也出栈，并且重新实例化到达栈顶。
+                     * 打开的Activity如果在栈顶，则不创建新的实例，并且会触发onNewIntent事件。
                      */
-                    if (clearTop && info.launchMode == LAUNCH_MULTIPLE) {
-                        notifyNewIntentActivityRecord.marked = true;
-                        notifyNewIntentActivityRecord = null;
+                    ActivityRecord top = reuseTask.getTopActivityRecord();
+                    if (top != null && !top.marked && top.component.equals(component)) {
+                        notifyNewIntentActivityRecord = top;
+                    } else {
+                        // mark starting activity
+                        synchronized (mLaunchingActivities) {
+                            for (ActivityRecord launchingActivity : mLaunchingActivities) {
+                                if (!launchingActivity.marked && launchingActivity.component.equals(component)) {
+                                    pendingActivityRecorder = launchingActivity;
+                                    break;
+                                }
+                            }
+                        }
                     }
                 }
-            }
-        }
-        ActivityRecord pendingActivityRecorder = null;
-        if (info.launchMode == LAUNCH_SINGLE_TOP || singleTop) {
-            notReorderToFront = true;
-            /*
-             * 打开的Activity如果在栈顶，则不创建新的实例，并且会触发onNewIntent事件。
-             */
-            ActivityRecord top = reuseTask.getTopActivityRecord();
-            if (top != null && !top.marked && top.component.equals(component)) {
-                notifyNewIntentActivityRecord = top;
-            } else {
-                // mark starting activity
-                synchronized (mLaunchingActivities) {
-                    for (ActivityRecord launchingActivity : mLaunchingActivities) {
-                        if (!launchingActivity.marked && launchingActivity.component.equals(component)) {
-                            pendingActivityRecorder = launchingActivity;
-                            break;
+                if (reorderToFront) {
+                    ActivityRecord top = reuseTask.getTopActivityRecord();
+                    if (top.component.equals(component)) {
+                        notifyNewIntentActivityRecord = top;
+                    } else {
+                        /*
+                         * 由于无法直接实现将要启动的Activity从栈中拉到栈顶，
+                         * 我们直接将它finish掉，并在栈顶重新启动。
+                         * 然而，某些Activity不能这样做（典例：网易新闻分享到微博然后点取消）
+                         * 好在还可以workaround之。
+                         */
+                        int N = reuseTask.activities.size();
+                        while (N-- > 0) {
+                            ActivityRecord r = reuseTask.activities.get(N);
+                            if (r.component.equals(component)) {
+                                if (notReorderToFront) {
+                                    notifyNewIntentActivityRecord = r;
+                                } else {
+                                    r.marked = true;
+                                    marked = true;
+                                }
+                                break;
+                            }
                         }
                     }
                 }
-            }
-        }
-        if (reorderToFront) {
-            ActivityRecord top = reuseTask.getTopActivityRecord();
-            if (top.component.equals(component)) {
-                notifyNewIntentActivityRecord = top;
-            } else {
-                /*
-                 * 由于无法直接实现将要启动的Activity从栈中拉到栈顶，
-                 * 我们直接将它finish掉，并在栈顶重新启动。
-                 * 然而，某些Activity不能这样做（典例：网易新闻分享到微博然后点取消）
-                 * 好在还可以workaround之。
-                 */
-                synchronized (reuseTask.activities) {
-                    int N = reuseTask.activities.size();
-                    while (N-- > 0) {
-                        ActivityRecord r = reuseTask.activities.get(N);
-                        if (r.component.equals(component)) {
-                            if (notReorderToFront) {
-                                notifyNewIntentActivityRecord = r;
-                            } else {
-                                r.marked = true;
-                                marked = true;
-                            }
-                            break;
+                if (clearTask) {
+                    for (ActivityRecord r : reuseTask.activities) {
+                        r.marked = true;
+                    }
+                    marked = true;
+                }
+                if (marked) {
+                    finishing = getMarkedActivitiesLocked();
+                }
+                if (notifyNewIntentActivityRecord != null) {
+                    newIntentRecord = notifyNewIntentActivityRecord;
+                    done = !notifyNewIntentActivityRecord.marked;
+                } else if (pendingActivityRecorder != null) {
+                    if (sourceRecord == null) {
+                        sourceRecord = pendingActivityRecorder;
+                    }
+                    synchronized (mLaunchingActivities) {
+                        LaunchingActivity launchingActivity = pendingNewIntents.get(sourceRecord);
+                        if (launchingActivity == null) {
+                            launchingActivity = new LaunchingActivity(pendingActivityRecorder.component);
+                            pendingNewIntents.put(sourceRecord, launchingActivity);
                         }
+                        launchingActivity.pendingNewIntents.add(new PendingNewIntent(userId, sourceRecord, intent));
                     }
+                    done = true;
                 }
-            }
-        }
-        if (clearTask) {
-            synchronized (reuseTask.activities) {
-                for (ActivityRecord r : reuseTask.activities) {
-                    r.marked = true;
+                if (startTaskToFront) {
+                    done = true;
+                }
+                if (!done) {
+                    // Registered as launching before the lock is released, so that a following
+                    // single top start of the same activity waits for it instead of starting another.
+                    targetRecord = newActivityRecord(intent, info, resultTo, userId);
                 }
             }
-            marked = true;
         }
-        if (marked) {
-            finishMarkedActivity();
+        if (reuseTask == null) {
+            return startActivityInNewTask(mLauncherFlags, userId, targetRecord, intent, info, options, callingUid);
         }
-        if (notifyNewIntentActivityRecord != null) {
-            deliverNewIntentLocked(userId, sourceRecord, notifyNewIntentActivityRecord, intent);
-            if (!notifyNewIntentActivityRecord.marked) {
-                return 0;
-            }
-        } else if (pendingActivityRecorder != null) {
-            if (sourceRecord == null) {
-                sourceRecord = pendingActivityRecorder;
-            }
-            synchronized (mLaunchingActivities) {
-                LaunchingActivity launchingActivity = pendingNewIntents.get(sourceRecord);
-                if (launchingActivity == null) {
-                    launchingActivity = new LaunchingActivity(pendingActivityRecorder.component);
-                    pendingNewIntents.put(sourceRecord, launchingActivity);
-                }
-                launchingActivity.pendingNewIntents.add(new PendingNewIntent(userId, sourceRecord, intent));
-            }
-            return 0;
+        mAM.moveTaskToFront(reuseTask.taskId, 0);
+        finishActivities(finishing);
+        if (newIntentRecord != null) {
+            deliverNewIntentLocked(userId, sourceRecord, newIntentRecord, intent);
         }
-        if (startTaskToFront) {
+        if (done) {
             return 0;
         }
-        ActivityRecord targetRecord = newActivityRecord(intent, info, resultTo, userId);
-        Intent destIntent = startActivityProcess(userId, targetRecord, intent, info, callingUid, callingPid);
+        Intent destIntent = startActivityProcess(userId, targetRecord, intent, info, callingUid);
 
         if (destIntent != null) {
             destIntent.addFlags(mLauncherFlags);
@@ -445,7 +526,9 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             if (sourceTask == reuseTask) {
                 startFrom = sourceRecord;
             } else {
-                startFrom = reuseTask.getTopActivityRecord(true);
+                synchronized (mHistory) {
+                    startFrom = reuseTask.getTopActivityRecord(true);
+                }
             }
             startActivityFromSourceTask(startFrom.process, startFrom.token, destIntent, resultWho, requestCode, options);
             return 0;
@@ -468,9 +551,8 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
 
-    private int startActivityInNewTaskLocked(int launcherFlags, final int userId, Intent intent, final ActivityInfo info, final Bundle options, int callingUid, int callingPid) {
-        ActivityRecord targetRecord = newActivityRecord(intent, info, null, userId);
-        final Intent destIntent = startActivityProcess(userId, targetRecord, intent, info, callingUid, callingPid);
+    private int startActivityInNewTask(int launcherFlags, final int userId, ActivityRecord targetRecord, Intent intent, final ActivityInfo info, final Bundle options, int callingUid) {
+        final Intent destIntent = startActivityProcess(userId, targetRecord, intent, info, callingUid);
         if (destIntent != null) {
             destIntent.addFlags(launcherFlags);
             destIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -489,8 +571,10 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             }
             return 0;
         } else {
-            if (mLaunchingActivities.remove(targetRecord)) {
-                pendingNewIntents.remove(targetRecord);
+            synchronized (mLaunchingActivities) {
+                if (mLaunchingActivities.remove(targetRecord)) {
+                    pendingNewIntents.remove(targetRecord);
+                }
             }
             return -1;
         }
@@ -498,24 +582,41 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
     private void finishMarkedActivity() {
+        List<ActivityRecord> marked;
         synchronized (mHistory) {
-            int N = mHistory.size();
-            while (N-- > 0) {
-                final TaskRecord task = mHistory.valueAt(N);
-                synchronized (task.activities) {
-                    for (ActivityRecord r : task.activities) {
-                        if (!r.marked) {
-                            continue;
-                        }
-                        try {
-                            r.process.client.finishActivity(r.token);
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
-                    }
+            marked = getMarkedActivitiesLocked();
+        }
+        finishActivities(marked);
+    }
+
+    private List<ActivityRecord> getMarkedActivitiesLocked() {
+        List<ActivityRecord> marked = new ArrayList<>();
+        int N = mHistory.size();
+        while (N-- > 0) {
+            final TaskRecord task = mHistory.valueAt(N);
+            for (ActivityRecord r : task.activities) {
+                if (r.marked) {
+                    marked.add(r);
                 }
             }
         }
+        return marked;
+    }
+
+    /**
+     * Called without the stack locked, the apps are called one by one.
+     */
+    private void finishActivities(List<ActivityRecord> activities) {
+        if (activities == null) {
+            return;
+        }
+        for (ActivityRecord r : activities) {
+            try {
+                r.process.client.finishActivity(r.token);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public boolean finishActivityAffinity(int userId, IBinder token) {
@@ -525,14 +626,12 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
                 return false;
             }
             String taskAffinity = ComponentUtils.getTaskAffinity(r.info);
-            synchronized (r.task.activities) {
-                for (int index = r.task.activities.indexOf(r); index >= 0; --index) {
-                    ActivityRecord cur = r.task.activities.get(index);
-                    if (!ComponentUtils.getTaskAffinity(cur.info).equals(taskAffinity)) {
-                        break;
-                    }
-                    cur.marked = true;
+            for (int index = r.task.activities.indexOf(r); index >= 0; --index) {
+                ActivityRecord cur = r.task.activities.get(index);
+                if (!ComponentUtils.getTaskAffinity(cur.info).equals(taskAffinity)) {
+                    break;
                 }
+                cur.marked = true;
             }
         }
         finishMarkedActivity();
@@ -583,21 +682,30 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
         boolean isFloating = false;
         boolean isTranslucent = false;
         boolean showWallpaper = false;
-        try {
-            int[] R_Styleable_Window = R_Hide.styleable.Window.get();
-            int R_Styleable_Window_windowIsTranslucent = R_Hide.styleable.Window_windowIsTranslucent.get();
-            int R_Styleable_Window_windowIsFloating = R_Hide.styleable.Window_windowIsFloating.get();
-            int R_Styleable_Window_windowShowWallpaper = R_Hide.styleable.Window_windowShowWallpaper.get();
-
-            AttributeCache.Entry ent = AttributeCache.instance().get(targetInfo.packageName, targetInfo.theme,
-                    R_Styleable_Window);
-            if (ent != null && ent.array != null) {
-                showWallpaper = ent.array.getBoolean(R_Styleable_Window_windowShowWallpaper, false);
-                isTranslucent = ent.array.getBoolean(R_Styleable_Window_windowIsTranslucent, false);
-                isFloating = ent.array.getBoolean(R_Styleable_Window_windowIsFloating, false);
+        int windowStyle = VPackageManagerService.get().getActivityWindowStyle(
+                ComponentUtils.toComponentName(targetInfo));
+        if (windowStyle != VPackage.ActivityComponent.WINDOW_STYLE_UNKNOWN) {
+            isFloating = (windowStyle & VPackage.ActivityComponent.WINDOW_IS_FLOATING) != 0;
+            isTranslucent = (windowStyle & VPackage.ActivityComponent.WINDOW_IS_TRANSLUCENT) != 0;
+            showWallpaper = (windowStyle & VPackage.ActivityComponent.WINDOW_SHOW_WALLPAPER) != 0;
+        } else {
+            // The style could not be resolved when the package was parsed.
+            try {
+                int[] R_Styleable_Window = R_Hide.styleable.Window.get();
+                int R_Styleable_Window_windowIsTranslucent = R_Hide.styleable.Window_windowIsTranslucent.get();
+                int R_Styleable_Window_windowIsFloating = R_Hide.styleable.Window_windowIsFloating.get();
+                int R_Styleable_Window_windowShowWallpaper = R_Hide.styleable.Window_windowShowWallpaper.get();
+
+                AttributeCache.Entry ent = AttributeCache.instance().get(targetInfo.packageName, targetInfo.theme,
+                        R_Styleable_Window);
+                if (ent != null && ent.array != null) {
+                    showWallpaper = ent.array.getBoolean(R_Styleable_Window_windowShowWallpaper, false);
+                    isTranslucent = ent.array.getBoolean(R_Styleable_Window_windowIsTranslucent, false);
+                    isFloating = ent.array.getBoolean(R_Styleable_Window_windowIsFloating, false);
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
             }
-        } catch (Throwable e) {
-            e.printStackTrace();
         }
 
         boolean isDialogStyle = isFloating || isTranslucent || showWallpaper;
@@ -608,10 +716,10 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
         }
     }
 
-    private Intent startActivityProcess(int userId, ActivityRecord targetRecord, Intent intent, ActivityInfo info, int callingUid, int callingPid) {
+    private Intent startActivityProcess(int userId, ActivityRecord targetRecord, Intent intent, ActivityInfo info, int callingUid) {
         //TODO 以前是为了实现：A调用B，B结束后是返回桌面，不是返回A
 
-        ProcessRecord targetApp = mService.startProcessIfNeedLocked(info.processName, userId, info.packageName, -1, callingUid, VActivityManager.PROCESS_TYPE_ACTIVITY);
+        ProcessRecord targetApp = mService.startActivityProcess(info.processName, userId, info.packageName, callingUid);
         if (targetApp == null) {
             return null;
         }
@@ -646,7 +754,7 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             if (task == null) {
                 boolean excludeRecent = (record.info.flags & ActivityInfo.FLAG_EXCLUDE_FROM_RECENTS) != 0;
                 task = new TaskRecord(taskId, record.userId, ComponentUtils.getTaskAffinity(record.info), record.intent, excludeRecent);
-                mHistory.put(taskId, task);
+                addTaskLocked(task);
                 Intent intent = new Intent(Constants.ACTION_NEW_TASK_CREATED);
                 intent.putExtra(Constants.EXTRA_USER_HANDLE, record.userId);
                 intent.putExtra(Constants.EXTRA_PACKAGE_NAME, record.info.packageName);
@@ -662,9 +770,8 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
                 }
             }
 
-            synchronized (task.activities) {
-                task.activities.add(record);
-            }
+            task.activities.add(record);
+            mActivitiesByToken.put(token, record);
         }
         if (launchingActivity != null && launchingActivity.Match(record.component)) {
             for (PendingNewIntent pendingNewIntent : launchingActivity.pendingNewIntents) {
@@ -673,16 +780,15 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
         }
     }
 
-    void onActivityResumed(int userId, IBinder token) {
+    ActivityRecord onActivityResumed(int userId, IBinder token) {
         synchronized (mHistory) {
             optimizeTasksLocked();
             ActivityRecord r = findActivityByToken(userId, token);
             if (r != null) {
-                synchronized (r.task.activities) {
-                    r.task.activities.remove(r);
-                    r.task.activities.add(r);
-                }
+                r.task.activities.remove(r);
+                r.task.activities.add(r);
             }
+            return r;
         }
     }
 
@@ -702,11 +808,10 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             ActivityRecord r = findActivityByToken(userId, token);
             if (r != null) {
                 r.marked = true;
-                synchronized (r.task.activities) {
-                    // We shouldn't remove task at this point,
-                    // it will be removed by optimizeTasksLocked().
-                    r.task.activities.remove(r);
-                }
+                // We shouldn't remove task at this point,
+                // it will be removed by optimizeTasksLocked().
+                r.task.activities.remove(r);
+                removeActivityTokenLocked(r);
             }
             return r;
         }
@@ -718,18 +823,17 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             int N = mHistory.size();
             while (N-- > 0) {
                 TaskRecord task = mHistory.valueAt(N);
-                synchronized (task.activities) {
-                    Iterator<ActivityRecord> iterator = task.activities.iterator();
-                    while (iterator.hasNext()) {
-                        ActivityRecord r = iterator.next();
-                        if (r.process.pid != record.pid) {
-                            continue;
-                        }
-                        iterator.remove();
-                        if (task.activities.isEmpty()) {
-                            mHistory.remove(task.taskId);
-                        }
+                Iterator<ActivityRecord> iterator = task.activities.iterator();
+                while (iterator.hasNext()) {
+                    ActivityRecord r = iterator.next();
+                    if (r.process.pid != record.pid) {
+                        continue;
                     }
+                    iterator.remove();
+                    removeActivityTokenLocked(r);
+                }
+                if (task.activities.isEmpty()) {
+                    removeTaskLocked(task);
                 }
             }
 
@@ -737,13 +841,11 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
     String getPackageForToken(int userId, IBinder token) {
-        synchronized (mHistory) {
-            ActivityRecord r = findActivityByToken(userId, token);
-            if (r != null) {
-                return r.info.packageName;
-            }
-            return null;
+        ActivityRecord r = findActivityByToken(userId, token);
+        if (r != null) {
+            return r.info.packageName;
         }
+        return null;
     }
 
     private ActivityRecord getCallingRecordLocked(int userId, IBinder token) {
@@ -775,13 +877,11 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
     ComponentName getActivityClassForToken(int userId, IBinder token) {
-        synchronized (mHistory) {
-            ActivityRecord r = findActivityByToken(userId, token);
-            if (r != null) {
-                return r.component;
-            }
-            return null;
+        ActivityRecord r = findActivityByToken(userId, token);
+        if (r != null) {
+            return r.component;
         }
+        return null;
     }
 
     boolean includeExcludeFromRecentsFlag(IBinder token){
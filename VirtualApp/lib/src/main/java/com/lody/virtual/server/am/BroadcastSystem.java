@@ -6,14 +6,16 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.PatternMatcher;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.Constants;
@@ -38,6 +40,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import mirror.android.app.ContextImpl;
 import mirror.android.app.LoadedApkHuaWei;
@@ -51,19 +54,38 @@ import static android.content.Intent.FLAG_RECEIVER_REGISTERED_ONLY;
 
 /**
  * @author Lody
+ * <p>
+ * Receives the broadcasts for the static receivers of the apps. The static receivers that
+ * declare the same intent filter share one receiver registered to the system, and the
+ * component broadcasts of an app share another one, so that the registrations grow with
+ * the distinct filters rather than with the receivers of every app.
  */
 
 public class BroadcastSystem {
 
     static final String TAG = BroadcastSystem.class.getSimpleName();
     /**
-     * MUST < 10000.
+     * MUST < 10000. A batch of receivers shares it, as they all run under one host broadcast.
      */
     private static final int BROADCAST_TIME_OUT = 8500;
     private static BroadcastSystem gDefault;
 
+    private static final int FLAG_RECEIVER_INCLUDE_BACKGROUND = 0x01000000;
+    private static final int FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT = 0x04000000;
+    /**
+     * Given to the apps in place of the token of the host broadcast, so that they do not finish it.
+     */
+    private static final IBinder BATCH_TOKEN = new Binder();
+
     private final Map<String, Boolean> mReceiverStatus = new ArrayMap<>();
-    private final ArrayMap<String, List<StaticBroadcastReceiver>> mReceivers = new ArrayMap<>();
+    /**
+     * The host receivers of each package, guarded by itself.
+     */
+    private final ArrayMap<String, List<HostReceiver>> mReceivers = new ArrayMap<>();
+    /**
+     * The host receivers by the signature of their filter, guarded by {@link #mReceivers}.
+     */
+    private final Map<String, FilterHostReceiver> mFilterReceivers = new HashMap<>();
     private final Map<String, BroadcastRecord> mBroadcastRecords = new HashMap<>();
     private final Context mContext;
     private final StaticScheduler mScheduler;
@@ -170,27 +192,47 @@ public class BroadcastSystem {
             mReceiverStatus.put(p.packageName, true);
         }
         VLog.d(TAG, "startApp:%s,version=%s/%d", p.packageName, p.mVersionName, p.mVersionCode);
+        long start = SystemClock.elapsedRealtime();
         PackageSetting setting = (PackageSetting) p.mExtras;
         //微信有60多个静态receiver,华为低版本是每进程500个receiver对象，高版本是每进程1000个对象
-        List<StaticBroadcastReceiver> receivers = mReceivers.get(p.packageName);
-        if (receivers == null) {
-            receivers = new ArrayList<>();
-            mReceivers.put(p.packageName, receivers);
-        }
-        for (VPackage.ActivityComponent receiver : p.receivers) {
-            ActivityInfo info = receiver.info;
-            String componentAction = ComponentUtils.getComponentAction(info);
-            IntentFilter componentFilter = new IntentFilter(componentAction);
-            StaticBroadcastReceiver r = new StaticBroadcastReceiver(setting.appId, info);
-            mContext.registerReceiver(r, componentFilter, null, mScheduler);
-            receivers.add(r);
-            Log.v("kk", "registerReceiver:" + info.name + ",action=" + componentAction);
-            for (VPackage.ActivityIntentInfo ci : receiver.intents) {
-                IntentFilter cloneFilter = new IntentFilter(ci.filter);
-                SpecialComponentList.protectIntentFilter(cloneFilter);
-                mContext.registerReceiver(r, cloneFilter, null, mScheduler);
+        //相同的IntentFilter只向系统注册一次，组件广播每个应用注册一次
+        ComponentHostReceiver componentReceiver = new ComponentHostReceiver();
+        List<HostReceiver> hosts = new ArrayList<>();
+        int registered = 0;
+        synchronized (mReceivers) {
+            for (VPackage.ActivityComponent receiver : p.receivers) {
+                StaticReceiver r = new StaticReceiver(setting.appId, receiver.info);
+                componentReceiver.add(r);
+                for (VPackage.ActivityIntentInfo ci : receiver.intents) {
+                    IntentFilter cloneFilter = new IntentFilter(ci.filter);
+                    if (!SpecialComponentList.protectIntentFilter(cloneFilter)) {
+                        continue;
+                    }
+                    String signature = getSignature(cloneFilter);
+                    FilterHostReceiver host = mFilterReceivers.get(signature);
+                    if (host == null) {
+                        host = new FilterHostReceiver(signature);
+                        mFilterReceivers.put(signature, host);
+                        mContext.registerReceiver(host, cloneFilter, null, mScheduler);
+                        registered++;
+                    }
+                    if (!host.receivers.contains(r)) {
+                        host.receivers.add(r);
+                    }
+                    if (!hosts.contains(host)) {
+                        hosts.add(host);
+                    }
+                }
             }
+            if (!componentReceiver.receivers.isEmpty()) {
+                mContext.registerReceiver(componentReceiver, componentReceiver.filter, null, mScheduler);
+                registered++;
+                hosts.add(componentReceiver);
+            }
+            mReceivers.put(p.packageName, hosts);
         }
+        VLog.d(TAG, "startApp:%s, %d receivers, %d new host receivers in %dms", p.packageName,
+                p.receivers.size(), registered, SystemClock.elapsedRealtime() - start);
     }
 
     public void stopApp(String packageName) {
@@ -201,31 +243,86 @@ public class BroadcastSystem {
         if(status == null || !status){
             return;
         }
+        List<BroadcastRecord> stopped = new ArrayList<>();
         synchronized (mBroadcastRecords) {
             Iterator<Map.Entry<String, BroadcastRecord>> iterator = mBroadcastRecords.entrySet().iterator();
             while (iterator.hasNext()) {
                 Map.Entry<?, BroadcastRecord> entry = iterator.next();
                 BroadcastRecord record = entry.getValue();
                 if (record.receiverInfo.packageName.equals(packageName)) {
-                    record.pendingResult.finish();
+                    stopped.add(record);
                     iterator.remove();
                 }
             }
         }
+        for (BroadcastRecord record : stopped) {
+            mTimeoutHandler.removeMessages(BROADCAST_TIME_OUT, record.key);
+            record.batch.onReceiverFinished(null);
+        }
         synchronized (mReceivers) {
-            List<StaticBroadcastReceiver> receivers = mReceivers.get(packageName);
-            if (receivers != null) {
-                for (int i = receivers.size() - 1; i >= 0; i--) {
-                    StaticBroadcastReceiver r = receivers.get(i);
+            List<HostReceiver> hosts = mReceivers.remove(packageName);
+            if (hosts != null) {
+                for (HostReceiver host : hosts) {
+                    host.removePackage(packageName);
+                    if (!host.receivers.isEmpty()) {
+                        continue;
+                    }
+                    if (host instanceof FilterHostReceiver) {
+                        mFilterReceivers.remove(((FilterHostReceiver) host).signature);
+                    }
                     try {
-                        mContext.unregisterReceiver(r);
+                        mContext.unregisterReceiver(host);
                     }catch (Throwable e){
                         //ignore
                     }
-                    receivers.remove(r);
                 }
             }
-            mReceivers.remove(packageName);
+        }
+    }
+
+    /**
+     * Two filters with the same signature match the same intents.
+     */
+    private static String getSignature(IntentFilter filter) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(filter.getPriority());
+        appendSorted(sb, "|a:", filter.actionsIterator());
+        appendSorted(sb, "|c:", filter.categoriesIterator());
+        appendSorted(sb, "|s:", filter.schemesIterator());
+        appendSorted(sb, "|t:", filter.typesIterator());
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < filter.countDataAuthorities(); i++) {
+            IntentFilter.AuthorityEntry authority = filter.getDataAuthority(i);
+            entries.add(authority.getHost() + ":" + authority.getPort());
+        }
+        appendSorted(sb, "|h:", entries.iterator());
+        entries.clear();
+        for (int i = 0; i < filter.countDataPaths(); i++) {
+            PatternMatcher path = filter.getDataPath(i);
+            entries.add(path.getType() + path.getPath());
+        }
+        appendSorted(sb, "|p:", entries.iterator());
+        entries.clear();
+        for (int i = 0; i < filter.countDataSchemeSpecificParts(); i++) {
+            PatternMatcher part = filter.getDataSchemeSpecificPart(i);
+            entries.add(part.getType() + part.getPath());
+        }
+        appendSorted(sb, "|ssp:", entries.iterator());
+        return sb.toString();
+    }
+
+    private static void appendSorted(StringBuilder sb, String prefix, Iterator<String> iterator) {
+        if (iterator == null || !iterator.hasNext()) {
+            return;
+        }
+        List<String> values = new ArrayList<>();
+        while (iterator.hasNext()) {
+            values.add(iterator.next());
+        }
+        Collections.sort(values);
+        sb.append(prefix);
+        for (String value : values) {
+            sb.append(value).append(',');
         }
     }
 
@@ -240,23 +337,22 @@ public class BroadcastSystem {
         } else {
             VLog.v(TAG, "broadcastFinish token: [%s] %s", record.receiverInfo.name, res.getKey());
         }
-        mTimeoutHandler.removeMessages(BROADCAST_TIME_OUT, res.getKey());
-        if(!record.timeout) {
-            record.finished = true;
-            res.finish();
-        }
+        // The handler matches the token by identity, res has been unparcelled.
+        mTimeoutHandler.removeMessages(BROADCAST_TIME_OUT, record.key);
+        record.batch.onReceiverFinished(res);
     }
 
-    void broadcastSent(int vuid, ActivityInfo receiverInfo, PendingResultData res, Intent intent) {
+    void broadcastSent(int vuid, ActivityInfo receiverInfo, PendingResultData res, Intent intent, Batch batch) {
         VLog.v(TAG, "broadcastSent token: [%s@%s] %s", receiverInfo.name, res.getKey(), intent.getAction());
-        BroadcastRecord record = new BroadcastRecord(vuid, receiverInfo, res);
+        BroadcastRecord record = new BroadcastRecord(vuid, receiverInfo, res.getKey(), batch);
         record.action = intent.getAction();
         synchronized (mBroadcastRecords) {
             mBroadcastRecords.put(res.getKey(), record);
         }
         Message msg = new Message();
-        msg.obj = res.getKey();
-        mTimeoutHandler.sendMessageDelayed(msg, BROADCAST_TIME_OUT);
+        msg.what = BROADCAST_TIME_OUT;
+        msg.obj = record.key;
+        mTimeoutHandler.sendMessageAtTime(msg, batch.mDeadline);
     }
 
     private static final class StaticScheduler extends Handler {
@@ -268,15 +364,15 @@ public class BroadcastSystem {
     private static final class BroadcastRecord {
         int vuid;
         ActivityInfo receiverInfo;
-        PendingResultData pendingResult;
+        String key;
+        Batch batch;
         String action;
-        boolean finished;
-        boolean timeout;
 
-        BroadcastRecord(int vuid, ActivityInfo receiverInfo, PendingResultData pendingResult) {
+        BroadcastRecord(int vuid, ActivityInfo receiverInfo, String key, Batch batch) {
             this.vuid = vuid;
             this.receiverInfo = receiverInfo;
-            this.pendingResult = pendingResult;
+            this.key = key;
+            this.batch = batch;
         }
     }
 
@@ -293,34 +389,220 @@ public class BroadcastSystem {
                 r = mBroadcastRecords.remove(key);
             }
             if (r != null) {
-                if(!r.finished) {
-                    r.timeout = true;
-                    VLog.w(TAG, "Broadcast timeout, cancel to dispatch it [%s@%d] %s", r.receiverInfo.name, r.vuid, r.action);
-                    r.pendingResult.finish();
-                }
+                VLog.w(TAG, "Broadcast timeout, cancel to dispatch it [%s@%d] %s", r.receiverInfo.name, r.vuid, r.action);
+                r.batch.onReceiverFinished(null);
             }
         }
     }
 
-    private final class StaticBroadcastReceiver extends BroadcastReceiver {
-        private static final int FLAG_RECEIVER_INCLUDE_BACKGROUND = 0x01000000;
-        private static final int FLAG_RECEIVER_EXCLUDE_BACKGROUND = 0x00800000;
-        private static final int FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT = 0x04000000;
-        private int appId;
-        private ActivityInfo info;
-        private ComponentName componentName;
+    /**
+     * A static receiver of an app.
+     */
+    static final class StaticReceiver {
+        final int appId;
+        final ActivityInfo info;
+        final ComponentName componentName;
+        final String componentAction;
 
-        private StaticBroadcastReceiver(int appId, ActivityInfo info) {
+        StaticReceiver(int appId, ActivityInfo info) {
             this.appId = appId;
             this.info = info;
             this.componentName = ComponentUtils.toComponentName(info);
+            this.componentAction = ComponentUtils.getComponentAction(info);
         }
 
-        private boolean isBackgroundAction(String action) {
-            //8.0 下面广播是无法通过静态广播接收
-            return Intent.ACTION_PACKAGE_ADDED.equals(action)
-                    || Intent.ACTION_PACKAGE_REPLACED.equals(action)
-                    || Intent.ACTION_PACKAGE_REMOVED.equals(action);
+        /**
+         * @param data the broadcast sent by an app or the server, null if sent by the system
+         */
+        boolean accept(BroadcastIntentData data, String action) {
+            if (data == null) {
+                return true;
+            }
+            //广播本身的限制条件过滤
+            if(data.intent.getPackage() != null && !TextUtils.equals(info.packageName, data.intent.getPackage())){
+                //该广播是指定包名
+                VLog.d(TAG, "StaticBroadcastReceiver:%s ignore by package. %s", info.packageName, data.intent.getPackage());
+                return false;
+            }
+            if(data.intent.getComponent() != null && !componentName.equals(data.intent.getComponent())){
+                //该广播是指定组件名
+                VLog.d(TAG, "StaticBroadcastReceiver:ignore by component. %s", action);
+                return false;
+            }
+            //8.0的静态广播限制
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && info.applicationInfo.targetSdkVersion >= Build.VERSION_CODES.O) {
+                //非系统发送的广播
+                if (InstallerSetting.privApps.contains(info.packageName)//provider
+                        || (data.isFromSystem() && !isBackgroundAction(action))) {
+                    // 允许系统应用接收隐式广播
+                    // 允许来自服务进程的广播（除了应用安装/卸载/替换广播
+                    // MDM在InstallerSetting.privApps名单，允许被收到全部静态广播
+                } else if (data.intent.getComponent() == null
+                        && data.intent.getPackage() == null
+                        && ((data.intent.getFlags() & FLAG_RECEIVER_INCLUDE_BACKGROUND) == 0)) {
+                    //该广播未指定组件/应用
+                    VLog.d(TAG, "StaticBroadcastReceiver:package and component is null or FLAG_RECEIVER_INCLUDE_BACKGROUND %s", action);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static boolean isBackgroundAction(String action) {
+        //8.0 下面广播是无法通过静态广播接收
+        return Intent.ACTION_PACKAGE_ADDED.equals(action)
+                || Intent.ACTION_PACKAGE_REPLACED.equals(action)
+                || Intent.ACTION_PACKAGE_REMOVED.equals(action);
+    }
+
+    /**
+     * One broadcast received by a host receiver, dispatched to the static receivers it matches.
+     * The host broadcast is finished once all of them have finished or timed out. An ordered
+     * broadcast goes through the receivers one by one, with the result of each passed to the next.
+     * All of them share one deadline, the receivers not sent to by then are skipped, ordered
+     * or not, so that the host broadcast is always finished before the system times it out.
+     */
+    final class Batch {
+        private final BroadcastIntentData mData;
+        private final List<StaticReceiver> mReceivers;
+        private final boolean mOrdered;
+        private final BroadcastReceiver.PendingResult mResult;
+        /**
+         * In {@link SystemClock#uptimeMillis()}, as the timeout messages.
+         */
+        final long mDeadline;
+        private int mNext;
+        private int mPending;
+        private boolean mAborted;
+        private boolean mFinished;
+
+        Batch(BroadcastIntentData data, List<StaticReceiver> receivers, boolean ordered, BroadcastReceiver.PendingResult result) {
+            mData = data;
+            mReceivers = receivers;
+            mOrdered = ordered;
+            mResult = result;
+            mDeadline = SystemClock.uptimeMillis() + BROADCAST_TIME_OUT;
+        }
+
+        /**
+         * The result given to an app, finishing it only reports to the server.
+         * The batch waits for the app from now on.
+         */
+        PendingResultData newResult() {
+            synchronized (this) {
+                mPending++;
+            }
+            PendingResultData res = new PendingResultData(mResult, mData.intent);
+            res.mToken = BATCH_TOKEN;
+            return res;
+        }
+
+        /**
+         * @return whether the deadline has passed, the receivers not sent to yet are skipped then
+         */
+        boolean isExpired() {
+            return SystemClock.uptimeMillis() >= mDeadline;
+        }
+
+        void start() {
+            if (mOrdered) {
+                sendNext();
+                return;
+            }
+            synchronized (this) {
+                // Hold the batch until all the receivers have been sent to.
+                mPending++;
+            }
+            mAMS.scheduleStaticBroadcast(mData, mReceivers, this);
+            onReceiverFinished(null);
+        }
+
+        private void sendNext() {
+            while (true) {
+                StaticReceiver receiver;
+                synchronized (this) {
+                    if (mAborted || mNext >= mReceivers.size()) {
+                        break;
+                    }
+                    if (isExpired()) {
+                        VLog.w(TAG, "Broadcast timeout, skip %d receivers of %s",
+                                mReceivers.size() - mNext, mData.intent.getAction());
+                        break;
+                    }
+                    receiver = mReceivers.get(mNext++);
+                    mPending++;
+                }
+                mAMS.scheduleStaticBroadcast(mData, Collections.singletonList(receiver), this);
+                synchronized (this) {
+                    if (--mPending > 0) {
+                        // The next one is sent when this one finishes.
+                        return;
+                    }
+                }
+            }
+            finish();
+        }
+
+        /**
+         * @param res the result of the receiver, or null if it did not finish in time
+         */
+        void onReceiverFinished(PendingResultData res) {
+            synchronized (this) {
+                if (mOrdered && res != null) {
+                    mResult.setResult(res.mResultCode, res.mResultData, res.mResultExtras);
+                    if (res.mAbortBroadcast) {
+                        mAborted = true;
+                        mResult.abortBroadcast();
+                    }
+                }
+                if (--mPending > 0) {
+                    return;
+                }
+            }
+            if (mOrdered) {
+                mScheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendNext();
+                    }
+                });
+            } else {
+                finish();
+            }
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+            }
+            try {
+                mResult.finish();
+            } catch (Throwable e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A receiver registered to the system on behalf of static receivers of apps.
+     */
+    private abstract class HostReceiver extends BroadcastReceiver {
+        final List<StaticReceiver> receivers = new CopyOnWriteArrayList<>();
+
+        abstract List<StaticReceiver> resolve(String action);
+
+        void removePackage(String packageName) {
+            List<StaticReceiver> removed = new ArrayList<>();
+            for (StaticReceiver r : receivers) {
+                if (r.info.packageName.equals(packageName)) {
+                    removed.add(r);
+                }
+            }
+            receivers.removeAll(removed);
         }
 
         @Override
@@ -329,18 +611,18 @@ public class BroadcastSystem {
                 return;
             }
             if ((intent.getFlags() & FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT) != 0) {
-                VLog.w(TAG, "StaticBroadcastReceiver:%s ignore by FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT:%s", info.name, intent.getAction());
+                VLog.w(TAG, "StaticBroadcastReceiver ignore by FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT:%s", intent.getAction());
                 return;
             }
             if ((intent.getFlags() & FLAG_RECEIVER_REGISTERED_ONLY) != 0 || isInitialStickyBroadcast()) {
-                VLog.w(TAG, "StaticBroadcastReceiver:%s ignore by FLAG_RECEIVER_REGISTERED_ONLY:%s", info.name, intent.getAction());
+                VLog.w(TAG, "StaticBroadcastReceiver ignore by FLAG_RECEIVER_REGISTERED_ONLY:%s", intent.getAction());
                 return;
             }
-            String targetPackage = intent.getStringExtra("_VA_|_privilege_pkg_");
-            if(!TextUtils.isEmpty(targetPackage) && !TextUtils.equals(info.packageName, targetPackage)){
-                VLog.w(TAG, "StaticBroadcastReceiver:%s ignore by targetPackage:%s", info.packageName, intent.getAction());
+            List<StaticReceiver> candidates = resolve(intent.getAction());
+            if (candidates.isEmpty()) {
                 return;
             }
+            String targetPackage = intent.getStringExtra("_VA_|_privilege_pkg_");
             BroadcastIntentData data = null;
             if (intent.hasExtra("_VA_|_data_")) {
                 intent.setExtrasClassLoader(BroadcastIntentData.class.getClassLoader());
@@ -354,42 +636,67 @@ public class BroadcastSystem {
             //1.系统发送的广播
             //ShadowPendingReceiver
             //
+            BroadcastIntentData sent = data;
             if (data == null) {
                 //系统
                 intent.setPackage(null);
-                data = new BroadcastIntentData(VUserHandle.USER_ALL, intent, null, BroadcastIntentData.TYPE_FROM_SYSTEM);
-            } else {
-                //广播本身的限制条件过滤
-                if(data.intent.getPackage() != null && !TextUtils.equals(info.packageName, data.intent.getPackage())){
-                    //该广播是指定包名
-                    VLog.d(TAG, "StaticBroadcastReceiver:%s ignore by package. %s", info.packageName, data.intent.getPackage());
-                    return;
+                sent = new BroadcastIntentData(VUserHandle.USER_ALL, intent, null, BroadcastIntentData.TYPE_FROM_SYSTEM);
+            }
+            List<StaticReceiver> targets = new ArrayList<>(candidates.size());
+            for (StaticReceiver r : candidates) {
+                if(!TextUtils.isEmpty(targetPackage) && !TextUtils.equals(r.info.packageName, targetPackage)){
+                    VLog.w(TAG, "StaticBroadcastReceiver:%s ignore by targetPackage:%s", r.info.packageName, intent.getAction());
+                    continue;
                 }
-                if(data.intent.getComponent() != null && !componentName.equals(data.intent.getComponent())){
-                    //该广播是指定组件名
-                    VLog.d(TAG, "StaticBroadcastReceiver:ignore by component. %s", data.intent.getAction());
-                    return;
-                }
-                //8.0的静态广播限制
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && info.applicationInfo.targetSdkVersion >= Build.VERSION_CODES.O) {
-                    //非系统发送的广播
-                    if (InstallerSetting.privApps.contains(info.packageName)//provider
-                            || (data.isFromSystem() && !isBackgroundAction(data.intent.getAction()))) {
-                        // 允许系统应用接收隐式广播
-                        // 允许来自服务进程的广播（除了应用安装/卸载/替换广播
-                        // MDM在InstallerSetting.privApps名单，允许被收到全部静态广播
-                    } else if (data.intent.getComponent() == null
-                            && data.intent.getPackage() == null
-                            && ((data.intent.getFlags() & FLAG_RECEIVER_INCLUDE_BACKGROUND) == 0)) {
-                        //该广播未指定组件/应用
-                        VLog.d(TAG, "StaticBroadcastReceiver:package and component is null or FLAG_RECEIVER_INCLUDE_BACKGROUND %s", data.intent.getAction());
-                        return;
-                    }
+                if (r.accept(data, sent.intent.getAction())) {
+                    targets.add(r);
                 }
             }
-            VLog.d(TAG, "StaticBroadcastReceiver:[%s] onReceive:%s", info.name, data.intent.getAction());
-            mAMS.scheduleStaticBroadcast(data, this.appId, info, data.type, goAsync());
+            if (targets.isEmpty()) {
+                return;
+            }
+            VLog.d(TAG, "StaticBroadcastReceiver:%d receivers onReceive:%s", targets.size(), sent.intent.getAction());
+            boolean ordered = isOrderedBroadcast() || SpecialComponentList.isOrderAction(intent.getAction());
+            new Batch(sent, targets, ordered, goAsync()).start();
+        }
+    }
+
+    /**
+     * The static receivers of all the apps that declare the same intent filter.
+     */
+    private final class FilterHostReceiver extends HostReceiver {
+        final String signature;
+
+        FilterHostReceiver(String signature) {
+            this.signature = signature;
+        }
+
+        @Override
+        List<StaticReceiver> resolve(String action) {
+            return receivers;
+        }
+    }
+
+    /**
+     * The static receivers of an app, for the broadcasts sent to their component,
+     * see {@link ComponentUtils#getComponentAction(ActivityInfo)}.
+     */
+    private final class ComponentHostReceiver extends HostReceiver {
+        final IntentFilter filter = new IntentFilter();
+        private final Map<String, StaticReceiver> mByAction = new HashMap<>();
+
+        void add(StaticReceiver r) {
+            receivers.add(r);
+            mByAction.put(r.componentAction, r);
+            filter.addAction(r.componentAction);
+        }
+
+        @Override
+        List<StaticReceiver> resolve(String action) {
+            StaticReceiver r = mByAction.get(action);
+            return r != null && receivers.contains(r)
+                    ? Collections.singletonList(r) : Collections.<StaticReceiver>emptyList();
         }
     }
 
-}
\ No newline at end of file
+}
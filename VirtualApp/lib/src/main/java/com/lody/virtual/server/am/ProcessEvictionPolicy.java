@@ -0,0 +1,140 @@
+package com.lody.virtual.server.am;
+
+import java.util.Comparator;
+
+/**
+ * @author Lody
+ * <p>
+ * Decides which app processes are killed when the stub slots of an abi run out.
+ * The default policy only reclaims processes below {@link #IMPORTANCE_FOREGROUND},
+ * the least important first, then the longest idle, weighted by their memory footprint.
+ * Override it in {@link com.lody.virtual.client.core.SettingConfig#getProcessEvictionPolicy()}.
+ */
+public class ProcessEvictionPolicy implements Comparator<ProcessEvictionPolicy.Candidate> {
+
+    /**
+     * No activity, service or provider.
+     */
+    public static final int IMPORTANCE_EMPTY = 0;
+    /**
+     * Activities in the background.
+     */
+    public static final int IMPORTANCE_BACKGROUND = 100;
+    /**
+     * Hosts a provider acquired by another process.
+     */
+    public static final int IMPORTANCE_PROVIDER = 200;
+    /**
+     * Runs a started or bound service.
+     */
+    public static final int IMPORTANCE_SERVICE = 300;
+    /**
+     * Hosts the last resumed activity, or is the caller of the process start.
+     */
+    public static final int IMPORTANCE_FOREGROUND = 400;
+
+    private static final int PSS_UNIT_KB = 64 * 1024;
+
+    public static final class Candidate {
+        public final String packageName;
+        public final String processName;
+        public final int userId;
+        public final int pid;
+        public final int vpid;
+        public final boolean is64bit;
+        public final int importance;
+        /**
+         * Uptime of the last start request or resumed activity of the process.
+         */
+        public final long lastActivityTime;
+        /**
+         * Time since {@link #lastActivityTime} when the eviction started.
+         */
+        public final long idleTime;
+        /**
+         * Total PSS in kB, 0 if unknown.
+         */
+        public final int pss;
+        final ProcessRecord record;
+
+        Candidate(ProcessRecord record, int importance, int pss, long now) {
+            this.record = record;
+            this.packageName = record.info.packageName;
+            this.processName = record.processName;
+            this.userId = record.userId;
+            this.pid = record.pid;
+            this.vpid = record.vpid;
+            this.is64bit = record.is64bit;
+            this.importance = importance;
+            this.lastActivityTime = record.lastActivityTime;
+            this.idleTime = Math.max(0, now - lastActivityTime);
+            this.pss = pss;
+        }
+    }
+
+    /**
+     * Evict when fewer stub slots than this are free in the abi of the process being started.
+     */
+    public int getMinFreeSlots() {
+        return 3;
+    }
+
+    /**
+     * Free slots to reach once evicting, above {@link #getMinFreeSlots()} so that
+     * the eviction does not run again at the next start.
+     */
+    public int getTargetFreeSlots() {
+        return 6;
+    }
+
+    /**
+     * Processes of this importance or higher are never evicted.
+     */
+    public int getProtectedImportance() {
+        return IMPORTANCE_FOREGROUND;
+    }
+
+    /**
+     * Whether the memory footprint of the candidates is read, see {@link Candidate#pss}.
+     */
+    public boolean isMemoryFootprintUsed() {
+        return true;
+    }
+
+    /**
+     * @return the cost of keeping the process, the highest is evicted first among the same importance
+     */
+    public long getEvictionScore(Candidate candidate) {
+        return candidate.idleTime + candidate.idleTime * candidate.pss / PSS_UNIT_KB;
+    }
+
+    /**
+     * Order the candidates, the first ones are evicted first.
+     */
+    @Override
+    public int compare(Candidate a, Candidate b) {
+        if (a.importance != b.importance) {
+            return a.importance < b.importance ? -1 : 1;
+        }
+        long sa = getEvictionScore(a);
+        long sb = getEvictionScore(b);
+        return sa > sb ? -1 : (sa == sb ? 0 : 1);
+    }
+
+    public static String importanceToString(int importance) {
+        switch (importance) {
+            case IMPORTANCE_EMPTY:
+                return "empty";
+            case IMPORTANCE_BACKGROUND:
+                return "background";
+            case IMPORTANCE_PROVIDER:
+                return "provider";
+            case IMPORTANCE_SERVICE:
+                return "service";
+            case IMPORTANCE_FOREGROUND:
+                return "foreground";
+            default:
+                return String.valueOf(importance);
+        }
+    }
+}
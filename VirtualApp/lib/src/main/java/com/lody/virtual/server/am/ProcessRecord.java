@@ -5,6 +5,7 @@ import android.os.Binder;
 import android.os.ConditionVariable;
 import android.os.IInterface;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.lody.virtual.client.IVClient;
@@ -32,6 +33,18 @@ final class ProcessRecord extends Binder {
     public int callingVUid;
     public int userId;
     public ConditionVariable initLock = new ConditionVariable();
+    /**
+     * Uptime of the last start request or resumed activity, see {@link ProcessEvictionPolicy}.
+     */
+    public volatile long lastActivityTime = SystemClock.uptimeMillis();
+    /**
+     * Created and not yet destroyed activities, guarded by {@link VActivityManagerService#mProcessLock}.
+     */
+    public int activityCount;
+    /**
+     * A provider of the process was acquired by another process.
+     */
+    public volatile boolean hasProvider;
 
     public ProcessRecord(ApplicationInfo info, String processName, int vuid, int vpid, int callingVUid, boolean is64bit) {
         this.info = info;
@@ -47,6 +60,10 @@ final class ProcessRecord extends Binder {
         return callingVUid;
     }
 
+    void touch() {
+        lastActivityTime = SystemClock.uptimeMillis();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
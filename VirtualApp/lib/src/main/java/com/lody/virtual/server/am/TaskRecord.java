@@ -10,6 +10,8 @@ import java.util.List;
 
 /**
  * @author Lody
+ * <p>
+ * Guarded by the lock of its {@link ActivityStack}.
  */
 
 class TaskRecord {
@@ -29,14 +31,12 @@ class TaskRecord {
     }
 
     ActivityRecord getRootActivityRecord() {
-        synchronized (activities) {
-            for (int i = 0; i < activities.size(); i++) {
-                final ActivityRecord r = activities.get(i);
-                if (r.marked) {
-                    continue;
-                }
-                return r;
+        for (int i = 0; i < activities.size(); i++) {
+            final ActivityRecord r = activities.get(i);
+            if (r.marked) {
+                continue;
             }
+            return r;
         }
         return null;
     }
@@ -46,18 +46,13 @@ class TaskRecord {
     }
 
     public ActivityRecord getTopActivityRecord(boolean containFinishedActivity) {
-        synchronized (activities) {
-            if (activities.isEmpty()) {
-                return null;
-            }
-            for (int i = activities.size() - 1; i >= 0; i--) {
-                ActivityRecord r = activities.get(i);
-                if (containFinishedActivity || !r.marked) {
-                    return r;
-                }
+        for (int i = activities.size() - 1; i >= 0; i--) {
+            ActivityRecord r = activities.get(i);
+            if (containFinishedActivity || !r.marked) {
+                return r;
             }
-            return null;
         }
+        return null;
     }
 
     AppTaskInfo getAppTaskInfo() {
@@ -78,10 +73,8 @@ class TaskRecord {
     }
 
     public void finish() {
-        synchronized (activities) {
-            for (ActivityRecord r : activities) {
-                r.marked = true;
-            }
+        for (ActivityRecord r : activities) {
+            r.marked = true;
         }
     }
 }
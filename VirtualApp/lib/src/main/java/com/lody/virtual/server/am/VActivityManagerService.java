@@ -25,6 +25,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.content.res.Configuration;
@@ -42,6 +43,7 @@ import com.lody.virtual.helper.compat.ApplicationThreadCompat;
 import com.lody.virtual.helper.compat.BundleCompat;
 import com.lody.virtual.helper.compat.PermissionCompat;
 import com.lody.virtual.helper.utils.ComponentUtils;
+import com.lody.virtual.helper.utils.LaunchTrace;
 import com.lody.virtual.helper.utils.Singleton;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VBinder;
@@ -68,10 +70,16 @@ import com.xdja.zs.VServiceKeepAliveService;
 import com.xdja.zs.controllerManager;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import mirror.android.app.PendingIntentJBMR2;
 import mirror.android.app.PendingIntentO;
@@ -90,8 +98,27 @@ public class VActivityManagerService extends IActivityManager.Stub {
     private static final String TAG = VActivityManagerService.class.getSimpleName();
     private final Object mProcessLock = new Object();
     private final List<ProcessRecord> mPidsSelfLocked = new ArrayList<>();
+    /**
+     * Indexes of {@link #mPidsSelfLocked}, all guarded by {@link #mProcessLock}.
+     * The stub slots are indexed by [abi][vpid], abi being 1 for the 64bit engine.
+     */
+    private final SparseArray<ProcessRecord> mPidIndex = new SparseArray<>();
+    private final ProcessRecord[][] mSlots = new ProcessRecord[2][StubManifest.STUB_COUNT];
+    private final BitSet[] mUsedSlots = {new BitSet(StubManifest.STUB_COUNT), new BitSet(StubManifest.STUB_COUNT)};
+    /**
+     * Serialize the starts of the same process, instead of every start, so that a slow
+     * process start does not hold back the other apps. Where an activity goes is decided
+     * under the lock of {@link #mActivityStack}, only its process start takes one of these.
+     */
+    private static final int START_LOCK_COUNT = 32;
+    private final Object[] mStartLocks = new Object[START_LOCK_COUNT];
     private final ActivityStack mActivityStack = new ActivityStack(this);
     private final ProcessMap<ProcessRecord> mProcessNames = new ProcessMap<>();
+    private final WarmProcessPool mWarmProcessPool = new WarmProcessPool(this);
+    private static final int EVICTION_LOG_SIZE = 64;
+    private static final long EVICTION_DEATH_TIMEOUT = 1000;
+    private final LinkedList<String> mEvictionLog = new LinkedList<>();
+    private volatile ProcessRecord mResumedProcess;
     private final Map<IBinder, IntentSenderData> mIntentSenderMap = new HashMap<>();
     private NotificationManager nm = (NotificationManager) VirtualCore.get().getContext()
             .getSystemService(Context.NOTIFICATION_SERVICE);
@@ -100,6 +127,7 @@ public class VActivityManagerService extends IActivityManager.Stub {
     private static boolean CANCEL_ALL_NOTIFICATION_BY_KILL_APP = true;
     private static boolean mDarkMode;
     private long lastBackHomeTime;
+    private volatile boolean mHookStatisticsEnabled;
 
     //xdja
     private ActivityManager am = (ActivityManager) VirtualCore.get().getContext()
@@ -109,6 +137,17 @@ public class VActivityManagerService extends IActivityManager.Stub {
         return sService.get();
     }
 
+    private VActivityManagerService() {
+        for (int i = 0; i < START_LOCK_COUNT; i++) {
+            mStartLocks[i] = new Object();
+        }
+    }
+
+    private Object getStartLock(String processName, int userId) {
+        int hash = (processName != null ? processName.hashCode() : 0) * 31 + userId;
+        return mStartLocks[(hash & Integer.MAX_VALUE) % START_LOCK_COUNT];
+    }
+
     public static void systemReady() {
         int mode = VirtualCore.get().getContext().getResources().getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK;
         mDarkMode = mode == Configuration.UI_MODE_NIGHT_YES;
@@ -124,35 +163,48 @@ public class VActivityManagerService extends IActivityManager.Stub {
                 }
             }
         }, new IntentFilter(Intent.ACTION_CONFIGURATION_CHANGED));
+        get().mWarmProcessPool.systemReady(VirtualCore.get().getContext());
+    }
+
+    WarmProcessPool getWarmProcessPool() {
+        return mWarmProcessPool;
     }
 
     @Override
     public int startActivity(Intent intent, ActivityInfo info, IBinder resultTo, Bundle options, String resultWho, int requestCode, int userId) {
-        synchronized (this) {
-            return mActivityStack.startActivityLocked(userId, intent, info, resultTo, options, resultWho, requestCode, VBinder.getCallingUid(), VBinder.getCallingPid());
+        return mActivityStack.startActivityLocked(userId, intent, info, resultTo, options, resultWho, requestCode, VBinder.getCallingUid(), VBinder.getCallingPid());
+    }
+
+    /**
+     * Called by {@link ActivityStack} once it decided to start the activity, without the stack locked.
+     */
+    ProcessRecord startActivityProcess(String processName, int userId, String packageName, int callingUid) {
+        synchronized (getStartLock(processName, userId)) {
+            return startProcessIfNeedLocked(processName, userId, packageName, -1, callingUid, VActivityManager.PROCESS_TYPE_ACTIVITY);
         }
     }
 
     @Override
     public boolean finishActivityAffinity(int userId, IBinder token) {
-        synchronized (this) {
-            return mActivityStack.finishActivityAffinity(userId, token);
-        }
+        return mActivityStack.finishActivityAffinity(userId, token);
     }
 
     @Override
     public int startActivities(Intent[] intents, String[] resolvedTypes, IBinder token, Bundle options, int userId) {
-        synchronized (this) {
-            ActivityInfo[] infos = new ActivityInfo[intents.length];
-            for (int i = 0; i < intents.length; i++) {
-                ActivityInfo ai = VirtualCore.get().resolveActivityInfo(intents[i], userId);
-                if (ai == null) {
-                    return ActivityManagerCompat.START_INTENT_NOT_RESOLVED;
-                }
-                infos[i] = ai;
+        ActivityInfo[] infos = new ActivityInfo[intents.length];
+        for (int i = 0; i < intents.length; i++) {
+            ActivityInfo ai = VirtualCore.get().resolveActivityInfo(intents[i], userId);
+            if (ai == null) {
+                return ActivityManagerCompat.START_INTENT_NOT_RESOLVED;
             }
-            return mActivityStack.startActivitiesLocked(userId, intents, infos, resolvedTypes, token, options, VBinder.getCallingUid(), VBinder.getCallingPid());
+            infos[i] = ai;
         }
+        int callingUid = VBinder.getCallingUid();
+        int callingPid = VBinder.getCallingPid();
+        for (int i = 0; i < intents.length; i++) {
+            mActivityStack.startActivityLocked(userId, intents[i], infos[i], token, options, null, 0, callingUid, callingPid);
+        }
+        return 0;
     }
 
 
@@ -172,6 +224,10 @@ public class VActivityManagerService extends IActivityManager.Stub {
         ProcessRecord targetApp;
         synchronized (mProcessLock) {
             targetApp = findProcessLocked(pid);
+            if (targetApp != null) {
+                targetApp.activityCount++;
+                targetApp.touch();
+            }
         }
         if (targetApp != null) {
             mActivityStack.onActivityCreated(targetApp, token, taskId, (ActivityRecord) record);
@@ -180,12 +236,23 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
     @Override
     public void onActivityResumed(int userId, IBinder token) {
-        mActivityStack.onActivityResumed(userId, token);
+        ActivityRecord r = mActivityStack.onActivityResumed(userId, token);
+        if (r != null && r.process != null) {
+            r.process.touch();
+            mResumedProcess = r.process;
+        }
     }
 
     @Override
     public boolean onActivityDestroyed(int userId, IBinder token) {
         ActivityRecord r = mActivityStack.onActivityDestroyed(userId, token);
+        if (r != null && r.process != null) {
+            synchronized (mProcessLock) {
+                if (r.process.activityCount > 0) {
+                    r.process.activityCount--;
+                }
+            }
+        }
         return r != null;
     }
 
@@ -246,32 +313,26 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
     //xdja
     public boolean isAppForeground(String packageName, int userId) throws RemoteException {
-        synchronized (mPidsSelfLocked) {
-            int N = mPidsSelfLocked.size();
-            while (N-- > 0) {
-                ProcessRecord r = mPidsSelfLocked.get(N);
-                if (r.userId == userId && r.info.packageName.equals(packageName)) {
-                    if(r.client.isAppForeground()){
-                        Log.e(TAG, " process is foreground " + r.processName);
-                        return true;
-                    }
+        for (ProcessRecord r : getProcessesSnapshot()) {
+            if (r.client != null && r.userId == userId && r.info.packageName.equals(packageName)) {
+                if(r.client.isAppForeground()){
+                    Log.e(TAG, " process is foreground " + r.processName);
+                    return true;
                 }
             }
-            return false;
         }
+        return false;
     }
     //xdja
     public boolean isForeground()throws RemoteException{
-        synchronized (mPidsSelfLocked) {
-            int N = mPidsSelfLocked.size();
-            boolean foreground = false;
-            while (N-- > 0) {
-                ProcessRecord r = mPidsSelfLocked.get(N);
+        boolean foreground = false;
+        for (ProcessRecord r : getProcessesSnapshot()) {
+            if (r.client != null) {
                 foreground|=r.client.isAppForeground();
             }
-            Log.e(TAG, " process is foreground " + foreground);
-            return foreground;
         }
+        Log.e(TAG, " process is foreground " + foreground);
+        return foreground;
     }
 
 
@@ -279,10 +340,11 @@ public class VActivityManagerService extends IActivityManager.Stub {
     public IBinder acquireProviderClient(int userId, ProviderInfo info) {
         String processName = info.processName;
         ProcessRecord r;
-        synchronized (this) {
+        synchronized (getStartLock(processName, userId)) {
             r = startProcessIfNeedLocked(processName, userId, info.packageName, -1, VBinder.getCallingUid(), VActivityManager.PROCESS_TYPE_PROVIDER);
         }
         if (r != null) {
+            r.hasProvider = true;
             try {
                 return r.client.acquireProviderClient(info);
             } catch (RemoteException e) {
@@ -372,7 +434,7 @@ public class VActivityManagerService extends IActivityManager.Stub {
     public void processRestarted(String packageName, String processName, int userId) {
         int callingVUid = VBinder.getCallingUid();
         int callingPid = VBinder.getCallingPid();
-        synchronized (this) {
+        synchronized (getStartLock(processName, userId)) {
             ProcessRecord app;
             synchronized (mProcessLock) {
                 app = findProcessLocked(callingPid);
@@ -440,6 +502,13 @@ public class VActivityManagerService extends IActivityManager.Stub {
             e.printStackTrace();
         }
         app.client = client;
+        if (mHookStatisticsEnabled) {
+            try {
+                client.setHookStatisticsEnabled(true);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
         notifyAppProcessStatus(app, 0, true);
         try {
             app.appThread = ApplicationThreadCompat.asInterface(client.getAppThread());
@@ -476,9 +545,11 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
     private void onProcessDied(ProcessRecord record) {
         synchronized (mProcessLock) {
-            mProcessNames.remove(record.processName, record.vuid);
-            //bug：ProcessRecord#equals 根据processName判断，这样会移除多开的相同进程名的对象
-            mPidsSelfLocked.remove(record);
+            removeProcessLocked(record);
+            mProcessLock.notifyAll();
+        }
+        if (mResumedProcess == record) {
+            mResumedProcess = null;
         }
         //xdja
         notifyAppProcessStatus(record, 0, false);
@@ -517,7 +588,7 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
     @Override
     public ClientConfig initProcess(String packageName, String processName, int userId, int type) {
-        synchronized (this) {
+        synchronized (getStartLock(processName, userId)) {
             ProcessRecord r = startProcessIfNeedLocked(processName, userId, packageName, -1, VBinder.getCallingUid(), type);
             if (r != null) {
                 return r.getClientConfig();
@@ -529,7 +600,10 @@ public class VActivityManagerService extends IActivityManager.Stub {
     @Override
     public void appDoneExecuting(String packageName, int userId) {
         int pid = VBinder.getCallingPid();
-        ProcessRecord r = findProcessLocked(pid);
+        ProcessRecord r;
+        synchronized (mProcessLock) {
+            r = findProcessLocked(pid);
+        }
         if (r != null) {
             r.pkgList.add(packageName);
         }
@@ -537,7 +611,7 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
 
     ProcessRecord startProcessIfNeedLocked(String processName, int userId, String packageName, int vpid, int callingUid, @VActivityManager.ProcessStartType int type) {
-        runProcessGC();
+        long traceStart = LaunchTrace.begin();
         PackageSetting ps = PackageCacheManager.getSetting(packageName);
         ApplicationInfo info = VPackageManagerService.get().getApplicationInfo(packageName, 0, userId);
         if (ps == null || info == null) {
@@ -550,60 +624,313 @@ public class VActivityManagerService extends IActivityManager.Stub {
         }
         int vuid = VUserHandle.getUid(userId, ps.appId);
         boolean is64bit = ps.isRunPluginProcess();
-        ProcessRecord app = null;
-        synchronized (mProcessLock) {
-            if (vpid == -1) {
-                app = mProcessNames.get(processName, vuid);
-                if (app != null) {
-                    if (app.initLock != null) {
-                        app.initLock.block();
-                    }
-                    if (app.client != null) {
+        if (vpid == -1 && findProcess(processName, vuid) == null) {
+            runProcessGC(is64bit);
+        }
+        ProcessRecord app;
+        long startTime = SystemClock.elapsedRealtime();
+        boolean warm = false;
+        while (true) {
+            ConditionVariable pending;
+            synchronized (mProcessLock) {
+                app = vpid == -1 ? mProcessNames.get(processName, vuid) : null;
+                if (app == null || app.initLock == null) {
+                    if (app != null && app.client != null) {
+                        app.touch();
                         return app;
                     }
+                    if (vpid == -1) {
+                        VLog.w(TAG, "start new process : " + processName + " by " + VActivityManager.getTypeString(type));
+                        long traceSelect = LaunchTrace.begin();
+                        vpid = mWarmProcessPool.takeLocked(is64bit);
+                        warm = vpid != -1;
+                        if (!warm) {
+                            vpid = queryFreeStubProcess(is64bit);
+                        }
+                        LaunchTrace.end(warm ? "selectStubSlot (warm)" : "selectStubSlot", processName, traceSelect);
+                    } else {
+                        mWarmProcessPool.removeLocked(vpid, is64bit);
+                    }
+                    if (vpid == -1) {
+                        VLog.e(TAG, "Unable to query free stub for : " + processName);
+                        return null;
+                    }
+                    if (app != null) {
+                        VLog.w(TAG, "remove invalid process record: " + app.processName);
+                        removeProcessLocked(app);
+                    }
+                    app = new ProcessRecord(info, processName, vuid, vpid, callingUid, is64bit);
+                    addProcessLocked(app);
+                    break;
                 }
-                VLog.w(TAG, "start new process : " + processName + " by " + VActivityManager.getTypeString(type));
-                vpid = queryFreeStubProcess(is64bit);
+                pending = app.initLock;
             }
-            if (vpid == -1) {
-                VLog.e(TAG, "Unable to query free stub for : " + processName);
-                return null;
-            }
-            if (app != null) {
-                VLog.w(TAG, "remove invalid process record: " + app.processName);
-                mProcessNames.remove(app.processName, app.vuid);
-                mPidsSelfLocked.remove(app);
-            }
-            app = new ProcessRecord(info, processName, vuid, vpid, callingUid, is64bit);
-            mProcessNames.put(app.processName, app.vuid, app);
-            mPidsSelfLocked.add(app);
-            if (!initProcess(app)) {
+            // Started by another thread, wait for it without holding the process lock.
+            pending.block();
+        }
+        // The slot is taken, the process is attached without holding the process lock,
+        // the other threads starting it wait for initLock.
+        long traceInit = LaunchTrace.begin();
+        boolean started = initProcess(app);
+        LaunchTrace.end("initProcess", processName, traceInit);
+        ConditionVariable initLock;
+        synchronized (mProcessLock) {
+            if (started) {
+                // Unless it already died.
+                if (findProcessLocked(app.vpid, app.is64bit) == app) {
+                    mPidIndex.put(app.pid, app);
+                }
+            } else {
                 //init process fail
-                mProcessNames.remove(app.processName, app.vuid);
-                mPidsSelfLocked.remove(app);
-                app = null;
+                removeProcessLocked(app);
             }
+            initLock = app.initLock;
+            app.initLock = null;
         }
-        if(app != null){
-            //不需要在mProcessLock里面处理
-            //申请到权限后，继续操作
-            requestPermissionIfNeed(app, 8*1000);
-//            if(!mResult){
-//                app.kill();//权限没全部申请完
-//                return null;
-//            }
+        initLock.open();
+        if (!started) {
+            return null;
         }
+        VLog.d(TAG, "process %s started in %dms (warm=%b)", processName,
+                SystemClock.elapsedRealtime() - startTime, warm);
+        //不需要在mProcessLock里面处理
+        //申请到权限后，继续操作
+        long tracePermission = LaunchTrace.begin();
+        requestPermissionIfNeed(app, 8*1000);
+        LaunchTrace.end("requestPermission", processName, tracePermission);
+//        if(!mResult){
+//            app.kill();//权限没全部申请完
+//            return null;
+//        }
+        LaunchTrace.end("startProcess", processName, traceStart);
         return app;
     }
 
 
-    private void runProcessGC() {
-        if (VActivityManagerService.get().getFreeStubCount() < 3) {
-            // run GC
-            killAllApps();
+    private int getFreeStubCountLocked(boolean is64bit) {
+        return StubManifest.STUB_COUNT - mUsedSlots[is64bit ? 1 : 0].cardinality();
+    }
+
+    /**
+     * Should guard by {@link VActivityManagerService#mProcessLock}
+     */
+    private void addProcessLocked(ProcessRecord app) {
+        mProcessNames.put(app.processName, app.vuid, app);
+        mPidsSelfLocked.add(app);
+        int abi = app.is64bit ? 1 : 0;
+        mSlots[abi][app.vpid] = app;
+        mUsedSlots[abi].set(app.vpid);
+        if (app.pid > 0) {
+            mPidIndex.put(app.pid, app);
+        }
+    }
+
+    /**
+     * Remove the record from all the indexes, unless they already point to a newer record.
+     * Should guard by {@link VActivityManagerService#mProcessLock}
+     */
+    private void removeProcessLocked(ProcessRecord app) {
+        if (mProcessNames.get(app.processName, app.vuid) == app) {
+            mProcessNames.remove(app.processName, app.vuid);
+        }
+        // ProcessRecord#equals does not tell apart the clones of an app, remove by identity.
+        for (int i = mPidsSelfLocked.size() - 1; i >= 0; i--) {
+            if (mPidsSelfLocked.get(i) == app) {
+                mPidsSelfLocked.remove(i);
+                break;
+            }
+        }
+        int abi = app.is64bit ? 1 : 0;
+        if (mSlots[abi][app.vpid] == app) {
+            mSlots[abi][app.vpid] = null;
+            mUsedSlots[abi].clear(app.vpid);
+        }
+        if (app.pid > 0 && mPidIndex.get(app.pid) == app) {
+            mPidIndex.remove(app.pid);
+        }
+    }
+
+    /**
+     * Should guard by {@link VActivityManagerService#mProcessLock}
+     *
+     * @return the process running in the stub slot, or null if it is free
+     */
+    ProcessRecord findProcessLocked(int vpid, boolean is64bit) {
+        return mSlots[is64bit ? 1 : 0][vpid];
+    }
+
+    /**
+     * @return a copy of the process table, to call the clients without holding the process lock
+     */
+    private List<ProcessRecord> getProcessesSnapshot() {
+        synchronized (mProcessLock) {
+            return new ArrayList<>(mPidsSelfLocked);
         }
     }
 
+    /**
+     * Reclaim the least valuable processes when the stub slots of the abi run out,
+     * see {@link ProcessEvictionPolicy}.
+     */
+    private void runProcessGC(boolean is64bit) {
+        ProcessEvictionPolicy policy = VirtualCore.getConfig().getProcessEvictionPolicy();
+        int callingPid = Binder.getCallingPid();
+        List<ProcessRecord> records = new ArrayList<>();
+        int count;
+        synchronized (mProcessLock) {
+            int free = getFreeStubCountLocked(is64bit);
+            if (free >= policy.getMinFreeSlots()) {
+                return;
+            }
+            count = policy.getTargetFreeSlots() - free;
+            for (ProcessRecord r : mPidsSelfLocked) {
+                // Skip the processes still starting.
+                if (r.is64bit == is64bit && r.client != null) {
+                    records.add(r);
+                }
+            }
+        }
+        ProcessRecord resumed = mResumedProcess;
+        long now = SystemClock.uptimeMillis();
+        int[] importances = new int[records.size()];
+        List<ProcessRecord> evictable = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            ProcessRecord r = records.get(i);
+            int importance;
+            if (r == resumed || r.pid == callingPid) {
+                importance = ProcessEvictionPolicy.IMPORTANCE_FOREGROUND;
+            } else if (mServices.hasRunningServices(r)) {
+                importance = ProcessEvictionPolicy.IMPORTANCE_SERVICE;
+            } else if (r.hasProvider) {
+                importance = ProcessEvictionPolicy.IMPORTANCE_PROVIDER;
+            } else if (r.activityCount > 0) {
+                importance = ProcessEvictionPolicy.IMPORTANCE_BACKGROUND;
+            } else {
+                importance = ProcessEvictionPolicy.IMPORTANCE_EMPTY;
+            }
+            if (importance < policy.getProtectedImportance()) {
+                importances[evictable.size()] = importance;
+                evictable.add(r);
+            }
+        }
+        int[] pss = new int[evictable.size()];
+        if (policy.isMemoryFootprintUsed() && !evictable.isEmpty()) {
+            int[] pids = new int[evictable.size()];
+            for (int i = 0; i < pids.length; i++) {
+                pids[i] = evictable.get(i).pid;
+            }
+            try {
+                Debug.MemoryInfo[] infos = am.getProcessMemoryInfo(pids);
+                for (int i = 0; i < infos.length && i < pss.length; i++) {
+                    pss[i] = infos[i].getTotalPss();
+                }
+            } catch (Throwable e) {
+                // Rate limited or not allowed, ignore the footprint.
+            }
+        }
+        List<ProcessEvictionPolicy.Candidate> candidates = new ArrayList<>(evictable.size());
+        for (int i = 0; i < evictable.size(); i++) {
+            candidates.add(new ProcessEvictionPolicy.Candidate(evictable.get(i), importances[i], pss[i], now));
+        }
+        Collections.sort(candidates, policy);
+        int evicted = 0;
+        for (int i = 0; i < candidates.size() && evicted < count; i++) {
+            ProcessEvictionPolicy.Candidate candidate = candidates.get(i);
+            logEviction(candidate);
+            candidate.record.kill();
+            if (CANCEL_ALL_NOTIFICATION_BY_KILL_APP) {
+                VNotificationManagerService.get().cancelAllNotification(candidate.packageName, candidate.userId);
+            }
+            evicted++;
+        }
+        if (evicted < count) {
+            VLog.w(TAG, "only %d of %d processes evicted, the others are protected", evicted, count);
+        }
+        if (evicted > 0) {
+            // The slots are freed when the processes are reported dead.
+            long deadline = SystemClock.uptimeMillis() + EVICTION_DEATH_TIMEOUT;
+            synchronized (mProcessLock) {
+                long wait;
+                while (getFreeStubCountLocked(is64bit) == 0 && (wait = deadline - SystemClock.uptimeMillis()) > 0) {
+                    try {
+                        mProcessLock.wait(wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void logEviction(ProcessEvictionPolicy.Candidate candidate) {
+        String entry = String.format(Locale.ENGLISH, "%tT evict %s (pid %d, p%d%s, u%d) %s, idle %ds, pss %dkB",
+                System.currentTimeMillis(), candidate.processName, candidate.pid, candidate.vpid,
+                candidate.is64bit ? ", 64bit" : "", candidate.userId,
+                ProcessEvictionPolicy.importanceToString(candidate.importance),
+                candidate.idleTime / 1000, candidate.pss);
+        VLog.w(TAG, entry);
+        synchronized (mEvictionLog) {
+            mEvictionLog.addLast(entry);
+            if (mEvictionLog.size() > EVICTION_LOG_SIZE) {
+                mEvictionLog.removeFirst();
+            }
+        }
+    }
+
+    @Override
+    public String dumpLaunchTrace(String packageName, int userId, boolean reset) {
+        // The timelines tell which apps run and when, only the host may read them.
+        int callingPid = Binder.getCallingPid();
+        if (callingPid != Process.myPid()) {
+            synchronized (mProcessLock) {
+                if (findProcessLocked(callingPid) != null) {
+                    throw new SecurityException("dumpLaunchTrace is not allowed for the virtual apps, pid " + callingPid);
+                }
+            }
+        }
+        List<ProcessRecord> records = new ArrayList<>();
+        // The server events name the process they are about.
+        Set<String> targets = packageName != null ? new HashSet<String>() : null;
+        for (ProcessRecord r : getProcessesSnapshot()) {
+            if (r.client != null && (packageName == null
+                    || (r.userId == userId && r.info.packageName.equals(packageName)))) {
+                records.add(r);
+                if (targets != null) {
+                    targets.add(r.processName);
+                }
+            }
+        }
+        if (targets != null) {
+            targets.add(packageName);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        sb.append(LaunchTrace.dump(VirtualCore.get().getProcessName(), targets, reset));
+        for (ProcessRecord r : records) {
+            try {
+                String events = r.client.getLaunchTrace(reset);
+                if (events != null) {
+                    sb.append(",\n").append(events);
+                }
+            } catch (RemoteException e) {
+                // The process died.
+            }
+        }
+        sb.append("\n]}");
+        return sb.toString();
+    }
+
+    @Override
+    public String dumpProcessEvictions() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mEvictionLog) {
+            for (String entry : mEvictionLog) {
+                sb.append(entry).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
     private void sendFirstLaunchBroadcast(PackageSetting ps, int userId) {
         Intent intent = new Intent(Intent.ACTION_PACKAGE_FIRST_LAUNCH, Uri.fromParts("package", ps.packageName, null));
         intent.setPackage(ps.packageName);
@@ -660,21 +987,19 @@ public class VActivityManagerService extends IActivityManager.Stub {
      * 初始化进程的ClientConfig
      */
     private boolean initProcess(ProcessRecord app) {
-        try {
-            //仅仅只是传递ClientConfig，还不需要用到权限
-            Bundle extras = new Bundle();
-            extras.putParcelable("_VA_|_client_config_", app.getClientConfig());
-            Bundle res = ProviderCall.callSafely(app.getProviderAuthority(), "_VA_|_init_process_", null, extras);
-            if (res == null) {
-                return false;
-            }
-            app.pid = res.getInt("_VA_|_pid_");
-            IBinder clientBinder = BundleCompat.getBinder(res, "_VA_|_client_");
-            return attachClient(app, clientBinder);
-        } finally {
-            app.initLock.open();
-            app.initLock = null;
+        //仅仅只是传递ClientConfig，还不需要用到权限
+        Bundle extras = new Bundle();
+        extras.putParcelable("_VA_|_client_config_", app.getClientConfig());
+        Bundle res = ProviderCall.callSafely(app.getProviderAuthority(), "_VA_|_init_process_", null, extras);
+        if (res == null) {
+            return false;
         }
+        app.pid = res.getInt("_VA_|_pid_");
+        IBinder clientBinder = BundleCompat.getBinder(res, "_VA_|_client_");
+        long traceAttach = LaunchTrace.begin();
+        boolean attached = attachClient(app, clientBinder);
+        LaunchTrace.end("attachClient", app.processName, traceAttach);
+        return attached;
     }
 
     private void requestPermissionIfNeed(ProcessRecord app, int timeout) {
@@ -689,22 +1014,26 @@ public class VActivityManagerService extends IActivityManager.Stub {
         }
     }
 
+    /**
+     * Reserve a free stub slot to start a process of the {@link WarmProcessPool} in.
+     */
+    int reserveStubForWarmUp(boolean is64bit) {
+        synchronized (mProcessLock) {
+            int vpid = queryFreeStubProcess(is64bit);
+            if (vpid != -1) {
+                mWarmProcessPool.reserveLocked(vpid, is64bit);
+            }
+            return vpid;
+        }
+    }
+
     public int queryFreeStubProcess(boolean is64bit) {
         synchronized (mProcessLock) {
-            for (int vpid = 0; vpid < StubManifest.STUB_COUNT; vpid++) {
-                int N = mPidsSelfLocked.size();
-                boolean using = false;
-                while (N-- > 0) {
-                    ProcessRecord r = mPidsSelfLocked.get(N);
-                    if (r.vpid == vpid && r.is64bit == is64bit) {
-                        using = true;
-                        break;
-                    }
+            BitSet used = mUsedSlots[is64bit ? 1 : 0];
+            for (int vpid = used.nextClearBit(0); vpid < StubManifest.STUB_COUNT; vpid = used.nextClearBit(vpid + 1)) {
+                if (!mWarmProcessPool.isReserved(vpid, is64bit)) {
+                    return vpid;
                 }
-                if (using) {
-                    continue;
-                }
-                return vpid;
             }
         }
         return -1;
@@ -859,32 +1188,66 @@ public class VActivityManagerService extends IActivityManager.Stub {
     }
 
     public int getRunningAppMemorySize(String packageName, int userId) throws RemoteException {
-        synchronized (mPidsSelfLocked) {
-            int size = 0;
-            int N = mPidsSelfLocked.size();
-            while (N-- > 0) {
-                ProcessRecord r = mPidsSelfLocked.get(N);
-                if (r.userId == userId && r.info.packageName.equals(packageName)) {
-                    int[] pids = new int[] {r.pid};
-                    Debug.MemoryInfo[] memoryInfo = am.getProcessMemoryInfo(pids);
-                    size = size + memoryInfo[0].dalvikPrivateDirty;
-                }
+        int size = 0;
+        for (ProcessRecord r : getProcessesSnapshot()) {
+            if (r.userId == userId && r.info.packageName.equals(packageName)) {
+                int[] pids = new int[] {r.pid};
+                Debug.MemoryInfo[] memoryInfo = am.getProcessMemoryInfo(pids);
+                size = size + memoryInfo[0].dalvikPrivateDirty;
             }
-            Log.i("wxd", " getRunningAppMemorySize : " + size);/**/
-            return size;
         }
+        Log.i("wxd", " getRunningAppMemorySize : " + size);/**/
+        return size;
     }
 
     public void closeAllLongSocket(String packageName, int userId) throws RemoteException {
-        synchronized (mPidsSelfLocked) {
-            int N = mPidsSelfLocked.size();
-            while (N-- > 0) {
-                ProcessRecord r = mPidsSelfLocked.get(N);
-                if (r.userId == userId && r.info.packageName.equals(packageName)) {
-                    r.client.closeAllLongSocket();
+        for (ProcessRecord r : getProcessesSnapshot()) {
+            if (r.client != null && r.userId == userId && r.info.packageName.equals(packageName)) {
+                r.client.closeAllLongSocket();
+            }
+        }
+    }
+
+    @Override
+    public void setHookStatisticsEnabled(boolean enabled) {
+        mHookStatisticsEnabled = enabled;
+        List<IVClient> clients = new ArrayList<>();
+        synchronized (mProcessLock) {
+            for (ProcessRecord r : mPidsSelfLocked) {
+                if (r.client != null) {
+                    clients.add(r.client);
                 }
             }
-        }/**/
+        }
+        for (IVClient client : clients) {
+            try {
+                client.setHookStatisticsEnabled(enabled);
+            } catch (RemoteException e) {
+                // Process died, ignore
+            }
+        }
+    }
+
+    @Override
+    public String dumpHookStatistics(String packageName, int userId, boolean reset) {
+        List<ProcessRecord> records = new ArrayList<>();
+        synchronized (mProcessLock) {
+            for (ProcessRecord r : mPidsSelfLocked) {
+                if (r.client != null && r.userId == userId && r.info.packageName.equals(packageName)) {
+                    records.add(r);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ProcessRecord r : records) {
+            sb.append("==== ").append(r.processName).append(" (pid ").append(r.pid).append(") ====\n");
+            try {
+                sb.append(r.client.getHookStatistics(reset));
+            } catch (RemoteException e) {
+                sb.append("process died\n");
+            }
+        }
+        return sb.toString();
     }
 
     @Override
@@ -919,17 +1282,12 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
 
     /**
-     * Should guard by {@link VActivityManagerService#mPidsSelfLocked}
+     * Should guard by {@link VActivityManagerService#mProcessLock}
      *
      * @param pid pid
      */
     public ProcessRecord findProcessLocked(int pid) {
-        for (ProcessRecord r : mPidsSelfLocked) {
-            if (r.pid == pid) {
-                return r;
-            }
-        }
-        return null;
+        return mPidIndex.get(pid);
     }
 
     /**
@@ -1123,45 +1481,68 @@ public class VActivityManagerService extends IActivityManager.Stub {
         // EMPTY
     }
 
-    void scheduleStaticBroadcast(final BroadcastIntentData data, final int appId, final ActivityInfo info, final int flags,final BroadcastReceiver.PendingResult result) {
-        if (!handleStaticBroadcast(data, appId, info, flags, result)) {
-            result.finish();
-        }
-    }
-
-    private boolean handleStaticBroadcast(BroadcastIntentData data, int appId, ActivityInfo info, final int flags, BroadcastReceiver.PendingResult result) {
-        if (data.userId >= 0) {
-            return handleStaticBroadcastAsUser(data, appId, data.userId, info, flags, result);
-        } else {
-            int[] users = VAppManagerService.get().getPackageInstalledUsers(info.packageName);
-            if (users.length == 1) {
-                return handleStaticBroadcastAsUser(data, appId, users[0], info, flags, result);
-            }
+    /**
+     * Send a static broadcast to receivers, the process of the receivers is looked up,
+     * or started, once for all the receivers it hosts.
+     */
+    void scheduleStaticBroadcast(BroadcastIntentData data, List<BroadcastSystem.StaticReceiver> receivers, BroadcastSystem.Batch batch) {
+        // The receivers of each process of each user, in the order of the list.
+        SparseArray<Map<String, List<BroadcastSystem.StaticReceiver>>> processes = new SparseArray<>();
+        for (BroadcastSystem.StaticReceiver receiver : receivers) {
+            int[] users = data.userId >= 0 ? new int[]{data.userId}
+                    : VAppManagerService.get().getPackageInstalledUsers(receiver.info.packageName);
             for (int userId : users) {
-                handleStaticBroadcastAsUser(data, appId, userId, info, flags, result);
+                Map<String, List<BroadcastSystem.StaticReceiver>> byProcess = processes.get(userId);
+                if (byProcess == null) {
+                    byProcess = new LinkedHashMap<>();
+                    processes.put(userId, byProcess);
+                }
+                String key = receiver.info.processName + "/" + receiver.appId;
+                List<BroadcastSystem.StaticReceiver> list = byProcess.get(key);
+                if (list == null) {
+                    list = new ArrayList<>(2);
+                    byProcess.put(key, list);
+                }
+                list.add(receiver);
+            }
+        }
+        for (int i = 0; i < processes.size(); i++) {
+            int userId = processes.keyAt(i);
+            for (List<BroadcastSystem.StaticReceiver> list : processes.valueAt(i).values()) {
+                // A cold process start may take seconds, the batch must finish before the host times out.
+                if (batch.isExpired()) {
+                    VLog.w(BroadcastSystem.TAG, "Broadcast timeout, skip %s of user %d for %s",
+                            list.get(0).info.processName, userId, data.intent.getAction());
+                    continue;
+                }
+                handleStaticBroadcastAsUser(data, userId, list, batch);
             }
-            return true;
         }
     }
 
-    private boolean handleStaticBroadcastAsUser(BroadcastIntentData data, int appId, int userId, ActivityInfo info, final int flags, BroadcastReceiver.PendingResult result) {
-        int vuid = VUserHandle.getUid(userId, appId);
-        boolean send = false;
-        synchronized (this) {
+    private void handleStaticBroadcastAsUser(BroadcastIntentData data, int userId, List<BroadcastSystem.StaticReceiver> receivers, BroadcastSystem.Batch batch) {
+        BroadcastSystem.StaticReceiver first = receivers.get(0);
+        ActivityInfo info = first.info;
+        int vuid = VUserHandle.getUid(userId, first.appId);
+        synchronized (getStartLock(info.processName, userId)) {
             ProcessRecord r = findProcess(info.processName, vuid);
             if (r == null &&
-                    ((flags & BroadcastIntentData.TYPE_FROM_INTENT_SENDER) != 0 //通知栏之类的触发，允许唤醒应用
+                    ((data.type & BroadcastIntentData.TYPE_FROM_INTENT_SENDER) != 0 //通知栏之类的触发，允许唤醒应用
                             || isStartProcessForBroadcast(info.packageName, userId, data.intent.getAction()))) {
                 r = startProcessIfNeedLocked(info.processName, userId, info.packageName, -1, -1, VActivityManager.PROCESS_TYPE_RECEIVER);
+                if (r != null && batch.isExpired()) {
+                    VLog.w(BroadcastSystem.TAG, "handleStaticBroadcastAsUser %s started too late, ignore %s", info.processName, data.intent.getAction());
+                    return;
+                }
             }
             if (r != null && r.appThread != null) {
-                send = true;
-                performScheduleReceiver(r.client, vuid, info, data.intent, new PendingResultData(result, data.intent));
+                for (BroadcastSystem.StaticReceiver receiver : receivers) {
+                    performScheduleReceiver(r.client, vuid, receiver.info, data.intent, batch);
+                }
             } else {
-                VLog.w(BroadcastSystem.TAG, "handleStaticBroadcastAsUser %s not running, ignore %s", info.name, data.intent.getAction());
+                VLog.w(BroadcastSystem.TAG, "handleStaticBroadcastAsUser %s not running, ignore %s", info.processName, data.intent.getAction());
             }
         }
-        return send;
     }
 
     private boolean isStartProcessForBroadcast(String packageName, int userId, String action) {
@@ -1170,16 +1551,15 @@ public class VActivityManagerService extends IActivityManager.Stub {
     }
 
     private void performScheduleReceiver(IVClient client, int vuid, ActivityInfo info, Intent intent,
-                                         PendingResultData result) {
+                                         BroadcastSystem.Batch batch) {
         int userId = VUserHandle.getUserId(vuid);
         ComponentName componentName = ComponentUtils.toComponentName(info);
-        BroadcastSystem.get().broadcastSent(vuid, info, result, intent);
+        PendingResultData result = batch.newResult();
+        BroadcastSystem.get().broadcastSent(vuid, info, result, intent, batch);
         try {
             client.scheduleReceiver(info.processName, componentName, intent, result);
         } catch (Throwable e) {
-            if (result != null) {
-                BroadcastSystem.get().broadcastFinish(result, userId);
-            }
+            BroadcastSystem.get().broadcastFinish(result, userId);
         }
     }
 
@@ -1217,7 +1597,7 @@ public class VActivityManagerService extends IActivityManager.Stub {
     }
 
     public Intent getStartStubActivityIntentInner(Intent intent, boolean is64bit, int vpid, int userId, IBinder resultTo, ActivityInfo info) {
-        synchronized (this) {
+        synchronized (getStartLock(info.processName, userId)) {
             ActivityRecord targetRecord = mActivityStack.newActivityRecord(intent, info, resultTo, userId);
             return mActivityStack.getStartStubActivityIntentInner(intent, is64bit, vpid, userId, targetRecord, info);
         }
@@ -0,0 +1,335 @@
+package com.lody.virtual.server.am;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.client.ipc.ProviderCall;
+import com.lody.virtual.client.stub.StubManifest;
+import com.lody.virtual.helper.compat.BundleCompat;
+import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.server.bit64.V64BitHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Lody
+ * <p>
+ * Stub processes started ahead of time, so that the cold start of an app does not wait
+ * for the fork of the stub and the startup of the virtual environment in it.
+ * <p>
+ * A warm process has gone through {@link VirtualCore#startup} but has no {@link com.lody.virtual.remote.ClientConfig}
+ * yet, it is handed to the next app started with the same abi and picks up from
+ * the init process call, right before bindApplication.
+ * The pool is refilled in the background, unless the device is low on memory, and drained
+ * when the system asks to trim memory.
+ */
+final class WarmProcessPool implements ComponentCallbacks2 {
+
+    private static final String TAG = WarmProcessPool.class.getSimpleName();
+
+    static final String METHOD_WARM_UP = "_VA_|_warm_up_";
+
+    private static final long FILL_DELAY = 5 * 1000;
+    private static final long REFILL_DELAY = 3 * 1000;
+    /**
+     * Do not warm up when less than this share of the memory is available.
+     */
+    private static final int MIN_AVAILABLE_MEMORY_PERCENT = 15;
+
+    private final VActivityManagerService mService;
+    private final HandlerThread mWarmThread;
+    private final Handler mWarmHandler;
+    private final List<WarmProcess> mProcesses = new ArrayList<>();
+    private final Runnable[] mFillTasks = new Runnable[2];
+    private int mHits;
+    private int mMisses;
+
+    private static final class WarmProcess implements IBinder.DeathRecipient {
+        final int vpid;
+        final boolean is64bit;
+        int pid;
+        IBinder client;
+        long readyTime;
+
+        WarmProcess(int vpid, boolean is64bit) {
+            this.vpid = vpid;
+            this.is64bit = is64bit;
+        }
+
+        boolean isReady() {
+            return client != null;
+        }
+
+        @Override
+        public void binderDied() {
+            VActivityManagerService.get().getWarmProcessPool().onProcessDied(this);
+        }
+    }
+
+    WarmProcessPool(VActivityManagerService service) {
+        mService = service;
+        mWarmThread = new HandlerThread("_VA_ams_warm");
+        mWarmThread.start();
+        mWarmHandler = new Handler(mWarmThread.getLooper());
+        mFillTasks[0] = createFillTask(false);
+        mFillTasks[1] = createFillTask(true);
+    }
+
+    private Runnable createFillTask(final boolean is64bit) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fill(is64bit);
+            }
+        };
+    }
+
+    void systemReady(Context context) {
+        context.registerComponentCallbacks(this);
+        scheduleFill(false, FILL_DELAY);
+        scheduleFill(true, FILL_DELAY);
+    }
+
+    private static int getTargetSize(boolean is64bit) {
+        if (is64bit && !VirtualCore.get().is64BitEngineInstalled()) {
+            return 0;
+        }
+        return Math.max(0, VirtualCore.getConfig().getWarmProcessCount(is64bit));
+    }
+
+    private void scheduleFill(boolean is64bit, long delay) {
+        Runnable task = mFillTasks[is64bit ? 1 : 0];
+        mWarmHandler.removeCallbacks(task);
+        mWarmHandler.postDelayed(task, delay);
+    }
+
+    /**
+     * Take a ready process for a new app.
+     * Should guard by {@link VActivityManagerService#mProcessLock}
+     *
+     * @return the vpid of the process, or -1 if none is ready
+     */
+    int takeLocked(boolean is64bit) {
+        WarmProcess taken = null;
+        synchronized (mProcesses) {
+            for (int i = 0; i < mProcesses.size(); i++) {
+                WarmProcess p = mProcesses.get(i);
+                if (p.is64bit == is64bit && p.isReady()) {
+                    taken = mProcesses.remove(i);
+                    break;
+                }
+            }
+            if (taken != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        if (taken == null) {
+            scheduleFill(is64bit, REFILL_DELAY);
+            return -1;
+        }
+        taken.client.unlinkToDeath(taken, 0);
+        VLog.d(TAG, "take warm process p%d(64bit=%b), warm for %dms", taken.vpid, is64bit,
+                SystemClock.elapsedRealtime() - taken.readyTime);
+        scheduleFill(is64bit, REFILL_DELAY);
+        return taken.vpid;
+    }
+
+    /**
+     * A stub slot is reserved as soon as its warm up starts, so that it is never given to an app meanwhile.
+     */
+    boolean isReserved(int vpid, boolean is64bit) {
+        synchronized (mProcesses) {
+            return indexOf(vpid, is64bit) >= 0;
+        }
+    }
+
+    /**
+     * The slot is used by an app started in it by the system, forget about it.
+     * Should guard by {@link VActivityManagerService#mProcessLock}
+     */
+    void removeLocked(int vpid, boolean is64bit) {
+        WarmProcess removed = null;
+        synchronized (mProcesses) {
+            int index = indexOf(vpid, is64bit);
+            if (index >= 0) {
+                removed = mProcesses.remove(index);
+            }
+        }
+        if (removed != null && removed.isReady()) {
+            removed.client.unlinkToDeath(removed, 0);
+        }
+    }
+
+    /**
+     * Should guard by {@link VActivityManagerService#mProcessLock}
+     */
+    void reserveLocked(int vpid, boolean is64bit) {
+        synchronized (mProcesses) {
+            mProcesses.add(new WarmProcess(vpid, is64bit));
+        }
+    }
+
+    private int indexOf(int vpid, boolean is64bit) {
+        for (int i = 0; i < mProcesses.size(); i++) {
+            WarmProcess p = mProcesses.get(i);
+            if (p.vpid == vpid && p.is64bit == is64bit) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int count(boolean is64bit) {
+        int count = 0;
+        synchronized (mProcesses) {
+            for (WarmProcess p : mProcesses) {
+                if (p.is64bit == is64bit) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void fill(boolean is64bit) {
+        int target = getTargetSize(is64bit);
+        while (count(is64bit) < target) {
+            if (isLowOnMemory()) {
+                VLog.w(TAG, "low on memory, skip warm up");
+                return;
+            }
+            int vpid = mService.reserveStubForWarmUp(is64bit);
+            if (vpid == -1) {
+                return;
+            }
+            if (!warmUp(vpid, is64bit)) {
+                return;
+            }
+        }
+    }
+
+    private boolean warmUp(int vpid, boolean is64bit) {
+        long start = SystemClock.elapsedRealtime();
+        Bundle res = ProviderCall.callSafely(StubManifest.getStubAuthority(vpid, is64bit), METHOD_WARM_UP, null, null);
+        IBinder client = res != null ? BundleCompat.getBinder(res, "_VA_|_client_") : null;
+        WarmProcess process;
+        synchronized (mProcesses) {
+            int index = indexOf(vpid, is64bit);
+            process = index >= 0 ? mProcesses.get(index) : null;
+            if (process != null && client == null) {
+                mProcesses.remove(index);
+            }
+        }
+        if (process == null) {
+            // The slot was taken by an app started in it meanwhile.
+            return true;
+        }
+        if (client == null) {
+            VLog.e(TAG, "unable to warm up p%d(64bit=%b)", vpid, is64bit);
+            return false;
+        }
+        try {
+            client.linkToDeath(process, 0);
+        } catch (RemoteException e) {
+            removeProcess(process);
+            return false;
+        }
+        synchronized (mProcesses) {
+            process.pid = res.getInt("_VA_|_pid_");
+            process.readyTime = SystemClock.elapsedRealtime();
+            process.client = client;
+        }
+        VLog.d(TAG, "warm up p%d(64bit=%b) in %dms", vpid, is64bit, process.readyTime - start);
+        return true;
+    }
+
+    private boolean isLowOnMemory() {
+        ActivityManager am = (ActivityManager) VirtualCore.get().getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(info);
+        if (info.lowMemory) {
+            return true;
+        }
+        return info.totalMem > 0 && info.availMem * 100 / info.totalMem < MIN_AVAILABLE_MEMORY_PERCENT;
+    }
+
+    private void removeProcess(WarmProcess process) {
+        synchronized (mProcesses) {
+            mProcesses.remove(process);
+        }
+    }
+
+    private void onProcessDied(WarmProcess process) {
+        removeProcess(process);
+        VLog.w(TAG, "warm process p%d(64bit=%b) died", process.vpid, process.is64bit);
+        scheduleFill(process.is64bit, REFILL_DELAY);
+    }
+
+    /**
+     * Kill all the ready processes, they are refilled on the next app start.
+     */
+    void drain() {
+        mWarmHandler.removeCallbacks(mFillTasks[0]);
+        mWarmHandler.removeCallbacks(mFillTasks[1]);
+        List<WarmProcess> killed = new ArrayList<>();
+        synchronized (mProcesses) {
+            for (int i = mProcesses.size() - 1; i >= 0; i--) {
+                WarmProcess p = mProcesses.get(i);
+                if (p.isReady()) {
+                    killed.add(mProcesses.remove(i));
+                }
+            }
+        }
+        for (WarmProcess p : killed) {
+            p.client.unlinkToDeath(p, 0);
+            if (p.is64bit) {
+                V64BitHelper.forceStop64(p.pid);
+            } else {
+                Process.killProcess(p.pid);
+            }
+        }
+        if (!killed.isEmpty()) {
+            VLog.w(TAG, "drain %d warm processes", killed.size());
+        }
+    }
+
+    /**
+     * @return the number of app starts served and not served by a warm process
+     */
+    int[] getStatistics() {
+        synchronized (mProcesses) {
+            return new int[]{mHits, mMisses};
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // UI_HIDDEN only means the host went to background.
+        if (level >= TRIM_MEMORY_BACKGROUND
+                || (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)) {
+            drain();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        drain();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
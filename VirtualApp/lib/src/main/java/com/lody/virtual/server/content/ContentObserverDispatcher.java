@@ -0,0 +1,138 @@
+package com.lody.virtual.server.content;
+
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Lody
+ * <p>
+ * Delivers the change notifications of {@link VContentService} on its own thread, so that
+ * the caller of notifyChange does not wait for the observers.
+ * A change of the same uri notified again to an observer within {@link #COALESCE_WINDOW}
+ * is delivered once, the changes are delivered observer by observer.
+ */
+final class ContentObserverDispatcher {
+
+    private static final String TAG = "ContentService";
+    private static final long COALESCE_WINDOW = 20;
+
+    interface Callback {
+        void onObserverDied(IContentObserver observer);
+    }
+
+    private final Callback mCallback;
+    private final Handler mHandler;
+    /**
+     * The pending changes, by observer, in the order they were notified.
+     */
+    private final Map<IBinder, LinkedHashMap<Change, Change>> mPending = new LinkedHashMap<>();
+    private boolean mScheduled;
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static final class Change {
+        final IContentObserver observer;
+        final Uri uri;
+        final boolean selfChange;
+        final int userId;
+
+        Change(IContentObserver observer, Uri uri, boolean selfChange, int userId) {
+            this.observer = observer;
+            this.uri = uri;
+            this.selfChange = selfChange;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Change)) {
+                return false;
+            }
+            Change other = (Change) o;
+            return selfChange == other.selfChange && userId == other.userId
+                    && uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return (uri.hashCode() * 31 + userId) * 2 + (selfChange ? 1 : 0);
+        }
+    }
+
+    ContentObserverDispatcher(Callback callback) {
+        mCallback = callback;
+        HandlerThread thread = new HandlerThread("_VA_content_notify");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    void dispatch(List<VContentService.ObserverCall> calls, Uri uri, int userId) {
+        synchronized (mPending) {
+            for (VContentService.ObserverCall call : calls) {
+                IBinder binder = call.mObserver.asBinder();
+                LinkedHashMap<Change, Change> changes = mPending.get(binder);
+                if (changes == null) {
+                    changes = new LinkedHashMap<>();
+                    mPending.put(binder, changes);
+                }
+                Change change = new Change(call.mObserver, uri, call.mSelfChange, userId);
+                if (!changes.containsKey(change)) {
+                    changes.put(change, change);
+                }
+            }
+            if (!mScheduled && !mPending.isEmpty()) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlush, COALESCE_WINDOW);
+            }
+        }
+    }
+
+    /**
+     * Drop the pending changes of an observer that has been unregistered or died.
+     */
+    void cancel(IBinder observer) {
+        synchronized (mPending) {
+            mPending.remove(observer);
+        }
+    }
+
+    private void flush() {
+        List<LinkedHashMap<Change, Change>> batches;
+        synchronized (mPending) {
+            batches = new ArrayList<>(mPending.values());
+            mPending.clear();
+            mScheduled = false;
+        }
+        for (LinkedHashMap<Change, Change> changes : batches) {
+            for (Change change : changes.keySet()) {
+                try {
+                    change.observer.onChange(change.selfChange, change.uri, change.userId);
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "Notified " + change.observer + " of " + "update at " + change.uri);
+                    }
+                } catch (RemoteException ex) {
+                    Log.w(TAG, "Found dead observer, removing");
+                    mCallback.onObserverDied(change.observer);
+                    break;
+                }
+            }
+        }
+    }
+}
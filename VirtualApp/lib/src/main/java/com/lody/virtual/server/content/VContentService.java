@@ -26,6 +26,7 @@ import com.lody.virtual.os.VUserHandle;
 import com.lody.virtual.server.interfaces.IContentService;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 public final class VContentService extends IContentService.Stub {
@@ -33,6 +34,15 @@ public final class VContentService extends IContentService.Stub {
     private static final VContentService sInstance = new VContentService();
     private Context mContext;
     private final ObserverNode mRootNode = new ObserverNode("");
+    private final ContentObserverDispatcher mDispatcher = new ContentObserverDispatcher(
+            new ContentObserverDispatcher.Callback() {
+                @Override
+                public void onObserverDied(IContentObserver observer) {
+                    synchronized (mRootNode) {
+                        mRootNode.removeObserverLocked(observer);
+                    }
+                }
+            });
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -110,6 +120,7 @@ public final class VContentService extends IContentService.Stub {
         synchronized (mRootNode) {
             mRootNode.removeObserverLocked(observer);
         }
+        mDispatcher.cancel(observer.asBinder());
     }
 
     /**
@@ -139,31 +150,8 @@ public final class VContentService extends IContentService.Stub {
                 mRootNode.collectObserversLocked(uri, 0, observer, observerWantsSelfNotifications,
                         VUserHandle, calls);
             }
-            final int numCalls = calls.size();
-            for (int i = 0; i < numCalls; i++) {
-                ObserverCall oc = calls.get(i);
-                try {
-                    oc.mObserver.onChange(oc.mSelfChange, uri, VUserHandle);
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Notified " + oc.mObserver + " of " + "update at " + uri);
-                    }
-                } catch (RemoteException ex) {
-                    synchronized (mRootNode) {
-                        Log.w(TAG, "Found dead observer, removing");
-                        IBinder binder = oc.mObserver.asBinder();
-                        final ArrayList<ObserverNode.ObserverEntry> list
-                                = oc.mNode.mObservers;
-                        int numList = list.size();
-                        for (int j = 0; j < numList; j++) {
-                            ObserverNode.ObserverEntry oe = list.get(j);
-                            if (oe.observer.asBinder() == binder) {
-                                list.remove(j);
-                                j--;
-                                numList--;
-                            }
-                        }
-                    }
-                }
+            if (!calls.isEmpty()) {
+                mDispatcher.dispatch(calls, uri, VUserHandle);
             }
             if (syncToNetwork) {
                 SyncManager syncManager = getSyncManager();
@@ -609,6 +597,10 @@ public final class VContentService extends IContentService.Stub {
                 }
             }
 
+            ObserverNode getNode() {
+                return ObserverNode.this;
+            }
+
             public void binderDied() {
                 synchronized (observersLock) {
                     removeObserverLocked(observer);
@@ -621,11 +613,23 @@ public final class VContentService extends IContentService.Stub {
         public static final int DELETE_TYPE = 2;
 
         private String mName;
-        private ArrayList<ObserverNode> mChildren = new ArrayList<ObserverNode>();
+        private ObserverNode mParent;
+        private HashMap<String, ObserverNode> mChildren = new HashMap<String, ObserverNode>();
         private ArrayList<ObserverEntry> mObservers = new ArrayList<ObserverEntry>();
+        /**
+         * The entries of each observer in the whole tree, shared by all the nodes.
+         */
+        private final HashMap<IBinder, ArrayList<ObserverEntry>> mEntries;
 
         public ObserverNode(String name) {
             mName = name;
+            mEntries = new HashMap<IBinder, ArrayList<ObserverEntry>>();
+        }
+
+        private ObserverNode(String name, ObserverNode parent) {
+            mName = name;
+            mParent = parent;
+            mEntries = parent.mEntries;
         }
 
         private String getUriSegment(Uri uri, int index) {
@@ -660,8 +664,16 @@ public final class VContentService extends IContentService.Stub {
                                        int uid, int pid, int VUserHandle) {
             // If this is the leaf node add the observer
             if (index == countUriSegments(uri)) {
-                mObservers.add(new ObserverEntry(observer, notifyForDescendants, observersLock,
-                        uid, pid, VUserHandle));
+                ObserverEntry entry = new ObserverEntry(observer, notifyForDescendants, observersLock,
+                        uid, pid, VUserHandle);
+                mObservers.add(entry);
+                IBinder binder = observer.asBinder();
+                ArrayList<ObserverEntry> entries = mEntries.get(binder);
+                if (entries == null) {
+                    entries = new ArrayList<ObserverEntry>(1);
+                    mEntries.put(binder, entries);
+                }
+                entries.add(entry);
                 return;
             }
 
@@ -670,50 +682,45 @@ public final class VContentService extends IContentService.Stub {
             if (segment == null) {
                 throw new IllegalArgumentException("Invalid Uri (" + uri + ") used for observer");
             }
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (node.mName.equals(segment)) {
-                    node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                            observersLock, uid, pid, VUserHandle);
-                    return;
-                }
+            ObserverNode node = mChildren.get(segment);
+            if (node == null) {
+                // No child found, create one
+                node = new ObserverNode(segment, this);
+                mChildren.put(segment, node);
             }
-
-            // No child found, create one
-            ObserverNode node = new ObserverNode(segment);
-            mChildren.add(node);
             node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
                     observersLock, uid, pid, VUserHandle);
         }
 
+        /**
+         * Remove all the registrations of the observer, in the whole tree.
+         *
+         * @return true if this node is left empty
+         */
         public boolean removeObserverLocked(IContentObserver observer) {
-            int size = mChildren.size();
-            for (int i = 0; i < size; i++) {
-                boolean empty = mChildren.get(i).removeObserverLocked(observer);
-                if (empty) {
-                    mChildren.remove(i);
-                    i--;
-                    size--;
-                }
-            }
-
             IBinder observerBinder = observer.asBinder();
-            size = mObservers.size();
-            for (int i = 0; i < size; i++) {
-                ObserverEntry entry = mObservers.get(i);
-                if (entry.observer.asBinder() == observerBinder) {
-                    mObservers.remove(i);
+            ArrayList<ObserverEntry> entries = mEntries.remove(observerBinder);
+            if (entries != null) {
+                for (ObserverEntry entry : entries) {
                     // We no longer need to listen for death notifications. Remove it.
                     observerBinder.unlinkToDeath(entry, 0);
-                    break;
+                    ObserverNode node = entry.getNode();
+                    node.mObservers.remove(entry);
+                    node.pruneLocked();
                 }
             }
+            return mChildren.size() == 0 && mObservers.size() == 0;
+        }
 
-            if (mChildren.size() == 0 && mObservers.size() == 0) {
-                return true;
+        /**
+         * Detach the empty nodes from this one up to the root.
+         */
+        private void pruneLocked() {
+            ObserverNode node = this;
+            while (node.mParent != null && node.mChildren.isEmpty() && node.mObservers.isEmpty()) {
+                node.mParent.mChildren.remove(node.mName);
+                node = node.mParent;
             }
-            return false;
         }
 
         private void collectMyObserversLocked(boolean leaf, IContentObserver observer,
@@ -762,16 +769,17 @@ public final class VContentService extends IContentService.Stub {
                         targetUserHandle, calls);
             }
 
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (segment == null || node.mName.equals(segment)) {
+            if (segment == null) {
+                for (ObserverNode node : mChildren.values()) {
+                    node.collectObserversLocked(uri, index + 1,
+                            observer, observerWantsSelfNotifications, targetUserHandle, calls);
+                }
+            } else {
+                ObserverNode node = mChildren.get(segment);
+                if (node != null) {
                     // We found the child,
                     node.collectObserversLocked(uri, index + 1,
                             observer, observerWantsSelfNotifications, targetUserHandle, calls);
-                    if (segment != null) {
-                        break;
-                    }
                 }
             }
         }
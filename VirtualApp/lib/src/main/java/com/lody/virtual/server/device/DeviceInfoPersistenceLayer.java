@@ -38,13 +38,15 @@ public class DeviceInfoPersistenceLayer extends PersistenceLayer {
     @Override
     public void writePersistenceData(Parcel p) {
         SparseArray<VDeviceConfig> infos = mService.mDeviceConfigs;
-        int size = infos.size();
-        p.writeInt(size);
-        for (int i = 0; i < size; i++) {
-            int userId = infos.keyAt(i);
-            VDeviceConfig info = infos.valueAt(i);
-            p.writeInt(userId);
-            info.writeToParcel(p, 0);
+        synchronized (infos) {
+            int size = infos.size();
+            p.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                int userId = infos.keyAt(i);
+                VDeviceConfig info = infos.valueAt(i);
+                p.writeInt(userId);
+                info.writeToParcel(p, 0);
+            }
         }
     }
 
@@ -35,7 +35,7 @@ public class VDeviceManagerService extends IDeviceManager.Stub {
             if (info == null) {
                 info = VDeviceConfig.random();
                 mDeviceConfigs.put(userId, info);
-                mPersistenceLayer.save();
+                mPersistenceLayer.scheduleSave();
             }
         }
         return info;
@@ -46,7 +46,7 @@ public class VDeviceManagerService extends IDeviceManager.Stub {
         synchronized (mDeviceConfigs) {
             if (config != null) {
                 mDeviceConfigs.put(userId, config);
-                mPersistenceLayer.save();
+                mPersistenceLayer.scheduleSave();
             }
         }
     }
@@ -65,7 +65,7 @@ public class VDeviceManagerService extends IDeviceManager.Stub {
                 mDeviceConfigs.put(userId, info);
             }
             info.enable = enable;
-            mPersistenceLayer.save();
+            mPersistenceLayer.scheduleSave();
         }
     }
 
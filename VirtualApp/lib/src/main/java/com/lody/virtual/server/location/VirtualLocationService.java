@@ -86,13 +86,15 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
         @Override
         public void writePersistenceData(Parcel p) {
-            mGlobalConfig.writeToParcel(p, 0);
-            p.writeInt(mLocConfigs.size());
-            for (int i = 0; i < mLocConfigs.size(); i++) {
-                int userId = mLocConfigs.keyAt(i);
-                Map<String, VLocConfig> pkgs = mLocConfigs.valueAt(i);
-                p.writeInt(userId);
-                p.writeMap(pkgs);
+            synchronized (mLocConfigs) {
+                mGlobalConfig.writeToParcel(p, 0);
+                p.writeInt(mLocConfigs.size());
+                for (int i = 0; i < mLocConfigs.size(); i++) {
+                    int userId = mLocConfigs.keyAt(i);
+                    Map<String, VLocConfig> pkgs = mLocConfigs.valueAt(i);
+                    p.writeInt(userId);
+                    p.writeMap(pkgs);
+                }
             }
         }
 
@@ -122,7 +124,7 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
     public int getMode(int userId, String pkg) {
         synchronized (mLocConfigs) {
             VLocConfig config = getOrCreateConfig(userId, pkg);
-            mPersistenceLayer.save();
+            mPersistenceLayer.scheduleSave();
             return config.mode;
         }
     }
@@ -131,10 +133,13 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
     public void setMode(int userId, String pkg, int mode) {
         synchronized (mLocConfigs) {
             getOrCreateConfig(userId, pkg).mode = mode;
-            mPersistenceLayer.save();
+            mPersistenceLayer.scheduleSave();
         }
     }
 
+    /**
+     * Called with {@link #mLocConfigs} locked, which guards the global config as well.
+     */
     private VLocConfig getOrCreateConfig(int userId, String pkg) {
         Map<String, VLocConfig> pkgs = mLocConfigs.get(userId);
         if (pkgs == null) {
@@ -152,114 +157,140 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
     @Override
     public void setCell(int userId, String pkg, VCell cell) {
-        getOrCreateConfig(userId, pkg).cell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).cell = cell;
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
     @Override
     public void setAllCell(int userId, String pkg, List<VCell> cell) {
-        getOrCreateConfig(userId, pkg).allCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).allCell = cell;
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
     @Override
     public void setNeighboringCell(int userId, String pkg, List<VCell> cell) {
-        getOrCreateConfig(userId, pkg).neighboringCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).neighboringCell = cell;
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
     @Override
     public void setGlobalCell(VCell cell) {
-        mGlobalConfig.cell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            mGlobalConfig.cell = cell;
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
     @Override
     public void setGlobalAllCell(List<VCell> cell) {
-        mGlobalConfig.allCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            mGlobalConfig.allCell = cell;
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
     @Override
     public void setGlobalNeighboringCell(List<VCell> cell) {
-        mGlobalConfig.neighboringCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            mGlobalConfig.neighboringCell = cell;
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
     @Override
     public VCell getCell(int userId, String pkg) {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
-        switch (config.mode) {
-            case VirtualLocationManager.MODE_USE_SELF:
-                return config.cell;
-            case VirtualLocationManager.MODE_USE_GLOBAL:
-                return mGlobalConfig.cell;
-            case VirtualLocationManager.MODE_CLOSE:
-            default:
-                return null;
+        synchronized (mLocConfigs) {
+            VLocConfig config = getOrCreateConfig(userId, pkg);
+            mPersistenceLayer.scheduleSave();
+            switch (config.mode) {
+                case VirtualLocationManager.MODE_USE_SELF:
+                    return config.cell;
+                case VirtualLocationManager.MODE_USE_GLOBAL:
+                    return mGlobalConfig.cell;
+                case VirtualLocationManager.MODE_CLOSE:
+                default:
+                    return null;
+            }
         }
     }
 
     @Override
     public List<VCell> getAllCell(int userId, String pkg) {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
-        switch (config.mode) {
-            case VirtualLocationManager.MODE_USE_SELF:
-                return config.allCell;
-            case VirtualLocationManager.MODE_USE_GLOBAL:
-                return mGlobalConfig.allCell;
-            case VirtualLocationManager.MODE_CLOSE:
-            default:
-                return null;
+        synchronized (mLocConfigs) {
+            VLocConfig config = getOrCreateConfig(userId, pkg);
+            mPersistenceLayer.scheduleSave();
+            switch (config.mode) {
+                case VirtualLocationManager.MODE_USE_SELF:
+                    return config.allCell;
+                case VirtualLocationManager.MODE_USE_GLOBAL:
+                    return mGlobalConfig.allCell;
+                case VirtualLocationManager.MODE_CLOSE:
+                default:
+                    return null;
+            }
         }
     }
 
     @Override
     public List<VCell> getNeighboringCell(int userId, String pkg) {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
-        switch (config.mode) {
-            case VirtualLocationManager.MODE_USE_SELF:
-                return config.neighboringCell;
-            case VirtualLocationManager.MODE_USE_GLOBAL:
-                return mGlobalConfig.neighboringCell;
-            case VirtualLocationManager.MODE_CLOSE:
-            default:
-                return null;
+        synchronized (mLocConfigs) {
+            VLocConfig config = getOrCreateConfig(userId, pkg);
+            mPersistenceLayer.scheduleSave();
+            switch (config.mode) {
+                case VirtualLocationManager.MODE_USE_SELF:
+                    return config.neighboringCell;
+                case VirtualLocationManager.MODE_USE_GLOBAL:
+                    return mGlobalConfig.neighboringCell;
+                case VirtualLocationManager.MODE_CLOSE:
+                default:
+                    return null;
+            }
         }
     }
 
     @Override
     public void setLocation(int userId, String pkg, VLocation loc) {
-        getOrCreateConfig(userId, pkg).location = loc;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).location = loc;
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
     @Override
     public VLocation getLocation(int userId, String pkg) {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
-        switch (config.mode) {
-            case VirtualLocationManager.MODE_USE_SELF:
-                return config.location;
-            case VirtualLocationManager.MODE_USE_GLOBAL:
-                return mGlobalConfig.location;
-            case VirtualLocationManager.MODE_CLOSE:
-            default:
-                return null;
+        synchronized (mLocConfigs) {
+            VLocConfig config = getOrCreateConfig(userId, pkg);
+            mPersistenceLayer.scheduleSave();
+            switch (config.mode) {
+                case VirtualLocationManager.MODE_USE_SELF:
+                    return config.location;
+                case VirtualLocationManager.MODE_USE_GLOBAL:
+                    return mGlobalConfig.location;
+                case VirtualLocationManager.MODE_CLOSE:
+                default:
+                    return null;
+            }
         }
     }
 
     @Override
     public void setGlobalLocation(VLocation loc) {
-        mGlobalConfig.location = loc;
+        synchronized (mLocConfigs) {
+            mGlobalConfig.location = loc;
+        }
     }
 
     @Override
     public VLocation getGlobalLocation() {
-        return mGlobalConfig.location;
+        synchronized (mLocConfigs) {
+            return mGlobalConfig.location;
+        }
     }
 
 }
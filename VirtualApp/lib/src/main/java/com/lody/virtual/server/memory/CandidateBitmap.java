@@ -0,0 +1,126 @@
+package com.lody.virtual.server.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Lody
+ * <p>
+ * Result of a {@link MemorySnapshot#compare}: one bit per aligned value of the snapshot,
+ * kept in a temp file mapped chunk by chunk, so that even the hundreds of millions of
+ * candidates of a first unknown value scan do not touch the Java heap.
+ */
+public class CandidateBitmap {
+
+    private final MemorySnapshot snapshot;
+    private final MemoryValue.ValueType type;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    CandidateBitmap(MemorySnapshot snapshot, MemoryValue.ValueType type, File dir) throws IOException {
+        this.snapshot = snapshot;
+        this.type = type;
+        this.file = File.createTempFile("candidates", ".bits", dir);
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        // Chunk offsets and lengths are multiples of the page size, each chunk maps to whole bytes.
+        raf.setLength(snapshot.getSize() / type.size / 8);
+    }
+
+    public MemoryValue.ValueType getType() {
+        return type;
+    }
+
+    /**
+     * @return the snapshot the candidates were read from
+     */
+    public MemorySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    MappedByteBuffer map(int chunk, FileChannel.MapMode mode) throws IOException {
+        long offset = snapshot.getChunkOffset(chunk) / type.size / 8;
+        int length = snapshot.getChunkLength(chunk) / type.size / 8;
+        return channel.map(mode, offset, length);
+    }
+
+    /**
+     * @return the number of candidates
+     */
+    public long count() throws IOException {
+        long count = 0;
+        for (int chunk = 0; chunk < snapshot.getChunkCount(); chunk++) {
+            if (snapshot.getValidLength(chunk) == 0) {
+                continue;
+            }
+            MappedByteBuffer bits = map(chunk, FileChannel.MapMode.READ_ONLY);
+            try {
+                while (bits.remaining() >= 8) {
+                    count += Long.bitCount(bits.getLong());
+                }
+                while (bits.hasRemaining()) {
+                    count += Integer.bitCount(bits.get() & 0xFF);
+                }
+            } finally {
+                MemorySnapshot.free(bits);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Load the candidates along with their value in the snapshot, once they are few enough
+     * to be refined against the live memory by {@link MemoryScanEngine}.
+     *
+     * @param limit the maximum number of candidates to load
+     */
+    public CandidateSet toCandidateSet(int limit) throws IOException {
+        CandidateSet set = new CandidateSet(type);
+        int size = type.size;
+        for (int chunk = 0; chunk < snapshot.getChunkCount() && set.size() < limit; chunk++) {
+            if (snapshot.getValidLength(chunk) == 0) {
+                continue;
+            }
+            MappedByteBuffer bits = map(chunk, FileChannel.MapMode.READ_ONLY);
+            MappedByteBuffer values = null;
+            try {
+                long address = snapshot.getChunkAddress(chunk);
+                for (int b = 0; b < bits.limit() && set.size() < limit; b++) {
+                    int mask = bits.get(b) & 0xFF;
+                    if (mask == 0) {
+                        continue;
+                    }
+                    if (values == null) {
+                        values = snapshot.map(chunk, FileChannel.MapMode.READ_ONLY);
+                    }
+                    for (int k = 0; k < 8 && set.size() < limit; k++) {
+                        if ((mask & (1 << k)) != 0) {
+                            int offset = (b * 8 + k) * size;
+                            set.add(address + offset, type.load(values, offset));
+                        }
+                    }
+                }
+            } finally {
+                MemorySnapshot.free(bits);
+                MemorySnapshot.free(values);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Close and delete the bitmap file.
+     */
+    public void release() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        file.delete();
+    }
+}
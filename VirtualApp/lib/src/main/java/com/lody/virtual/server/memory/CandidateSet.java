@@ -0,0 +1,151 @@
+package com.lody.virtual.server.memory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Lody
+ * <p>
+ * Sorted set of candidate addresses, with the value last read at each of them.
+ * <p>
+ * Addresses are split in 4 GiB segments: only the low 32 bits of each address are stored,
+ * next to the value packed on its own size. A million int candidates take 8 MB.
+ */
+public class CandidateSet {
+
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+
+    private final MemoryValue.ValueType type;
+
+    private long[] segmentBases = new long[4];
+    /**
+     * Index of the first candidate of each segment.
+     */
+    private int[] segmentStarts = new int[4];
+    private int segmentCount;
+
+    private int[] offsets;
+    private ByteBuffer values;
+    private int size;
+
+    public CandidateSet(MemoryValue.ValueType type) {
+        this(type, 16);
+    }
+
+    public CandidateSet(MemoryValue.ValueType type, int capacity) {
+        this.type = type;
+        capacity = Math.max(capacity, 1);
+        offsets = new int[capacity];
+        values = ByteBuffer.allocate(capacity * type.size).order(MemoryValue.BYTE_ORDER);
+    }
+
+    public MemoryValue.ValueType getType() {
+        return type;
+    }
+
+    /**
+     * @param address must be greater than the last added address
+     * @param bits    raw bits of the value read at the address
+     */
+    public void add(long address, long bits) {
+        long base = address & ~LOW_MASK;
+        if (segmentCount == 0 || segmentBases[segmentCount - 1] != base) {
+            if (segmentCount > 0 && base < segmentBases[segmentCount - 1]) {
+                throw new IllegalArgumentException("Addresses must be added in order");
+            }
+            if (segmentCount == segmentBases.length) {
+                segmentBases = Arrays.copyOf(segmentBases, segmentCount * 2);
+                segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+            }
+            segmentBases[segmentCount] = base;
+            segmentStarts[segmentCount] = size;
+            segmentCount++;
+        }
+        if (size == offsets.length) {
+            grow(size + 1);
+        }
+        offsets[size] = (int) address;
+        type.store(values, size * type.size, bits);
+        size++;
+    }
+
+    public void addAll(CandidateSet other) {
+        if (other.type != type) {
+            throw new IllegalArgumentException("Type mismatch: " + other.type + " != " + type);
+        }
+        if (size + other.size > offsets.length) {
+            grow(size + other.size);
+        }
+        for (int s = 0; s < other.segmentCount; s++) {
+            long base = other.segmentBases[s];
+            int end = s + 1 < other.segmentCount ? other.segmentStarts[s + 1] : other.size;
+            for (int i = other.segmentStarts[s]; i < end; i++) {
+                add(base | (other.offsets[i] & LOW_MASK), other.getBits(i));
+            }
+        }
+    }
+
+    public long getAddress(int index) {
+        checkIndex(index);
+        return segmentBases[segmentOf(index)] | (offsets[index] & LOW_MASK);
+    }
+
+    public long getBits(int index) {
+        checkIndex(index);
+        return type.load(values, index * type.size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of bytes used by the candidates
+     */
+    public long getByteSize() {
+        return (long) offsets.length * (4 + type.size) + segmentBases.length * 12L;
+    }
+
+    public void trimToSize() {
+        if (offsets.length > size) {
+            resize(size);
+        }
+    }
+
+    private int segmentOf(int index) {
+        int low = 0;
+        int high = segmentCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segmentStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = offsets.length + (offsets.length >> 1);
+        resize(Math.max(capacity, minCapacity));
+    }
+
+    private void resize(int capacity) {
+        capacity = Math.max(capacity, 1);
+        offsets = Arrays.copyOf(offsets, capacity);
+        ByteBuffer newValues = ByteBuffer.allocate(capacity * type.size).order(MemoryValue.BYTE_ORDER);
+        newValues.put(values.array(), 0, size * type.size);
+        values = newValues;
+    }
+}
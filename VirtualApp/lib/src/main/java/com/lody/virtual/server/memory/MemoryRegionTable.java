@@ -0,0 +1,468 @@
+package com.lody.virtual.server.memory;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * @author Lody
+ * <p>
+ * The mappings of a process, parsed from /proc/pid/maps into parallel primitive arrays
+ * sorted by start address. Names are only decoded when asked for, they are kept as
+ * ranges of the raw maps content, which is shared by the tables filtered from this one.
+ */
+public class MemoryRegionTable {
+
+    public static final int FLAG_READABLE = 1;
+    public static final int FLAG_WRITABLE = 1 << 1;
+    public static final int FLAG_EXECUTABLE = 1 << 2;
+    public static final int FLAG_SHARED = 1 << 3;
+    /**
+     * Not backed by a file (inode 0).
+     */
+    public static final int FLAG_ANONYMOUS = 1 << 4;
+    /**
+     * [heap] or a named native allocator mapping.
+     */
+    public static final int FLAG_HEAP = 1 << 5;
+    /**
+     * [stack] or [stack:tid].
+     */
+    public static final int FLAG_STACK = 1 << 6;
+    public static final int FLAG_NAMED = 1 << 7;
+    /**
+     * Mapping of a .so, .oat, .odex or .vdex file.
+     */
+    public static final int FLAG_LIBRARY = 1 << 8;
+    /**
+     * Mapping created by ART, its name contains "dalvik-".
+     */
+    public static final int FLAG_DALVIK = 1 << 9;
+    public static final int FLAG_DELETED = 1 << 10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] HEAP = "[heap]".getBytes(UTF_8);
+    private static final byte[] ANON_MALLOC = "[anon:libc_malloc".getBytes(UTF_8);
+    private static final byte[] ANON_SCUDO = "[anon:scudo:".getBytes(UTF_8);
+    private static final byte[] STACK = "[stack".getBytes(UTF_8);
+    private static final byte[] DALVIK = "dalvik-".getBytes(UTF_8);
+    private static final byte[] DELETED = " (deleted)".getBytes(UTF_8);
+    private static final byte[][] LIBRARY_SUFFIXES = {
+            ".so".getBytes(UTF_8),
+            ".oat".getBytes(UTF_8),
+            ".odex".getBytes(UTF_8),
+            ".vdex".getBytes(UTF_8),
+    };
+
+    private final byte[] data;
+    private long[] starts;
+    private long[] ends;
+    private long[] offsets;
+    private long[] devices;
+    private long[] inodes;
+    private int[] flags;
+    private int[] nameStarts;
+    private int[] nameLengths;
+    private int size;
+    /**
+     * Result of the last {@link #parseHex}, avoids allocating while parsing.
+     */
+    private long hexValue;
+
+    private MemoryRegionTable(byte[] data, int capacity) {
+        this.data = data;
+        capacity = Math.max(capacity, 1);
+        starts = new long[capacity];
+        ends = new long[capacity];
+        offsets = new long[capacity];
+        devices = new long[capacity];
+        inodes = new long[capacity];
+        flags = new int[capacity];
+        nameStarts = new int[capacity];
+        nameLengths = new int[capacity];
+    }
+
+    /**
+     * Parse the content of a maps file.
+     *
+     * @param length number of valid bytes in data
+     */
+    public static MemoryRegionTable parse(byte[] data, int length) {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                lines++;
+            }
+        }
+        MemoryRegionTable table = new MemoryRegionTable(data, lines + 1);
+        int pos = 0;
+        while (pos < length) {
+            pos = table.parseLine(pos, length);
+        }
+        return table;
+    }
+
+    /**
+     * @return the position following the line
+     */
+    private int parseLine(int pos, int length) {
+        int lineStart = pos;
+        int lineEnd = pos;
+        while (lineEnd < length && data[lineEnd] != '\n') {
+            lineEnd++;
+        }
+        if (lineEnd == pos) {
+            return lineEnd + 1;
+        }
+        int i = size;
+        pos = parseHex(pos, lineEnd, '-', lineStart);
+        starts[i] = hexValue;
+        pos = parseHex(pos, lineEnd, ' ', lineStart);
+        ends[i] = hexValue;
+        if (pos + 5 > lineEnd) {
+            throw malformed(lineStart, lineEnd);
+        }
+        int f = 0;
+        if (data[pos] == 'r') f |= FLAG_READABLE;
+        if (data[pos + 1] == 'w') f |= FLAG_WRITABLE;
+        if (data[pos + 2] == 'x') f |= FLAG_EXECUTABLE;
+        if (data[pos + 3] == 's') f |= FLAG_SHARED;
+        pos += 5;
+        pos = parseHex(pos, lineEnd, ' ', lineStart);
+        offsets[i] = hexValue;
+        pos = parseHex(pos, lineEnd, ':', lineStart);
+        long major = hexValue;
+        pos = parseHex(pos, lineEnd, ' ', lineStart);
+        devices[i] = (major << 32) | (hexValue & 0xFFFFFFFFL);
+        long inode = 0;
+        while (pos < lineEnd && data[pos] >= '0' && data[pos] <= '9') {
+            inode = inode * 10 + (data[pos++] - '0');
+        }
+        inodes[i] = inode;
+        if (inode == 0) {
+            f |= FLAG_ANONYMOUS;
+        }
+        while (pos < lineEnd && data[pos] == ' ') {
+            pos++;
+        }
+        nameStarts[i] = pos;
+        nameLengths[i] = lineEnd - pos;
+        flags[i] = f | classify(pos, lineEnd);
+        size++;
+        return lineEnd + 1;
+    }
+
+    /**
+     * Parse an unsigned hex number ending with the given separator, into hexValue.
+     *
+     * @return the position following the separator
+     */
+    private int parseHex(int pos, int end, char separator, int lineStart) {
+        long result = 0;
+        int digits = 0;
+        while (pos < end && data[pos] != separator) {
+            int c = data[pos++];
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else {
+                throw malformed(lineStart, end);
+            }
+            result = (result << 4) | digit;
+            digits++;
+        }
+        if (digits == 0 || pos == end) {
+            throw malformed(lineStart, end);
+        }
+        hexValue = result;
+        return pos + 1;
+    }
+
+    private IllegalArgumentException malformed(int lineStart, int lineEnd) {
+        return new IllegalArgumentException("The provided line is not a /proc/$pid/maps line. Given: "
+                + new String(data, lineStart, lineEnd - lineStart, UTF_8));
+    }
+
+    private int classify(int start, int end) {
+        if (start == end) {
+            return 0;
+        }
+        int f = FLAG_NAMED;
+        if (startsWith(start, end, HEAP) || startsWith(start, end, ANON_MALLOC) || startsWith(start, end, ANON_SCUDO)) {
+            f |= FLAG_HEAP;
+        } else if (startsWith(start, end, STACK)) {
+            f |= FLAG_STACK;
+        }
+        if (endsWith(start, end, DELETED)) {
+            f |= FLAG_DELETED;
+            end -= DELETED.length;
+        }
+        for (byte[] suffix : LIBRARY_SUFFIXES) {
+            if (endsWith(start, end, suffix)) {
+                f |= FLAG_LIBRARY;
+                break;
+            }
+        }
+        if (contains(start, end, DALVIK)) {
+            f |= FLAG_DALVIK;
+        }
+        return f;
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && regionMatches(start, prefix);
+    }
+
+    private boolean endsWith(int start, int end, byte[] suffix) {
+        return end - start >= suffix.length && regionMatches(end - suffix.length, suffix);
+    }
+
+    private boolean contains(int start, int end, byte[] part) {
+        for (int i = start; i <= end - part.length; i++) {
+            if (regionMatches(i, part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionMatches(int pos, byte[] part) {
+        for (int i = 0; i < part.length; i++) {
+            if (data[pos + i] != part[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    public long getEnd(int index) {
+        return ends[index];
+    }
+
+    public long getSize(int index) {
+        return ends[index] - starts[index];
+    }
+
+    public int getFlags(int index) {
+        return flags[index];
+    }
+
+    public boolean hasFlags(int index, int mask) {
+        return (flags[index] & mask) == mask;
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    public long getInode(int index) {
+        return inodes[index];
+    }
+
+    /**
+     * Decodes the name, prefer {@link #getFlags(int)} in loops.
+     */
+    public String getName(int index) {
+        return new String(data, nameStarts[index], nameLengths[index], UTF_8);
+    }
+
+    /**
+     * @return the total size of the regions in bytes
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += ends[i] - starts[i];
+        }
+        return total;
+    }
+
+    public MappedMemoryRegion getRegion(int index) {
+        int f = flags[index];
+        return new MappedMemoryRegion(starts[index], ends[index],
+                (f & FLAG_READABLE) != 0, (f & FLAG_WRITABLE) != 0,
+                (f & FLAG_EXECUTABLE) != 0, (f & FLAG_SHARED) != 0,
+                offsets[index], devices[index] >>> 32, devices[index] & 0xFFFFFFFFL, inodes[index],
+                getName(index));
+    }
+
+    /**
+     * @return the regions accepted by the filter, the names are shared with this table
+     */
+    public MemoryRegionTable filter(Filter filter) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (filter.accept(this, i)) {
+                count++;
+            }
+        }
+        MemoryRegionTable table = new MemoryRegionTable(data, count);
+        for (int i = 0; i < size; i++) {
+            if (filter.accept(this, i)) {
+                int j = table.size++;
+                table.starts[j] = starts[i];
+                table.ends[j] = ends[i];
+                table.offsets[j] = offsets[i];
+                table.devices[j] = devices[i];
+                table.inodes[j] = inodes[i];
+                table.flags[j] = flags[i];
+                table.nameStarts[j] = nameStarts[i];
+                table.nameLengths[j] = nameLengths[i];
+            }
+        }
+        return table;
+    }
+
+    private boolean sameRegion(int index, MemoryRegionTable other, int otherIndex) {
+        if (starts[index] != other.starts[otherIndex]
+                || ends[index] != other.ends[otherIndex]
+                || flags[index] != other.flags[otherIndex]
+                || offsets[index] != other.offsets[otherIndex]
+                || inodes[index] != other.inodes[otherIndex]
+                || nameLengths[index] != other.nameLengths[otherIndex]) {
+            return false;
+        }
+        int a = nameStarts[index];
+        int b = other.nameStarts[otherIndex];
+        for (int i = 0; i < nameLengths[index]; i++) {
+            if (data[a + i] != other.data[b + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare with a newer layout of the same process, in a single pass over both tables.
+     */
+    public Diff diff(MemoryRegionTable newer) {
+        int[] removed = new int[size];
+        int[] added = new int[newer.size];
+        int removedCount = 0;
+        int addedCount = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < newer.size) {
+            long a = starts[i];
+            long b = newer.starts[j];
+            if (a == b) {
+                if (!sameRegion(i, newer, j)) {
+                    removed[removedCount++] = i;
+                    added[addedCount++] = j;
+                }
+                i++;
+                j++;
+            } else if (a + Long.MIN_VALUE < b + Long.MIN_VALUE) {
+                // Unsigned comparison, kernel mappings may be above the signed range.
+                removed[removedCount++] = i++;
+            } else {
+                added[addedCount++] = j++;
+            }
+        }
+        while (i < size) {
+            removed[removedCount++] = i++;
+        }
+        while (j < newer.size) {
+            added[addedCount++] = j++;
+        }
+        return new Diff(Arrays.copyOf(removed, removedCount), Arrays.copyOf(added, addedCount));
+    }
+
+    public static class Diff {
+        /**
+         * Indexes in the older table of the regions that are gone or changed.
+         */
+        public final int[] removed;
+        /**
+         * Indexes in the newer table of the regions that are new or changed.
+         */
+        public final int[] added;
+
+        Diff(int[] removed, int[] added) {
+            this.removed = removed;
+            this.added = added;
+        }
+
+        public boolean isEmpty() {
+            return removed.length == 0 && added.length == 0;
+        }
+    }
+
+    /**
+     * Accepts the regions having all the required flags, none of the excluded flags,
+     * at least one of the "any" flags if any, and a size within the bounds.
+     */
+    public static class Filter {
+        private int required;
+        private int excluded;
+        private int any;
+        private long minSize;
+        private long maxSize = Long.MAX_VALUE;
+
+        /**
+         * The regions the scan engine reads: readable, writable and not deleted.
+         */
+        public static Filter scannable() {
+            return new Filter().require(FLAG_READABLE | FLAG_WRITABLE).exclude(FLAG_DELETED);
+        }
+
+        public Filter require(int flags) {
+            required |= flags;
+            return this;
+        }
+
+        public Filter exclude(int flags) {
+            excluded |= flags;
+            return this;
+        }
+
+        /**
+         * e.g. {@code anyOf(FLAG_HEAP | FLAG_STACK)}
+         */
+        public Filter anyOf(int flags) {
+            any |= flags;
+            return this;
+        }
+
+        public Filter anonymousOnly() {
+            return require(FLAG_ANONYMOUS);
+        }
+
+        /**
+         * Exclude the .so/.oat/.odex/.vdex and dalvik- mappings.
+         */
+        public Filter excludeLibraries() {
+            return exclude(FLAG_LIBRARY | FLAG_DALVIK);
+        }
+
+        public Filter size(long min, long max) {
+            minSize = min;
+            maxSize = max;
+            return this;
+        }
+
+        public boolean accept(MemoryRegionTable table, int index) {
+            int f = table.flags[index];
+            if ((f & required) != required || (f & excluded) != 0) {
+                return false;
+            }
+            if (any != 0 && (f & any) == 0) {
+                return false;
+            }
+            long size = table.ends[index] - table.starts[index];
+            return size >= minSize && size <= maxSize;
+        }
+    }
+}
@@ -2,106 +2,454 @@ package com.lody.virtual.server.memory;
 
 import com.lody.virtual.helper.utils.VLog;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Lody
+ * <p>
+ * Scans the writable memory of a process for a value.
+ * <p>
+ * Regions are split in ranges of {@link #TASK_SIZE} bytes which are scanned in parallel,
+ * each of them with positional bulk reads of {@link #CHUNK_SIZE} bytes. Every read also
+ * covers the first bytes of the next chunk, so that a value straddling two chunks is found
+ * once. Matches are kept as a sorted {@link CandidateSet}.
+ * <p>
+ * The refine methods narrow the matches of the previous search or refine by reading only the
+ * candidate addresses again, nearby candidates are read together.
  */
 public class MemoryScanEngine {
 
-    private List<MappedMemoryRegion> regions;
+    private static final String TAG = MemoryScanEngine.class.getSimpleName();
+
+    /**
+     * Size of a single read, a multiple of every supported alignment.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    /**
+     * Size of the ranges scanned by a single task.
+     */
+    private static final long TASK_SIZE = 8L * CHUNK_SIZE;
+    /**
+     * Number of candidates refined by a single task.
+     */
+    private static final int REFINE_TASK_SIZE = 64 * 1024;
+    /**
+     * Candidates separated by at most this many bytes are read together.
+     */
+    private static final int REFINE_MAX_GAP = 4096;
+
+    public enum Refine {
+        EQUAL,
+        CHANGED,
+        UNCHANGED,
+        INCREASED,
+        DECREASED,
+        IN_RANGE
+    }
+
+    private static final ThreadLocal<ByteBuffer> sBuffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            // The scanned values are loaded in the byte order of the target, which is the one of this device.
+            return ByteBuffer.allocateDirect(CHUNK_SIZE + 8).order(ByteOrder.nativeOrder());
+        }
+    };
+
+    private MemoryRegionTable regions;
+    private MemoryRegionTable.Filter regionFilter = MemoryRegionTable.Filter.scannable();
 
     private int pid;
     private ProcessMemory memory;
-    private static final int PAGE = 4096;
-    private List<Match> matches;
+    private ExecutorService executor;
+    private CandidateSet matches;
 
     public MemoryScanEngine(int pid) throws IOException {
         this.pid = pid;
         this.memory = new ProcessMemory(pid);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
         updateMemoryLayout();
     }
 
-    public void updateMemoryLayout() {
+    /**
+     * @return true if the scanned regions changed since the last update
+     */
+    public boolean updateMemoryLayout() {
+        MemoryRegionTable layout;
         try {
-            regions = MemoryRegionParser.getMemoryRegions(pid);
+            layout = MemoryRegionParser.getMemoryRegionTable(pid).filter(regionFilter);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        boolean changed = regions == null || !regions.diff(layout).isEmpty();
+        regions = layout;
+        return changed;
     }
 
-    public List<Match> getMatches() {
+    /**
+     * Restrict the scanned regions, e.g. to skip the libraries or the small mappings.
+     * Only readable, writable and not deleted regions are scanned by default.
+     */
+    public void setRegionFilter(MemoryRegionTable.Filter filter) {
+        regionFilter = filter;
+        regions = null;
+        updateMemoryLayout();
+    }
+
+    public MemoryRegionTable getMemoryLayout() {
+        return regions;
+    }
+
+    /**
+     * @return the candidates left by the last search or refine, or null before the first search
+     */
+    public CandidateSet getMatches() {
         return matches;
     }
 
+    /**
+     * Search the value at the addresses aligned on its size.
+     */
     public void search(MemoryValue value) throws IOException {
-        matches = new LinkedList<>();
-        byte[] bytes = new byte[PAGE];
-        byte[] valueBytes = value.toBytes();
-        for (MappedMemoryRegion region : regions) {
-            long start = region.startAddress;
-            long end = region.endAddress;
-            try {
-                while (start < end) {
-                    int read = Math.min(bytes.length, (int) (end - start));
-                    read = memory.read(start, bytes, read);
-                    matches.addAll(matchBytes(region, start, bytes, read, valueBytes));
-                    start += PAGE;
-                }
-            } catch (IOException e) {
-                VLog.e(getClass().getSimpleName(), "Unable to read region : " + region.description);
+        search(value, value.getSize());
+    }
+
+    /**
+     * @param alignment the step between two candidate addresses, a power of two up to 8
+     */
+    public void search(MemoryValue value, int alignment) throws IOException {
+        if (alignment <= 0 || alignment > 8 || (alignment & (alignment - 1)) != 0) {
+            throw new IllegalArgumentException("Invalid alignment: " + alignment);
+        }
+        List<Future<CandidateSet>> tasks = new ArrayList<>();
+        MemoryRegionTable regions = this.regions;
+        for (int i = 0; i < regions.size(); i++) {
+            long regionEnd = regions.getEnd(i);
+            for (long start = regions.getStart(i); start < regionEnd; start += TASK_SIZE) {
+                long end = Math.min(start + TASK_SIZE, regionEnd);
+                tasks.add(executor.submit(new ScanTask(regions, i, start, end, value, alignment)));
             }
         }
+        matches = collect(tasks, value.getType());
+    }
+
+    /**
+     * Start a scan for an unknown value from candidates found by {@link MemorySnapshot#compare}.
+     */
+    public void setMatches(CandidateSet matches) {
+        this.matches = matches;
+    }
+
+    /**
+     * Copy the scanned regions into a file of the given directory.
+     */
+    public MemorySnapshot takeSnapshot(File dir) throws IOException {
+        return MemorySnapshot.capture(memory, regions, dir, executor);
     }
 
-    public void modify(Match match, MemoryValue value) throws IOException {
-        memory.write(match.address, value.toBytes());
+    /**
+     * Copy the regions of an older snapshot again, to compare with it.
+     */
+    public MemorySnapshot takeSnapshot(MemorySnapshot layout, File dir) throws IOException {
+        return MemorySnapshot.capture(memory, layout, dir, executor);
+    }
+
+    /**
+     * @see MemorySnapshot#compare
+     */
+    public CandidateBitmap compareSnapshots(MemorySnapshot older, MemorySnapshot newer, MemoryValue.ValueType type,
+                                            Refine refine, CandidateBitmap within, File dir) throws IOException {
+        return MemorySnapshot.compare(older, newer, type, refine, within, dir, executor);
+    }
+
+    public void refineEqual(MemoryValue value) throws IOException {
+        refine(Refine.EQUAL, value, null);
+    }
+
+    public void refineChanged() throws IOException {
+        refine(Refine.CHANGED, null, null);
+    }
+
+    public void refineUnchanged() throws IOException {
+        refine(Refine.UNCHANGED, null, null);
+    }
+
+    public void refineIncreased() throws IOException {
+        refine(Refine.INCREASED, null, null);
+    }
+
+    public void refineDecreased() throws IOException {
+        refine(Refine.DECREASED, null, null);
+    }
+
+    /**
+     * Keep the candidates whose value is within [min, max].
+     */
+    public void refineInRange(MemoryValue min, MemoryValue max) throws IOException {
+        refine(Refine.IN_RANGE, min, max);
+    }
+
+    /**
+     * Read the current candidates again and keep the ones matching the condition,
+     * along with the value just read.
+     *
+     * @param first  the value of {@link Refine#EQUAL}, the lower bound of {@link Refine#IN_RANGE}
+     * @param second the upper bound of {@link Refine#IN_RANGE}
+     */
+    public void refine(Refine refine, MemoryValue first, MemoryValue second) throws IOException {
+        if (matches == null) {
+            throw new IllegalStateException("No search to refine");
+        }
+        MemoryValue.ValueType type = matches.getType();
+        checkOperand(refine == Refine.EQUAL || refine == Refine.IN_RANGE, first, type);
+        checkOperand(refine == Refine.IN_RANGE, second, type);
+        List<Future<CandidateSet>> tasks = new ArrayList<>();
+        for (int from = 0; from < matches.size(); from += REFINE_TASK_SIZE) {
+            int to = Math.min(from + REFINE_TASK_SIZE, matches.size());
+            tasks.add(executor.submit(new RefineTask(matches, from, to, refine,
+                    first != null ? first.getRawBits() : 0, second != null ? second.getRawBits() : 0)));
+        }
+        matches = collect(tasks, type);
+    }
+
+    private static void checkOperand(boolean required, MemoryValue value, MemoryValue.ValueType type) {
+        if (!required) {
+            return;
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Missing value");
+        }
+        if (value.getType() != type) {
+            throw new IllegalArgumentException("Value type " + value.getType() + " does not match the search type " + type);
+        }
+    }
+
+    private static CandidateSet collect(List<Future<CandidateSet>> tasks, MemoryValue.ValueType type) throws IOException {
+        int size = 0;
+        List<CandidateSet> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<CandidateSet> task : tasks) {
+                CandidateSet result = task.get();
+                size += result.size();
+                results.add(result);
+            }
+        } catch (InterruptedException e) {
+            cancel(tasks);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            cancel(tasks);
+            throw new IOException(e.getCause());
+        }
+        CandidateSet all = new CandidateSet(type, size);
+        for (CandidateSet result : results) {
+            all.addAll(result);
+        }
+        return all;
+    }
+
+    private static void cancel(List<Future<CandidateSet>> tasks) {
+        for (Future<CandidateSet> task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    public void modify(long address, MemoryValue value) throws IOException {
+        memory.write(address, value.toBytes());
     }
 
     public void modifyAll(MemoryValue value) throws IOException {
-        for (Match match : matches) {
-            modify(match, value);
+        byte[] bytes = value.toBytes();
+        for (int i = 0; i < matches.size(); i++) {
+            memory.write(matches.getAddress(i), bytes);
         }
     }
 
-    public class Match {
-        MappedMemoryRegion region;
-        long address;
-        int len;
+    private class ScanTask implements Callable<CandidateSet> {
+        private final MemoryRegionTable regions;
+        private final int region;
+        private final long regionEnd;
+        private final long start;
+        private final long end;
+        private final MemoryValue.ValueType type;
+        private final int size;
+        private final long bits;
+        private final int alignment;
 
-        public Match(MappedMemoryRegion region, long address, int len) {
+        ScanTask(MemoryRegionTable regions, int region, long start, long end, MemoryValue value, int alignment) {
+            this.regions = regions;
             this.region = region;
-            this.address = address;
-            this.len = len;
+            this.regionEnd = regions.getEnd(region);
+            this.start = start;
+            this.end = end;
+            this.type = value.getType();
+            this.size = type.size;
+            this.bits = value.getRawBits();
+            this.alignment = alignment;
         }
-    }
 
+        @Override
+        public CandidateSet call() {
+            CandidateSet result = new CandidateSet(type);
+            ByteBuffer buffer = sBuffers.get();
+            boolean failed = false;
+            long address = start;
+            while (address < end && !Thread.currentThread().isInterrupted()) {
+                int chunk = (int) Math.min(CHUNK_SIZE, end - address);
+                // Overlap with the next chunk, still within the region.
+                int overlap = (int) Math.min(size - 1, regionEnd - address - chunk);
+                buffer.clear();
+                buffer.limit(chunk + overlap);
+                int read;
+                try {
+                    read = memory.read(address, buffer);
+                } catch (IOException e) {
+                    failed = true;
+                    read = 0;
+                }
+                // Last offset at which a whole value was read and which belongs to this chunk.
+                int last = Math.min(read - size, chunk - 1);
+                if (last >= 0) {
+                    match(buffer, address, last, result);
+                }
+                address += chunk;
+            }
+            if (failed) {
+                VLog.w(TAG, "Unable to read part of region : %s", regions.getName(region));
+            }
+            return result;
+        }
 
-    private List<Match> matchBytes(MappedMemoryRegion region, long startAddress, byte[] page, int read, byte[] value) {
-        List<Match> matches = new LinkedList<>();
-        int start = 0;
-        int len = value.length;
-        int step = 2;
-        while (start < read) {
-            boolean match = true;
-            for (int i = 0; i < len && i + start < read; i++) {
-                if (page[start + i] != value[i]) {
-                    match = false;
+        private void match(ByteBuffer buffer, long address, int last, CandidateSet result) {
+            switch (size) {
+                case 2: {
+                    short value = (short) bits;
+                    for (int i = 0; i <= last; i += alignment) {
+                        if (buffer.getShort(i) == value) {
+                            result.add(address + i, bits);
+                        }
+                    }
                     break;
                 }
+                case 4: {
+                    int value = (int) bits;
+                    for (int i = 0; i <= last; i += alignment) {
+                        if (buffer.getInt(i) == value) {
+                            result.add(address + i, bits);
+                        }
+                    }
+                    break;
+                }
+                case 8: {
+                    for (int i = 0; i <= last; i += alignment) {
+                        if (buffer.getLong(i) == bits) {
+                            result.add(address + i, bits);
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported value size: " + size);
             }
-            if (match) {
-                matches.add(new Match(region, startAddress + start, len));
+        }
+    }
+
+    private class RefineTask implements Callable<CandidateSet> {
+        private final CandidateSet candidates;
+        private final int from;
+        private final int to;
+        private final Refine refine;
+        private final long first;
+        private final long second;
+        private final MemoryValue.ValueType type;
+
+        RefineTask(CandidateSet candidates, int from, int to, Refine refine, long first, long second) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+            this.refine = refine;
+            this.first = first;
+            this.second = second;
+            this.type = candidates.getType();
+        }
+
+        @Override
+        public CandidateSet call() {
+            CandidateSet result = new CandidateSet(type);
+            ByteBuffer buffer = sBuffers.get();
+            int size = type.size;
+            int i = from;
+            while (i < to && !Thread.currentThread().isInterrupted()) {
+                // Group the following candidates close enough to be read at once.
+                long start = candidates.getAddress(i);
+                long end = start + size;
+                int j = i + 1;
+                while (j < to) {
+                    long address = candidates.getAddress(j);
+                    if (address + size - start > buffer.capacity() || address - end > REFINE_MAX_GAP) {
+                        break;
+                    }
+                    end = address + size;
+                    j++;
+                }
+                buffer.clear();
+                buffer.limit((int) (end - start));
+                int read;
+                try {
+                    read = memory.read(start, buffer);
+                } catch (IOException e) {
+                    read = 0;
+                }
+                int k = i;
+                for (; k < j; k++) {
+                    int offset = (int) (candidates.getAddress(k) - start);
+                    if (offset + size > read) {
+                        break;
+                    }
+                    long current = type.load(buffer, offset);
+                    if (accept(refine, type, candidates.getBits(k), current, first, second)) {
+                        result.add(start + offset, current);
+                    }
+                }
+                // A short read stops at an unmapped page, the remaining candidates are read again.
+                // The first one is dropped if it could not be read at all.
+                i = k == i ? i + 1 : k;
             }
-            start += step;
+            return result;
         }
-        return matches;
     }
 
+    static boolean accept(Refine refine, MemoryValue.ValueType type, long previous, long current, long first, long second) {
+        switch (refine) {
+            case EQUAL:
+                return type.compare(current, first) == 0;
+            case CHANGED:
+                return current != previous;
+            case UNCHANGED:
+                return current == previous;
+            case INCREASED:
+                return type.compare(current, previous) > 0;
+            case DECREASED:
+                return type.compare(current, previous) < 0;
+            case IN_RANGE:
+                return type.compare(current, first) >= 0 && type.compare(current, second) <= 0;
+            default:
+                throw new IllegalArgumentException("Unknown refine: " + refine);
+        }
+    }
 
     public void close() {
+        executor.shutdownNow();
         try {
             memory.close();
         } catch (IOException e) {
@@ -0,0 +1,315 @@
+package com.lody.virtual.server.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * @author Lody
+ * <p>
+ * Copy of the memory of a process, for the scans of unknown values.
+ * <p>
+ * The regions are split in chunks of {@link #CHUNK_SIZE} bytes, laid out one after the other
+ * in a temp file. Each chunk is read from /proc/pid/mem straight into a mapping of the file,
+ * so the content never goes through the Java heap, only a few arrays per chunk are kept.
+ * Two snapshots taken with the same layout are compared chunk by chunk in parallel,
+ * see {@link #compare}.
+ */
+public class MemorySnapshot {
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static Method sFreeDirectBuffer;
+    private static boolean sFreeDirectBufferResolved;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long[] chunkAddresses;
+    private final int[] chunkLengths;
+    private final long[] chunkOffsets;
+    /**
+     * Number of bytes actually read in each chunk, the rest was not readable.
+     */
+    private final int[] validLengths;
+    private final long size;
+
+    private MemorySnapshot(File dir, long[] chunkAddresses, int[] chunkLengths) throws IOException {
+        this.chunkAddresses = chunkAddresses;
+        this.chunkLengths = chunkLengths;
+        this.chunkOffsets = new long[chunkLengths.length];
+        this.validLengths = new int[chunkLengths.length];
+        long offset = 0;
+        for (int i = 0; i < chunkLengths.length; i++) {
+            chunkOffsets[i] = offset;
+            offset += chunkLengths[i];
+        }
+        this.size = offset;
+        this.file = File.createTempFile("snapshot", ".mem", dir);
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        raf.setLength(size);
+    }
+
+    /**
+     * Snapshot the given regions.
+     */
+    public static MemorySnapshot capture(ProcessMemory memory, MemoryRegionTable regions, File dir,
+                                         ExecutorService executor) throws IOException {
+        int count = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            count += (regions.getSize(i) + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        }
+        long[] addresses = new long[count];
+        int[] lengths = new int[count];
+        int c = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            long end = regions.getEnd(i);
+            for (long start = regions.getStart(i); start < end; start += CHUNK_SIZE) {
+                addresses[c] = start;
+                lengths[c] = (int) Math.min(CHUNK_SIZE, end - start);
+                c++;
+            }
+        }
+        return capture(memory, new MemorySnapshot(dir, addresses, lengths), executor);
+    }
+
+    /**
+     * Snapshot the regions of an older snapshot again, so that both can be compared.
+     * The regions that are gone are not readable in the new snapshot.
+     */
+    public static MemorySnapshot capture(ProcessMemory memory, MemorySnapshot layout, File dir,
+                                         ExecutorService executor) throws IOException {
+        return capture(memory, new MemorySnapshot(dir, layout.chunkAddresses, layout.chunkLengths), executor);
+    }
+
+    private static MemorySnapshot capture(final ProcessMemory memory, final MemorySnapshot snapshot,
+                                          ExecutorService executor) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>(snapshot.chunkAddresses.length);
+        for (int i = 0; i < snapshot.chunkAddresses.length; i++) {
+            final int chunk = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    MappedByteBuffer buffer = snapshot.map(chunk, FileChannel.MapMode.READ_WRITE);
+                    try {
+                        snapshot.validLengths[chunk] = memory.read(snapshot.chunkAddresses[chunk], buffer);
+                    } catch (IOException e) {
+                        snapshot.validLengths[chunk] = 0;
+                    } finally {
+                        free(buffer);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            runAll(executor, tasks);
+        } catch (IOException e) {
+            snapshot.release();
+            throw e;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Compare two snapshots taken with the same layout, value by value at the alignment of the type.
+     *
+     * @param refine one of {@link MemoryScanEngine.Refine#CHANGED}, {@link MemoryScanEngine.Refine#UNCHANGED},
+     *               {@link MemoryScanEngine.Refine#INCREASED} or {@link MemoryScanEngine.Refine#DECREASED}
+     * @param within only compare the candidates of a previous comparison, or null to compare everything
+     * @return the candidates of the newer snapshot matching the condition
+     */
+    public static CandidateBitmap compare(final MemorySnapshot older, final MemorySnapshot newer,
+                                          final MemoryValue.ValueType type, final MemoryScanEngine.Refine refine,
+                                          final CandidateBitmap within, File dir,
+                                          ExecutorService executor) throws IOException {
+        if (!older.hasSameLayout(newer)) {
+            throw new IllegalArgumentException("The snapshots do not have the same layout");
+        }
+        if (refine == MemoryScanEngine.Refine.EQUAL || refine == MemoryScanEngine.Refine.IN_RANGE) {
+            throw new IllegalArgumentException("Use a search to compare with a known value: " + refine);
+        }
+        if (within != null && (within.getType() != type || !within.getSnapshot().hasSameLayout(newer))) {
+            throw new IllegalArgumentException("The candidates do not match the snapshots");
+        }
+        final CandidateBitmap result = new CandidateBitmap(newer, type, dir);
+        List<Callable<Void>> tasks = new ArrayList<>(newer.getChunkCount());
+        for (int i = 0; i < newer.getChunkCount(); i++) {
+            final int chunk = i;
+            final int valid = Math.min(older.validLengths[chunk], newer.validLengths[chunk]);
+            if (valid < type.size) {
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    compareChunk(older, newer, chunk, valid, type, refine, within, result);
+                    return null;
+                }
+            });
+        }
+        try {
+            runAll(executor, tasks);
+        } catch (IOException e) {
+            result.release();
+            throw e;
+        }
+        return result;
+    }
+
+    private static void compareChunk(MemorySnapshot older, MemorySnapshot newer, int chunk, int valid,
+                                     MemoryValue.ValueType type, MemoryScanEngine.Refine refine,
+                                     CandidateBitmap within, CandidateBitmap result) throws IOException {
+        MappedByteBuffer previous = older.map(chunk, FileChannel.MapMode.READ_ONLY);
+        MappedByteBuffer current = newer.map(chunk, FileChannel.MapMode.READ_ONLY);
+        MappedByteBuffer mask = within != null ? within.map(chunk, FileChannel.MapMode.READ_ONLY) : null;
+        MappedByteBuffer bits = result.map(chunk, FileChannel.MapMode.READ_WRITE);
+        try {
+            int size = type.size;
+            int slots = valid / size;
+            for (int b = 0; b * 8 < slots; b++) {
+                int candidates = mask != null ? mask.get(b) & 0xFF : 0xFF;
+                if (candidates == 0) {
+                    continue;
+                }
+                int matched = 0;
+                for (int k = 0; k < 8; k++) {
+                    int slot = b * 8 + k;
+                    if (slot >= slots) {
+                        break;
+                    }
+                    if ((candidates & (1 << k)) == 0) {
+                        continue;
+                    }
+                    int offset = slot * size;
+                    if (MemoryScanEngine.accept(refine, type, type.load(previous, offset), type.load(current, offset), 0, 0)) {
+                        matched |= 1 << k;
+                    }
+                }
+                if (matched != 0) {
+                    bits.put(b, (byte) matched);
+                }
+            }
+        } finally {
+            free(previous);
+            free(current);
+            free(mask);
+            free(bits);
+        }
+    }
+
+    private static void runAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            cancel(futures);
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void cancel(List<Future<Void>> futures) {
+        for (Future<Void> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    MappedByteBuffer map(int chunk, FileChannel.MapMode mode) throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, chunkOffsets[chunk], chunkLengths[chunk]);
+        buffer.order(MemoryValue.BYTE_ORDER);
+        return buffer;
+    }
+
+    /**
+     * Unmap right away instead of waiting for the GC, so that large snapshots do not exhaust
+     * the address space of 32-bit processes. Only possible on Android.
+     */
+    static void free(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (MemorySnapshot.class) {
+            if (!sFreeDirectBufferResolved) {
+                sFreeDirectBufferResolved = true;
+                try {
+                    sFreeDirectBuffer = Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class);
+                } catch (Throwable e) {
+                    // Not available, rely on the GC.
+                }
+            }
+        }
+        if (sFreeDirectBuffer != null) {
+            try {
+                sFreeDirectBuffer.invoke(null, buffer);
+            } catch (Throwable e) {
+                // Ignore, the GC will unmap it.
+            }
+        }
+    }
+
+    public boolean hasSameLayout(MemorySnapshot other) {
+        return other == this
+                || (Arrays.equals(chunkAddresses, other.chunkAddresses) && Arrays.equals(chunkLengths, other.chunkLengths));
+    }
+
+    int getChunkCount() {
+        return chunkAddresses.length;
+    }
+
+    long getChunkAddress(int chunk) {
+        return chunkAddresses[chunk];
+    }
+
+    int getChunkLength(int chunk) {
+        return chunkLengths[chunk];
+    }
+
+    long getChunkOffset(int chunk) {
+        return chunkOffsets[chunk];
+    }
+
+    int getValidLength(int chunk) {
+        return validLengths[chunk];
+    }
+
+    /**
+     * @return the size of the snapshot file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Close and delete the snapshot file.
+     */
+    public void release() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        file.delete();
+    }
+}
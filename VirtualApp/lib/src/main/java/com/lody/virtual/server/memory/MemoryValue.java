@@ -7,16 +7,92 @@ import java.nio.ByteOrder;
  * @author Lody
  */
 public abstract class MemoryValue {
-    
-    private static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+
+    /**
+     * The scanned process runs on this device, so its values are in the native byte order
+     * (little-endian on every ABI we support).
+     */
+    static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
 
     public enum ValueType {
-        INT2, // short
-        INT4, // int
-        INT8, // long
+        INT2(2), // short
+        INT4(4), // int
+        INT8(8), // long
+        FLOAT(4),
+        DOUBLE(8);
+
+        public final int size;
+
+        ValueType(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Load the raw bits of a value of this type, the buffer must be in {@link #BYTE_ORDER}.
+         */
+        long load(ByteBuffer buffer, int offset) {
+            switch (size) {
+                case 2:
+                    return buffer.getShort(offset);
+                case 4:
+                    return buffer.getInt(offset);
+                default:
+                    return buffer.getLong(offset);
+            }
+        }
+
+        void store(ByteBuffer buffer, int offset, long bits) {
+            switch (size) {
+                case 2:
+                    buffer.putShort(offset, (short) bits);
+                    break;
+                case 4:
+                    buffer.putInt(offset, (int) bits);
+                    break;
+                default:
+                    buffer.putLong(offset, bits);
+                    break;
+            }
+        }
+
+        /**
+         * Numerically compare two raw values of this type.
+         */
+        public int compare(long lhs, long rhs) {
+            switch (this) {
+                case INT2:
+                    return Long.compare((short) lhs, (short) rhs);
+                case INT4:
+                    return Long.compare((int) lhs, (int) rhs);
+                case FLOAT:
+                    return Float.compare(Float.intBitsToFloat((int) lhs), Float.intBitsToFloat((int) rhs));
+                case DOUBLE:
+                    return Double.compare(Double.longBitsToDouble(lhs), Double.longBitsToDouble(rhs));
+                default:
+                    return Long.compare(lhs, rhs);
+            }
+        }
+    }
+
+    public abstract ValueType getType();
+
+    /**
+     * @return the raw bits of the value, as loaded from memory by a word of {@link #getSize()} bytes
+     */
+    public abstract long getRawBits();
+
+    /**
+     * @return the size of the value in bytes
+     */
+    public int getSize() {
+        return getType().size;
     }
 
-    public abstract byte[] toBytes();
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(getSize()).order(BYTE_ORDER);
+        getType().store(buffer, 0, getRawBits());
+        return buffer.array();
+    }
 
 
     public static class INT2 extends MemoryValue {
@@ -28,9 +104,13 @@ public abstract class MemoryValue {
         }
 
         @Override
-        public byte[] toBytes() {
-            ByteBuffer buffer = ByteBuffer.allocate(2);
-            return buffer.putShort(val).order(BYTE_ORDER).array();
+        public ValueType getType() {
+            return ValueType.INT2;
+        }
+
+        @Override
+        public long getRawBits() {
+            return val;
         }
     }
 
@@ -43,9 +123,13 @@ public abstract class MemoryValue {
         }
 
         @Override
-        public byte[] toBytes() {
-            ByteBuffer buffer = ByteBuffer.allocate(4);
-            return buffer.order(BYTE_ORDER).putInt(val).array();
+        public ValueType getType() {
+            return ValueType.INT4;
+        }
+
+        @Override
+        public long getRawBits() {
+            return val;
         }
     }
 
@@ -58,9 +142,51 @@ public abstract class MemoryValue {
         }
 
         @Override
-        public byte[] toBytes() {
-            ByteBuffer buffer = ByteBuffer.allocate(8);
-            return buffer.order(BYTE_ORDER).putLong(val).array();
+        public ValueType getType() {
+            return ValueType.INT8;
+        }
+
+        @Override
+        public long getRawBits() {
+            return val;
+        }
+    }
+
+    public static class FLOAT extends MemoryValue {
+
+        private float val;
+
+        public FLOAT(float val) {
+            this.val = val;
+        }
+
+        @Override
+        public ValueType getType() {
+            return ValueType.FLOAT;
+        }
+
+        @Override
+        public long getRawBits() {
+            return Float.floatToRawIntBits(val);
+        }
+    }
+
+    public static class DOUBLE extends MemoryValue {
+
+        private double val;
+
+        public DOUBLE(double val) {
+            this.val = val;
+        }
+
+        @Override
+        public ValueType getType() {
+            return ValueType.DOUBLE;
+        }
+
+        @Override
+        public long getRawBits() {
+            return Double.doubleToRawLongBits(val);
         }
     }
 
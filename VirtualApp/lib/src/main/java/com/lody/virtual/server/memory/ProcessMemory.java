@@ -2,6 +2,8 @@ package com.lody.virtual.server.memory;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 /**
@@ -11,10 +13,12 @@ public class ProcessMemory {
 
     private int pid;
     private RandomAccessFile memFile;
+    private FileChannel memChannel;
 
     public ProcessMemory(int pid) throws IOException {
         this.pid = pid;
         this.memFile = new RandomAccessFile(String.format(Locale.ENGLISH, "/proc/%d/mem", pid), "rw");
+        this.memChannel = memFile.getChannel();
     }
 
     public void write(long offset, byte[] bytes) throws IOException {
@@ -27,6 +31,25 @@ public class ProcessMemory {
         return memFile.read(bytes, 0, len);
     }
 
+    /**
+     * Positional bulk read, which does not move the file pointer and can be called
+     * from several threads at once.
+     * Reads from {@code address} until the buffer is full or the end of the readable memory.
+     *
+     * @return the number of bytes read
+     */
+    public int read(long address, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = memChannel.read(buffer, address + total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
     public void close() throws IOException {
         memFile.close();
     }
@@ -37,7 +37,7 @@ public class ComponentStateManager extends PersistenceLayer {
     public void setComponentState(ComponentName component, int state, int userId) {
         synchronized (this) {
             getOrCreate(userId).getOrCreate(component).state = state;
-            save();
+            scheduleSave();
         }
     }
 
@@ -45,7 +45,7 @@ public class ComponentStateManager extends PersistenceLayer {
         synchronized (this) {
             if(states.indexOfKey(userId) >= 0){
                 states.remove(userId);
-                save();
+                scheduleSave();
             }
         }
     }
@@ -67,7 +67,9 @@ public class ComponentStateManager extends PersistenceLayer {
 
     @Override
     public void writePersistenceData(Parcel p) {
-        p.writeSparseArray((SparseArray) states);
+        synchronized (this) {
+            p.writeSparseArray((SparseArray) states);
+        }
     }
 
     @Override
@@ -0,0 +1,115 @@
+package com.lody.virtual.server.pm;
+
+import android.content.pm.PackageManager;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Lody
+ * <p>
+ * Versioned cache of the {@link android.content.pm.PackageInfo} and
+ * {@link android.content.pm.ApplicationInfo} generated by {@link VPackageManagerService},
+ * keyed by (package, userId, flags). There is one instance per kind of info.
+ * <p>
+ * Every invalidation bumps the generation, a result computed against an older
+ * generation is never stored. The cached objects are shared, so they must only
+ * be handed to callers that do not modify them (i.e. remote callers, whose
+ * result is parceled right away).
+ */
+final class GeneratedInfoCache<V> {
+
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * The requested permission flags depend on the runtime permission state,
+     * which is not tracked by this cache.
+     */
+    private static final int UNCACHEABLE_FLAGS = PackageManager.GET_PERMISSIONS;
+
+    private final LinkedHashMap<Key, V> mEntries = new LinkedHashMap<Key, V>(32, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private int mGeneration;
+
+    static boolean isCacheable(int flags) {
+        return (flags & UNCACHEABLE_FLAGS) == 0;
+    }
+
+    int getGeneration() {
+        synchronized (mEntries) {
+            return mGeneration;
+        }
+    }
+
+    V get(String packageName, int userId, int flags) {
+        synchronized (mEntries) {
+            return mEntries.get(new Key(packageName, userId, flags));
+        }
+    }
+
+    /**
+     * @param generation the generation read by {@link #getGeneration()} before the value was generated
+     */
+    void put(String packageName, int userId, int flags, V value, int generation) {
+        if (value == null) {
+            return;
+        }
+        synchronized (mEntries) {
+            if (generation == mGeneration) {
+                mEntries.put(new Key(packageName, userId, flags), value);
+            }
+        }
+    }
+
+    void invalidate(String packageName) {
+        synchronized (mEntries) {
+            mGeneration++;
+            Iterator<Key> it = mEntries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().packageName.equals(packageName)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    void invalidateAll() {
+        synchronized (mEntries) {
+            mGeneration++;
+            mEntries.clear();
+        }
+    }
+
+    private static final class Key {
+        final String packageName;
+        final int userId;
+        final int flags;
+
+        Key(String packageName, int userId, int flags) {
+            this.packageName = packageName;
+            this.userId = userId;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return userId == key.userId && flags == key.flags && packageName.equals(key.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = packageName.hashCode();
+            result = 31 * result + userId;
+            result = 31 * result + flags;
+            return result;
+        }
+    }
+}
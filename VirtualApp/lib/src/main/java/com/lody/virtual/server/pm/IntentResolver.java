@@ -6,6 +6,7 @@ import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Build;
 
+import com.lody.virtual.helper.compat.ObjectsCompat;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.server.pm.parser.VPackage;
 
@@ -16,7 +17,9 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Object> {
@@ -79,6 +82,24 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	 */
 	private HashMap<String, F[]> mTypedActionToFilter = new HashMap<String, F[]>();
 
+	private static final int MAX_CACHED_RESULTS = 128;
+	/**
+	 * Results of {@link #queryIntent(Intent, String, boolean, int, int)} by intent shape,
+	 * only filled for the queries allowed by {@link #canCacheResults(int)}.
+	 * The generation is bumped whenever a result may change, a result computed
+	 * against an older generation is never stored. All guarded by the map.
+	 */
+	private final LinkedHashMap<ResolveKey, List<R>> mResults = new LinkedHashMap<ResolveKey, List<R>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ResolveKey, List<R>> eldest) {
+			return size() > MAX_CACHED_RESULTS;
+		}
+	};
+	private int mGeneration;
+	private int mHits;
+	private int mMisses;
+	private long mMissNanos;
+
 	private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
 		final Set<String> categories = intent.getCategories();
 		if (categories == null) {
@@ -88,7 +109,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	}
 
 	public void addFilter(F f) {
-
+		invalidateResults();
 		mFilters.add(f);
 		int numS = register_intent_filter(f, f.filter.schemesIterator(), mSchemeToFilter, "      Scheme: ");
 		int numT = register_mime_types(f, "      Type: ");
@@ -200,6 +221,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	}
 
 	public void removeFilter(F f) {
+		invalidateResults();
 		removeFilterInternal(f);
 		mFilters.remove(f);
 	}
@@ -232,18 +254,83 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 
 	public List<R> queryIntentFromList(Intent intent, String resolvedType, boolean defaultOnly,
 			ArrayList<F[]> listCut, int userId) {
+		return queryIntentFromList(intent, resolvedType, defaultOnly, listCut, 0, userId);
+	}
+
+	/**
+	 * @param flags the query flags, passed through to {@link #newResult(VPackage.IntentInfo, int, int, int)}
+	 */
+	public List<R> queryIntentFromList(Intent intent, String resolvedType, boolean defaultOnly,
+			ArrayList<F[]> listCut, int flags, int userId) {
 		ArrayList<R> resultList = new ArrayList<R>();
 		FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
 		final String scheme = intent.getScheme();
 		int N = listCut.size();
 		for (int i = 0; i < N; ++i) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, listCut.get(i), resultList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, listCut.get(i), resultList, flags, userId);
 		}
 		sortResults(resultList);
 		return resultList;
 	}
 
 	public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
+		return queryIntent(intent, resolvedType, defaultOnly, 0, userId);
+	}
+
+	/**
+	 * The flags are passed down to each result instead of being kept in a field,
+	 * so that a resolver can be queried by several threads at once.
+	 *
+	 * @param flags the query flags, passed through to {@link #newResult(VPackage.IntentInfo, int, int, int)}
+	 */
+	public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int flags, int userId) {
+		if (!canCacheResults(flags)) {
+			return queryIntentUncached(intent, resolvedType, defaultOnly, flags, userId);
+		}
+		ResolveKey key = new ResolveKey(intent, resolvedType, defaultOnly, flags, userId);
+		int generation;
+		synchronized (mResults) {
+			List<R> cached = mResults.get(key);
+			if (cached != null) {
+				mHits++;
+				return new ArrayList<R>(cached);
+			}
+			generation = mGeneration;
+		}
+		long start = System.nanoTime();
+		List<R> result = queryIntentUncached(intent, resolvedType, defaultOnly, flags, userId);
+		long cost = System.nanoTime() - start;
+		synchronized (mResults) {
+			mMisses++;
+			mMissNanos += cost;
+			if (generation == mGeneration) {
+				mResults.put(key, new ArrayList<R>(result));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Drop the cached results, called whenever the enabled state or the user state
+	 * of a component may have changed.
+	 */
+	public void invalidateResults() {
+		synchronized (mResults) {
+			mGeneration++;
+			mResults.clear();
+		}
+	}
+
+	/**
+	 * @return the hits and misses of the result cache, and the average time of a miss in nanoseconds
+	 */
+	public long[] getCacheStatistics() {
+		synchronized (mResults) {
+			return new long[]{mHits, mMisses, mMisses == 0 ? 0 : mMissNanos / mMisses};
+		}
+	}
+
+	private List<R> queryIntentUncached(Intent intent, String resolvedType, boolean defaultOnly, int flags, int userId) {
 		String scheme = intent.getScheme();
 
 		ArrayList<R> finalList = new ArrayList<R>();
@@ -300,21 +387,30 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 
 		FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
 		if (firstTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, firstTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, firstTypeCut, finalList, flags, userId);
 		}
 		if (secondTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, secondTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, secondTypeCut, finalList, flags, userId);
 		}
 		if (thirdTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, thirdTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, thirdTypeCut, finalList, flags, userId);
 		}
 		if (schemeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, schemeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, schemeCut, finalList, flags, userId);
 		}
 		sortResults(finalList);
 		return finalList;
 	}
 
+	/**
+	 * Returns whether the results of a query with the given flags can be cached.
+	 * The cached results are shared, so they must only be handed to callers
+	 * that do not modify them.
+	 */
+	protected boolean canCacheResults(int flags) {
+		return false;
+	}
+
 	/**
 	 * Control whether the given filter is allowed to go into the result list.
 	 * Mainly intended to prevent adding multiple filters for the same target
@@ -347,6 +443,10 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 		return (R) filter;
 	}
 
+	protected R newResult(F filter, int match, int flags, int userId) {
+		return newResult(filter, match, userId);
+	}
+
 	@SuppressWarnings("unchecked")
 	protected void sortResults(List<R> results) {
 		Collections.sort(results, sResolvePrioritySorter);
@@ -506,7 +606,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	}
 
 	private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
-								  boolean defaultOnly, String resolvedType, String scheme, F[] src, List<R> dest, int userId) {
+								  boolean defaultOnly, String resolvedType, String scheme, F[] src, List<R> dest, int flags, int userId) {
 		final String action = intent.getAction();
 		final Uri data = intent.getData();
 		final String packageName = intent.getPackage();
@@ -531,7 +631,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 			match = filter.filter.match(action, resolvedType, scheme, data, categories, TAG);
 			if (match >= 0) {
 				if (!defaultOnly || filter.filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
-					final R oneResult = newResult(filter, match, userId);
+					final R oneResult = newResult(filter, match, flags, userId);
 					if (oneResult != null) {
 						dest.add(oneResult);
 					}
@@ -550,6 +650,60 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 		}
 	}
 
+	/**
+	 * The parts of an intent that its resolution depends on.
+	 */
+	private static final class ResolveKey {
+		final String action;
+		final String resolvedType;
+		final Uri data;
+		final Set<String> categories;
+		final String packageName;
+		final boolean defaultOnly;
+		final int flags;
+		final int userId;
+		final int hash;
+
+		ResolveKey(Intent intent, String resolvedType, boolean defaultOnly, int flags, int userId) {
+			this.action = intent.getAction();
+			this.resolvedType = resolvedType;
+			this.data = intent.getData();
+			Set<String> categories = intent.getCategories();
+			this.categories = categories == null ? null : new HashSet<String>(categories);
+			this.packageName = intent.getPackage();
+			this.defaultOnly = defaultOnly;
+			this.flags = flags;
+			this.userId = userId;
+			int h = action != null ? action.hashCode() : 0;
+			h = 31 * h + (resolvedType != null ? resolvedType.hashCode() : 0);
+			h = 31 * h + (data != null ? data.hashCode() : 0);
+			h = 31 * h + (this.categories != null ? this.categories.hashCode() : 0);
+			h = 31 * h + (packageName != null ? packageName.hashCode() : 0);
+			h = 31 * h + (defaultOnly ? 1 : 0);
+			h = 31 * h + flags;
+			h = 31 * h + userId;
+			this.hash = h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof ResolveKey)) return false;
+			ResolveKey key = (ResolveKey) o;
+			return hash == key.hash && defaultOnly == key.defaultOnly && flags == key.flags && userId == key.userId
+					&& ObjectsCompat.equals(action, key.action)
+					&& ObjectsCompat.equals(resolvedType, key.resolvedType)
+					&& ObjectsCompat.equals(data, key.data)
+					&& ObjectsCompat.equals(categories, key.categories)
+					&& ObjectsCompat.equals(packageName, key.packageName);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
 	private class IteratorWrapper implements Iterator<F> {
 		private Iterator<F> mI;
 		private F mCur;
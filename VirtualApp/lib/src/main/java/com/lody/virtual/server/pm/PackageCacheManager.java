@@ -4,18 +4,28 @@ import com.lody.virtual.helper.collection.ArrayMap;
 import com.lody.virtual.server.pm.parser.PackageParserEx;
 import com.lody.virtual.server.pm.parser.VPackage;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * @author Lody
+ * <p>
+ * {@link #PACKAGE_CACHE} is only modified with the class locked. Every change also
+ * publishes a new immutable copy of the table, which all the readers use without locking.
  */
 
 public class PackageCacheManager {
 
     static final ArrayMap<String, VPackage> PACKAGE_CACHE = new ArrayMap<>();
 
+    /**
+     * Immutable copy of {@link #PACKAGE_CACHE} in install order, replaced on every change.
+     */
+    private static volatile Map<String, VPackage> sPublished = Collections.emptyMap();
+
     public static int size() {
-        synchronized (PACKAGE_CACHE) {
-            return PACKAGE_CACHE.size();
-        }
+        return sPublished.size();
     }
 
     public static void put(VPackage pkg, PackageSetting ps) {
@@ -24,29 +34,50 @@ public class PackageCacheManager {
             PACKAGE_CACHE.put(pkg.packageName, pkg);
             pkg.mExtras = ps;
             VPackageManagerService.get().analyzePackageLocked(pkg);
+            Map<String, VPackage> published = new LinkedHashMap<>(sPublished);
+            published.remove(pkg.packageName);
+            published.put(pkg.packageName, pkg);
+            sPublished = Collections.unmodifiableMap(published);
+            VPackageManagerService.get().onPackagePublishedLocked(pkg.packageName);
         }
+        VAppManagerService.get().onPackageSetChanged();
     }
 
     public static VPackage get(String packageName) {
-        synchronized (PackageCacheManager.class) {
-            return PACKAGE_CACHE.get(packageName);
-        }
+        return sPublished.get(packageName);
     }
 
     public static PackageSetting getSetting(String packageName) {
-        synchronized (PackageCacheManager.class) {
-            VPackage p = PACKAGE_CACHE.get(packageName);
-            if (p != null) {
-                return (PackageSetting) p.mExtras;
-            }
-            return null;
+        VPackage p = sPublished.get(packageName);
+        if (p != null) {
+            return (PackageSetting) p.mExtras;
         }
+        return null;
+    }
+
+    /**
+     * @return an immutable view of all the installed packages. A new instance is
+     * returned after every change, so identity can be used to detect changes.
+     */
+    public static Map<String, VPackage> packages() {
+        return sPublished;
     }
 
     public static VPackage remove(String packageName) {
+        VPackage removed;
         synchronized (PackageCacheManager.class) {
             VPackageManagerService.get().deletePackageLocked(packageName);
-            return PACKAGE_CACHE.remove(packageName);
+            removed = PACKAGE_CACHE.remove(packageName);
+            if (removed != null) {
+                Map<String, VPackage> published = new LinkedHashMap<>(sPublished);
+                published.remove(packageName);
+                sPublished = Collections.unmodifiableMap(published);
+                VPackageManagerService.get().onPackagePublishedLocked(packageName);
+            }
+        }
+        if (removed != null) {
+            VAppManagerService.get().onPackageSetChanged();
         }
+        return removed;
     }
 }
@@ -8,6 +8,7 @@ import com.lody.virtual.server.pm.legacy.PackageSettingV1;
 import com.lody.virtual.server.pm.parser.VPackage;
 
 import java.util.Arrays;
+import java.util.Map;
 
 import static com.lody.virtual.remote.InstalledAppInfo.MODE_APP_COPY_APK;
 import static com.lody.virtual.remote.InstalledAppInfo.MODE_APP_USE_OUTSIDE_APK;
@@ -48,12 +49,12 @@ class PackagePersistenceLayer extends PersistenceLayer {
 
     @Override
     public void writePersistenceData(Parcel p) {
-        synchronized (PackageCacheManager.PACKAGE_CACHE) {
-            p.writeInt(PackageCacheManager.PACKAGE_CACHE.size());
-            for (VPackage pkg : PackageCacheManager.PACKAGE_CACHE.values()) {
-                PackageSetting ps = (PackageSetting) pkg.mExtras;
-                ps.writeToParcel(p, 0);
-            }
+        // The published table is never modified, each setting locks its user states while written.
+        Map<String, VPackage> packages = PackageCacheManager.packages();
+        p.writeInt(packages.size());
+        for (VPackage pkg : packages.values()) {
+            PackageSetting ps = (PackageSetting) pkg.mExtras;
+            ps.writeToParcel(p, 0);
         }
     }
 
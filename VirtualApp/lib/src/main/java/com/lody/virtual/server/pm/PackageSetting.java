@@ -34,6 +34,9 @@ public class PackageSetting implements Parcelable {
     public String packageName;
     public int appId;
     public int appMode;
+    /**
+     * Guarded by this setting, it is also written by the persistence thread.
+     */
     SparseArray<PackageUserState> userState = new SparseArray<>();
     public int flag;
     public long firstInstallTime;
@@ -69,10 +72,13 @@ public class PackageSetting implements Parcelable {
     }
 
     void removeUser(int userId) {
-        userState.delete(userId);
+        synchronized (this) {
+            userState.delete(userId);
+        }
+        onUserStateChanged();
     }
 
-    PackageUserState modifyUserState(int userId) {
+    synchronized PackageUserState modifyUserState(int userId) {
         PackageUserState state = userState.get(userId);
         if (state == null) {
             state = new PackageUserState();
@@ -82,14 +88,20 @@ public class PackageSetting implements Parcelable {
     }
 
     void setUserState(int userId, boolean launched, boolean hidden, boolean installed) {
-        PackageUserState state = modifyUserState(userId);
-        state.launched = launched;
-        state.hidden = hidden;
-        state.installed = installed;
+        synchronized (this) {
+            PackageUserState state = modifyUserState(userId);
+            state.launched = launched;
+            state.hidden = hidden;
+            state.installed = installed;
+        }
+        onUserStateChanged();
     }
 
     public PackageUserState readUserState(int userId) {
-        PackageUserState state = userState.get(userId);
+        PackageUserState state;
+        synchronized (this) {
+            state = userState.get(userId);
+        }
         if (state != null) {
             return state;
         }
@@ -109,15 +121,31 @@ public class PackageSetting implements Parcelable {
     }
 
     public void setLaunched(int userId, boolean launched) {
-        modifyUserState(userId).launched = launched;
+        synchronized (this) {
+            modifyUserState(userId).launched = launched;
+        }
+        onUserStateChanged();
     }
 
     public void setHidden(int userId, boolean hidden) {
-        modifyUserState(userId).hidden = hidden;
+        synchronized (this) {
+            modifyUserState(userId).hidden = hidden;
+        }
+        onUserStateChanged();
     }
 
     public void setInstalled(int userId, boolean installed) {
-        modifyUserState(userId).installed = installed;
+        synchronized (this) {
+            modifyUserState(userId).installed = installed;
+        }
+        onUserStateChanged();
+    }
+
+    private void onUserStateChanged() {
+        if (packageName != null) {
+            VPackageManagerService.get().invalidateGeneratedInfos(packageName);
+            VAppManagerService.get().onPackageSetChanged();
+        }
     }
 
     public boolean isRunPluginProcess() {
@@ -141,7 +169,9 @@ public class PackageSetting implements Parcelable {
         dest.writeString(this.packageName);
         dest.writeInt(this.appId);
         dest.writeInt(this.appMode);
-        dest.writeSparseArray((SparseArray) this.userState);
+        synchronized (this) {
+            dest.writeSparseArray((SparseArray) this.userState);
+        }
         dest.writeInt(this.flag);
         dest.writeLong(this.firstInstallTime);
         dest.writeLong(this.lastUpdateTime);
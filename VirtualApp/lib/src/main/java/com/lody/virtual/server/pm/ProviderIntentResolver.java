@@ -23,16 +23,13 @@ import static com.lody.virtual.server.pm.VPackageManagerService.TAG;
 
 final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderIntentInfo, ResolveInfo> {
     private final HashMap<ComponentName, VPackage.ProviderComponent> mProviders = new HashMap<>();
-    private int mFlags;
 
     public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
-        mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
-        return super.queryIntent(intent, resolvedType, defaultOnly, userId);
+        return super.queryIntent(intent, resolvedType, defaultOnly, defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0, userId);
     }
 
     public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, int flags, int userId) {
-        mFlags = flags;
-        return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
+        return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, flags, userId);
     }
 
     public List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
@@ -40,7 +37,6 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
         if (packageProviders == null) {
             return null;
         }
-        mFlags = flags;
         final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
         final int N = packageProviders.size();
         ArrayList<VPackage.ProviderIntentInfo[]> listCut = new ArrayList<>(N);
@@ -55,7 +51,7 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
                 listCut.add(array);
             }
         }
-        return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
+        return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, flags, userId);
     }
 
     public final void addProvider(VPackage.ProviderComponent p) {
@@ -97,6 +93,11 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
         return true;
     }
 
+    @Override
+    protected boolean canCacheResults(int flags) {
+        return VPackageManagerService.canUseGeneratedInfoCache(flags);
+    }
+
     @Override
     protected VPackage.ProviderIntentInfo[] newArray(int size) {
         return new VPackage.ProviderIntentInfo[size];
@@ -114,19 +115,19 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
     @Override
-    protected ResolveInfo newResult(VPackage.ProviderIntentInfo filter, int match, int userId) {
+    protected ResolveInfo newResult(VPackage.ProviderIntentInfo filter, int match, int flags, int userId) {
         final VPackage.ProviderComponent provider = filter.provider;
-        if (!VPackageManagerService.get().isEnabledLPr(provider.info, mFlags, userId)) {
+        if (!VPackageManagerService.get().isEnabledLPr(provider.info, flags, userId)) {
             return null;
         }
         PackageSetting ps = (PackageSetting) provider.owner.mExtras;
-        ProviderInfo pi = PackageParserEx.generateProviderInfo(provider, mFlags, ps.readUserState(userId), userId);
+        ProviderInfo pi = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
         if (pi == null) {
             return null;
         }
         final ResolveInfo res = new ResolveInfo();
         res.providerInfo = pi;
-        if ((mFlags & PackageManager.GET_RESOLVED_FILTER) != 0) {
+        if ((flags & PackageManager.GET_RESOLVED_FILTER) != 0) {
             res.filter = filter.filter;
         }
         res.priority = filter.filter.getPriority();
@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -36,6 +37,9 @@ import com.lody.virtual.os.VUserManager;
 import com.lody.virtual.remote.InstallOptions;
 import com.lody.virtual.remote.InstallResult;
 import com.lody.virtual.remote.InstalledAppInfo;
+import com.lody.virtual.remote.InstalledPackageSet;
+import com.lody.virtual.remote.LauncherAppInfo;
+import com.lody.virtual.remote.VParceledListSlice;
 import com.lody.virtual.server.accounts.VAccountManagerService;
 import com.lody.virtual.server.am.AttributeCache;
 import com.lody.virtual.server.am.BroadcastSystem;
@@ -44,6 +48,7 @@ import com.lody.virtual.server.am.VActivityManagerService;
 import com.lody.virtual.server.bit64.V64BitHelper;
 import com.lody.virtual.server.interfaces.IAppManager;
 import com.lody.virtual.server.interfaces.IPackageObserver;
+import com.lody.virtual.server.interfaces.IPackageSetObserver;
 import com.lody.virtual.server.job.VJobSchedulerService;
 import com.lody.virtual.server.notification.VNotificationManagerService;
 import com.lody.virtual.server.pm.parser.PackageParserEx;
@@ -54,8 +59,10 @@ import com.xdja.zs.VServiceKeepAliveService;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -80,6 +87,29 @@ public class VAppManagerService extends IAppManager.Stub {
     private final Set<String> mVisibleOutsidePackages = new HashSet<>();
     private boolean mBooting;
     private RemoteCallbackList<IPackageObserver> mRemoteCallbackList = new RemoteCallbackList<>();
+    /**
+     * Processes keeping a replica of the installed packages.
+     * {@link #mPackageSet} and {@link #mPackageSetVersion} are guarded by the list.
+     */
+    private final RemoteCallbackList<IPackageSetObserver> mPackageSetObservers = new RemoteCallbackList<>();
+    private InstalledPackageSet mPackageSet;
+    private int mPackageSetVersion;
+    /**
+     * The labels of {@link #getLauncherApps()} by package, loading them opens the resources of the apk.
+     */
+    private final Map<String, LauncherLabel> mLauncherLabels = new HashMap<>();
+
+    private static final class LauncherLabel {
+        final long version;
+        final String locale;
+        final String label;
+
+        LauncherLabel(long version, String locale, String label) {
+            this.version = version;
+            this.locale = locale;
+            this.label = label;
+        }
+    }
 
     /*
         《A》
@@ -272,6 +302,14 @@ public class VAppManagerService extends IAppManager.Stub {
             }
             //save cache
             PackageParserEx.savePackageCache(pkg);
+        } else if (PackageParserEx.hasUnresolvedWindowStyles(pkg)) {
+            // Cached by an older version, resolve the window styles once.
+            String apkPath = ps.getApkPath(ps.isRunPluginProcess());
+            if (apkPath != null && PackageParserEx.resolveWindowStyles(pkg, new File(apkPath))) {
+                // The signatures are rewritten with the cache.
+                PackageParserEx.readSignature(pkg);
+                PackageParserEx.savePackageCache(pkg);
+            }
         }
         PackageCacheManager.put(pkg, ps);
         if (modeUseOutsideApk) {
@@ -776,7 +814,7 @@ public class VAppManagerService extends IAppManager.Stub {
     @Override
     public List<InstalledAppInfo> getInstalledApps(int flags) {
         List<InstalledAppInfo> infoList = new ArrayList<>(getInstalledAppCount());
-        for (VPackage p : PackageCacheManager.PACKAGE_CACHE.values()) {
+        for (VPackage p : PackageCacheManager.packages().values()) {
             PackageSetting setting = (PackageSetting) p.mExtras;
             infoList.add(setting.getAppInfo());
         }
@@ -786,7 +824,7 @@ public class VAppManagerService extends IAppManager.Stub {
     @Override
     public List<InstalledAppInfo> getInstalledAppsAsUser(int userId, int flags) {
         List<InstalledAppInfo> infoList = new ArrayList<>(getInstalledAppCount());
-        for (VPackage p : PackageCacheManager.PACKAGE_CACHE.values()) {
+        for (VPackage p : PackageCacheManager.packages().values()) {
             PackageSetting setting = (PackageSetting) p.mExtras;
             boolean visible = setting.isInstalled(userId);
             if ((flags & VirtualCore.GET_HIDDEN_APP) == 0 && setting.isHidden(userId)) {
@@ -799,14 +837,88 @@ public class VAppManagerService extends IAppManager.Stub {
         return infoList;
     }
 
+    @Override
+    public VParceledListSlice getLauncherApps() {
+        int[] userIds = VUserManagerService.get().getUserIds();
+        String locale = Locale.getDefault().toString();
+        List<LauncherAppInfo> infoList = new ArrayList<>(getInstalledAppCount());
+        Map<String, LauncherLabel> labels = new HashMap<>();
+        for (VPackage p : PackageCacheManager.packages().values()) {
+            PackageSetting setting = (PackageSetting) p.mExtras;
+            IntArray installedUsers = new IntArray(userIds.length);
+            IntArray launchedUsers = new IntArray(userIds.length);
+            for (int userId : userIds) {
+                PackageUserState state = setting.readUserState(userId);
+                if (state.installed) {
+                    installedUsers.add(userId);
+                    if (state.launched) {
+                        launchedUsers.add(userId);
+                    }
+                }
+            }
+            if (installedUsers.size() == 0) {
+                continue;
+            }
+            int userId = installedUsers.get(0);
+            LauncherAppInfo info = new LauncherAppInfo(p.packageName);
+            info.installedUsers = installedUsers.getAll();
+            info.launchedUsers = launchedUsers.getAll();
+            info.launchable = isLaunchable(p.packageName, userId);
+            info.applicationInfo = VPackageManagerService.get().getApplicationInfo(p.packageName, 0, userId);
+            info.iconVersion = setting.lastUpdateTime;
+            LauncherLabel label = getLauncherLabel(info, locale);
+            labels.put(p.packageName, label);
+            info.label = label.label;
+            infoList.add(info);
+        }
+        synchronized (mLauncherLabels) {
+            // Drops the labels of the removed packages.
+            mLauncherLabels.clear();
+            mLauncherLabels.putAll(labels);
+        }
+        return new VParceledListSlice<>(infoList);
+    }
+
+    private boolean isLaunchable(String packageName, int userId) {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_INFO);
+        intent.setPackage(packageName);
+        List<ResolveInfo> ris = VPackageManagerService.get().queryIntentActivities(intent, null, 0, userId);
+        if (ris == null || ris.isEmpty()) {
+            intent.removeCategory(Intent.CATEGORY_INFO);
+            intent.addCategory(Intent.CATEGORY_LAUNCHER);
+            ris = VPackageManagerService.get().queryIntentActivities(intent, null, 0, userId);
+        }
+        return ris != null && !ris.isEmpty();
+    }
+
+    private LauncherLabel getLauncherLabel(LauncherAppInfo info, String locale) {
+        LauncherLabel label;
+        synchronized (mLauncherLabels) {
+            label = mLauncherLabels.get(info.packageName);
+        }
+        if (label != null && label.version == info.iconVersion && label.locale.equals(locale)) {
+            return label;
+        }
+        String text = info.packageName;
+        if (info.applicationInfo != null) {
+            try {
+                text = info.applicationInfo.loadLabel(VirtualCore.getPM()).toString();
+            } catch (Throwable e) {
+                VLog.w(TAG, "Unable to load the label of %s: %s", info.packageName, e);
+            }
+        }
+        return new LauncherLabel(info.iconVersion, locale, text);
+    }
+
     @Override
     public int getInstalledAppCount() {
-        return PackageCacheManager.PACKAGE_CACHE.size();
+        return PackageCacheManager.size();
     }
 
     @Override
     public boolean isAppInstalled(String packageName) {
-        return packageName != null && PackageCacheManager.PACKAGE_CACHE.containsKey(packageName);
+        return packageName != null && PackageCacheManager.get(packageName) != null;
     }
 
     @Override
@@ -930,16 +1042,73 @@ public class VAppManagerService extends IAppManager.Stub {
     }
 
     @Override
-    public InstalledAppInfo getInstalledAppInfo(String packageName, int flags) {
-        synchronized (PackageCacheManager.class) {
-            if (packageName != null) {
-                PackageSetting setting = PackageCacheManager.getSetting(packageName);
-                if (setting != null) {
-                    return setting.getAppInfo();
+    public InstalledPackageSet getInstalledPackageSet() {
+        synchronized (mPackageSetObservers) {
+            if (mPackageSet == null) {
+                mPackageSet = buildPackageSetLocked();
+            }
+            return mPackageSet;
+        }
+    }
+
+    @Override
+    public InstalledPackageSet registerPackageSetObserver(IPackageSetObserver observer) {
+        synchronized (mPackageSetObservers) {
+            mPackageSetObservers.register(observer);
+            return getInstalledPackageSet();
+        }
+    }
+
+    @Override
+    public void unregisterPackageSetObserver(IPackageSetObserver observer) {
+        mPackageSetObservers.unregister(observer);
+    }
+
+    /**
+     * Called after a package was added, removed or had its user state changed.
+     * Pushes the new set to the replicas if the installed packages or users changed.
+     */
+    void onPackageSetChanged() {
+        synchronized (mPackageSetObservers) {
+            if (mPackageSetObservers.getRegisteredCallbackCount() == 0) {
+                // Built again on demand.
+                mPackageSet = null;
+                return;
+            }
+            InstalledPackageSet packageSet = buildPackageSetLocked();
+            if (packageSet.hasSameContent(mPackageSet)) {
+                return;
+            }
+            mPackageSet = packageSet;
+            int N = mPackageSetObservers.beginBroadcast();
+            while (N-- > 0) {
+                try {
+                    mPackageSetObservers.getBroadcastItem(N).onPackageSetChanged(packageSet);
+                } catch (RemoteException e) {
+                    // Ignore, the dead observer is dropped by the list.
                 }
             }
-            return null;
+            mPackageSetObservers.finishBroadcast();
+        }
+    }
+
+    private InstalledPackageSet buildPackageSetLocked() {
+        InstalledPackageSet packageSet = new InstalledPackageSet(++mPackageSetVersion);
+        for (VPackage p : PackageCacheManager.packages().values()) {
+            packageSet.put(p.packageName, getPackageInstalledUsers(p.packageName));
+        }
+        return packageSet;
+    }
+
+    @Override
+    public InstalledAppInfo getInstalledAppInfo(String packageName, int flags) {
+        if (packageName != null) {
+            PackageSetting setting = PackageCacheManager.getSetting(packageName);
+            if (setting != null) {
+                return setting.getAppInfo();
+            }
         }
+        return null;
     }
 
     @Override
@@ -962,7 +1131,7 @@ public class VAppManagerService extends IAppManager.Stub {
         PackageSetting ps = PackageCacheManager.getSetting(packageName);
         if (ps != null && VUserManagerService.get().exists(userId)) {
             ps.setHidden(userId, hidden);
-            mPersistenceLayer.save();
+            mPersistenceLayer.scheduleSave();
         }
     }
 
@@ -980,17 +1149,15 @@ public class VAppManagerService extends IAppManager.Stub {
     }
 
     public void savePersistenceData() {
-        mPersistenceLayer.save();
+        mPersistenceLayer.scheduleSave();
     }
 
     public boolean is64BitUid(int uid) throws PackageManager.NameNotFoundException {
         int appId = VUserHandle.getAppId(uid);
-        synchronized (PackageCacheManager.PACKAGE_CACHE) {
-            for (VPackage p : PackageCacheManager.PACKAGE_CACHE.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                if (ps.appId == appId) {
-                    return ps.isRunPluginProcess();
-                }
+        for (VPackage p : PackageCacheManager.packages().values()) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            if (ps.appId == appId) {
+                return ps.isRunPluginProcess();
             }
         }
         throw new PackageManager.NameNotFoundException();
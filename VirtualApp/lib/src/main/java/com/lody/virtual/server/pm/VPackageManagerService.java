@@ -16,9 +16,14 @@ import android.content.pm.ProviderInfo;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.os.Build;
+import android.os.Binder;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.VirtualRuntime;
@@ -26,6 +31,7 @@ import com.lody.virtual.client.fixer.ComponentFixer;
 import com.lody.virtual.client.stub.StubManifest;
 import com.lody.virtual.helper.compat.ObjectsCompat;
 import com.lody.virtual.helper.compat.PermissionCompat;
+import com.lody.virtual.helper.utils.ArrayUtils;
 import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.helper.utils.SignaturesUtils;
 import com.lody.virtual.helper.utils.Singleton;
@@ -33,6 +39,7 @@ import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VUserHandle;
 import com.lody.virtual.remote.ReceiverInfo;
 import com.lody.virtual.remote.VParceledListSlice;
+import com.lody.virtual.server.interfaces.IPackageCacheObserver;
 import com.lody.virtual.server.interfaces.IPackageManager;
 import com.lody.virtual.server.pm.installer.VPackageInstallerService;
 import com.lody.virtual.server.pm.parser.PackageParserEx;
@@ -41,6 +48,7 @@ import com.lody.virtual.server.pm.parser.VPackage;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -91,19 +99,36 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
     };
 
-    private final ActivityIntentResolver mActivities = new ActivityIntentResolver();
-    private final ServiceIntentResolver mServices = new ServiceIntentResolver();
-    private final ActivityIntentResolver mReceivers = new ActivityIntentResolver();
-    private final ProviderIntentResolver mProviders = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? new ProviderIntentResolver() : null;
-
-    private final HashMap<ComponentName, VPackage.ProviderComponent> mProvidersByComponent = new HashMap<>();
-
-    private final HashMap<String, VPackage.PermissionComponent> mPermissions = new HashMap<>();
-    private final HashMap<String, VPackage.PermissionGroupComponent> mPermissionGroups = new HashMap<>();
-    private final HashMap<String, VPackage.ProviderComponent> mProvidersByAuthority = new HashMap<>();
+    /**
+     * Guards the swap of {@link #mSnapshot}, {@link #mSnapshotVersion} and {@link #mBuildingPackages},
+     * and is notified on every swap. Readers never take it unless the package set changed,
+     * and never hold it while a snapshot is built.
+     */
+    private final Object mSnapshotLock = new Object();
+    private volatile PackageSnapshot mSnapshot;
+    private int mSnapshotVersion;
+    /**
+     * The package table a snapshot is currently being built from, if any.
+     */
+    private Map<String, VPackage> mBuildingPackages;
 
     private final Map<String, VPackage> mPackages = PackageCacheManager.PACKAGE_CACHE;
     private final Map<String, String[]> mDangerousPermissions = new HashMap<>();
+    private final GeneratedInfoCache<PackageInfo> mPackageInfoCache = new GeneratedInfoCache<>();
+    private final GeneratedInfoCache<ApplicationInfo> mApplicationInfoCache = new GeneratedInfoCache<>();
+    /**
+     * appId and sharedUserId indexes of the installed packages, all guarded by {@link #mUidIndex}.
+     * The arrays are never modified once stored, they are replaced on every change, in install order.
+     */
+    private final SparseArray<String[]> mUidIndex = new SparseArray<>();
+    private final Map<String, String[]> mSharedUserIndex = new HashMap<>();
+    private final Map<String, VPackage> mIndexedPackages = new HashMap<>();
+    /**
+     * Client side query caches, notified with a new generation whenever a generated info may change.
+     * {@link #mPackageCacheGeneration} is guarded by the list.
+     */
+    private final RemoteCallbackList<IPackageCacheObserver> mPackageCacheObservers = new RemoteCallbackList<>();
+    private int mPackageCacheGeneration;
 
 
     private VPackageManagerService() {
@@ -118,61 +143,34 @@ public class VPackageManagerService extends IPackageManager.Stub {
     }
 
 
+    /**
+     * Called with the package table locked, after the package has been put in it.
+     * The intent resolvers are rebuilt from the new table by {@link #getSnapshot()}.
+     */
     void analyzePackageLocked(VPackage pkg) {
-        int N = pkg.activities.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.activities.get(i);
+        synchronized (mUidIndex) {
+            removeFromUidIndexLocked(pkg.packageName);
+            addToUidIndexLocked(pkg);
+        }
+        for (VPackage.ActivityComponent a : pkg.activities) {
             if (a.info.processName == null) {
                 a.info.processName = a.info.packageName;
             }
-            mActivities.addActivity(a, "activity");
         }
-        N = pkg.services.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ServiceComponent a = pkg.services.get(i);
+        for (VPackage.ServiceComponent a : pkg.services) {
             if (a.info.processName == null) {
                 a.info.processName = a.info.packageName;
             }
-            mServices.addService(a);
         }
-        N = pkg.receivers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.receivers.get(i);
+        for (VPackage.ActivityComponent a : pkg.receivers) {
             if (a.info.processName == null) {
                 a.info.processName = a.info.packageName;
             }
-            mReceivers.addActivity(a, "receiver");
         }
-
-        N = pkg.providers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ProviderComponent p = pkg.providers.get(i);
+        for (VPackage.ProviderComponent p : pkg.providers) {
             if (p.info.processName == null) {
                 p.info.processName = p.info.packageName;
             }
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                mProviders.addProvider(p);
-            }
-            String names[] = p.info.authority.split(";");
-            synchronized (mProvidersByAuthority) {
-                for (String name : names) {
-                    if (!mProvidersByAuthority.containsKey(name)) {
-                        mProvidersByAuthority.put(name, p);
-                    }
-                }
-            }
-            mProvidersByComponent.put(p.getComponentName(), p);
-        }
-
-        N = pkg.permissions.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionComponent permission = pkg.permissions.get(i);
-            mPermissions.put(permission.info.name, permission);
-        }
-        N = pkg.permissionGroups.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionGroupComponent group = pkg.permissionGroups.get(i);
-            mPermissionGroups.put(group.className, group);
         }
         //d permissions
         synchronized (mDangerousPermissions) {
@@ -187,83 +185,297 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
     }
 
+    /**
+     * Called with the package table locked, before the package is removed from it.
+     */
     void deletePackageLocked(String packageName) {
-        VPackage pkg = mPackages.get(packageName);
+        synchronized (mUidIndex) {
+            removeFromUidIndexLocked(packageName);
+        }
+    }
+
+    private void addToUidIndexLocked(VPackage pkg) {
+        PackageSetting ps = (PackageSetting) pkg.mExtras;
+        mIndexedPackages.put(pkg.packageName, pkg);
+        mUidIndex.put(ps.appId, ArrayUtils.append(mUidIndex.get(ps.appId), pkg.packageName));
+        if (pkg.mSharedUserId != null) {
+            mSharedUserIndex.put(pkg.mSharedUserId,
+                    ArrayUtils.append(mSharedUserIndex.get(pkg.mSharedUserId), pkg.packageName));
+        }
+    }
+
+    private void removeFromUidIndexLocked(String packageName) {
+        VPackage pkg = mIndexedPackages.remove(packageName);
         if (pkg == null) {
             return;
         }
-        int N = pkg.activities.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.activities.get(i);
-            mActivities.removeActivity(a, "activity");
-        }
-        N = pkg.services.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ServiceComponent a = pkg.services.get(i);
-            mServices.removeService(a);
+        int appId = ((PackageSetting) pkg.mExtras).appId;
+        String[] names = ArrayUtils.remove(mUidIndex.get(appId), packageName);
+        if (names == null) {
+            mUidIndex.remove(appId);
+        } else {
+            mUidIndex.put(appId, names);
         }
-        N = pkg.receivers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.receivers.get(i);
-            mReceivers.removeActivity(a, "receiver");
+        if (pkg.mSharedUserId != null) {
+            names = ArrayUtils.remove(mSharedUserIndex.get(pkg.mSharedUserId), packageName);
+            if (names == null) {
+                mSharedUserIndex.remove(pkg.mSharedUserId);
+            } else {
+                mSharedUserIndex.put(pkg.mSharedUserId, names);
+            }
         }
+    }
 
-        N = pkg.providers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ProviderComponent p = pkg.providers.get(i);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                mProviders.removeProvider(p);
+    /**
+     * @return the snapshot matching the currently published package table,
+     * rebuilding it first if the table changed since the last call.
+     * The snapshot is built without the lock, the other readers of the same table wait for it,
+     * so that no query is answered from an older table than the one published.
+     */
+    private PackageSnapshot getSnapshot() {
+        Map<String, VPackage> packages = PackageCacheManager.packages();
+        PackageSnapshot snapshot = mSnapshot;
+        if (snapshot != null && snapshot.packages == packages) {
+            return snapshot;
+        }
+        int version;
+        synchronized (mSnapshotLock) {
+            while (true) {
+                // Read under the lock, so that the versions follow the order the tables were published in.
+                packages = PackageCacheManager.packages();
+                snapshot = mSnapshot;
+                if (snapshot != null && snapshot.packages == packages) {
+                    return snapshot;
+                }
+                if (mBuildingPackages != packages) {
+                    break;
+                }
+                try {
+                    mSnapshotLock.wait();
+                } catch (InterruptedException e) {
+                    // Build it in this thread instead.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            mBuildingPackages = packages;
+            version = ++mSnapshotVersion;
+        }
+        PackageSnapshot built = null;
+        try {
+            built = new PackageSnapshot(version, packages);
+        } finally {
+            synchronized (mSnapshotLock) {
+                if (mBuildingPackages == packages) {
+                    mBuildingPackages = null;
+                }
+                snapshot = mSnapshot;
+                if (built != null && (snapshot == null || snapshot.version < version)) {
+                    if (snapshot != null) {
+                        snapshot.logCacheStatistics();
+                    }
+                    mSnapshot = built;
+                    snapshot = built;
+                }
+                // Wakes up the readers of this table, or lets one of them build it if this build failed.
+                mSnapshotLock.notifyAll();
             }
-            String names[] = p.info.authority.split(";");
-            synchronized (mProvidersByAuthority) {
+        }
+        // A newer table may have been published and built meanwhile.
+        return snapshot;
+    }
+
+    /**
+     * Intent resolvers and component indexes built from one published package table.
+     * It is never modified once built, so it can be read without any lock.
+     * Installs and uninstalls publish a new table, the next reader builds a new snapshot
+     * from it, so that a burst of installs (e.g. at boot) costs a single rebuild.
+     */
+    private final class PackageSnapshot {
+        final int version;
+        final Map<String, VPackage> packages;
+        final ActivityIntentResolver activities = new ActivityIntentResolver();
+        final ServiceIntentResolver services = new ServiceIntentResolver();
+        final ActivityIntentResolver receivers = new ActivityIntentResolver();
+        final ProviderIntentResolver providers = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? new ProviderIntentResolver() : null;
+        final HashMap<ComponentName, VPackage.ProviderComponent> providersByComponent = new HashMap<>();
+        final HashMap<String, VPackage.PermissionComponent> permissions = new HashMap<>();
+        final HashMap<String, VPackage.PermissionGroupComponent> permissionGroups = new HashMap<>();
+        final HashMap<String, VPackage.ProviderComponent> providersByAuthority = new HashMap<>();
+
+        PackageSnapshot(int version, Map<String, VPackage> packages) {
+            this.version = version;
+            this.packages = packages;
+            for (VPackage pkg : packages.values()) {
+                addPackage(pkg);
+            }
+        }
+
+        private void addPackage(VPackage pkg) {
+            for (VPackage.ActivityComponent a : pkg.activities) {
+                activities.addActivity(a, "activity");
+            }
+            for (VPackage.ServiceComponent a : pkg.services) {
+                services.addService(a);
+            }
+            for (VPackage.ActivityComponent a : pkg.receivers) {
+                receivers.addActivity(a, "receiver");
+            }
+            for (VPackage.ProviderComponent p : pkg.providers) {
+                if (providers != null) {
+                    providers.addProvider(p);
+                }
+                String names[] = p.info.authority.split(";");
                 for (String name : names) {
-                    mProvidersByAuthority.remove(name);
+                    if (!providersByAuthority.containsKey(name)) {
+                        providersByAuthority.put(name, p);
+                    }
                 }
+                providersByComponent.put(p.getComponentName(), p);
+            }
+            for (VPackage.PermissionComponent permission : pkg.permissions) {
+                permissions.put(permission.info.name, permission);
+            }
+            for (VPackage.PermissionGroupComponent group : pkg.permissionGroups) {
+                permissionGroups.put(group.className, group);
+            }
+        }
+
+        void invalidateResults() {
+            activities.invalidateResults();
+            services.invalidateResults();
+            receivers.invalidateResults();
+            if (providers != null) {
+                providers.invalidateResults();
             }
-            mProvidersByComponent.remove(p.getComponentName());
         }
 
-        N = pkg.permissions.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionComponent permission = pkg.permissions.get(i);
-            mPermissions.remove(permission.className);
+        void logCacheStatistics() {
+            logCacheStatistics("activities", activities);
+            logCacheStatistics("services", services);
+            logCacheStatistics("receivers", receivers);
+            if (providers != null) {
+                logCacheStatistics("providers", providers);
+            }
         }
-        N = pkg.permissionGroups.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionGroupComponent group = pkg.permissionGroups.get(i);
-            mPermissionGroups.remove(group.className);
+
+        private void logCacheStatistics(String name, IntentResolver<?, ?> resolver) {
+            long[] stats = resolver.getCacheStatistics();
+            long queries = stats[0] + stats[1];
+            if (queries > 0) {
+                VLog.d(TAG, "snapshot %d %s: %d/%d queries cached, %dus saved", version, name,
+                        stats[0], queries, stats[0] * stats[2] / 1000);
+            }
         }
     }
 
     @Override
     public List<String> getSharedLibraries(String packageName) {
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                return p.usesLibraries;
+        VPackage p = PackageCacheManager.get(packageName);
+        if (p != null) {
+            return p.usesLibraries;
+        }
+        return null;
+    }
+
+    /**
+     * Called with the package table locked, after the table with the change has been published.
+     * A reader, here or in a client, that built an info from the previous table did so under
+     * the previous generation, so it cannot cache it.
+     */
+    void onPackagePublishedLocked(String packageName) {
+        invalidateGeneratedInfos(packageName);
+    }
+
+    /**
+     * Drop the cached infos of the given package, called whenever its package,
+     * component or user state changes.
+     */
+    void invalidateGeneratedInfos(String packageName) {
+        mPackageInfoCache.invalidate(packageName);
+        mApplicationInfoCache.invalidate(packageName);
+        invalidateResolvedIntents();
+        notifyPackageCacheObservers();
+    }
+
+    private void invalidateAllGeneratedInfos() {
+        mPackageInfoCache.invalidateAll();
+        mApplicationInfoCache.invalidateAll();
+        invalidateResolvedIntents();
+        notifyPackageCacheObservers();
+    }
+
+    /**
+     * The cached intent resolutions depend on the enabled and user states of every
+     * package, they are all dropped. A new snapshot starts with empty caches.
+     */
+    private void invalidateResolvedIntents() {
+        PackageSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            snapshot.invalidateResults();
+        }
+    }
+
+    private void notifyPackageCacheObservers() {
+        synchronized (mPackageCacheObservers) {
+            int generation = ++mPackageCacheGeneration;
+            int N = mPackageCacheObservers.beginBroadcast();
+            while (N-- > 0) {
+                try {
+                    mPackageCacheObservers.getBroadcastItem(N).onPackageCacheInvalidated(generation);
+                } catch (RemoteException e) {
+                    // Ignore, the dead observer is dropped by the list.
+                }
             }
-            return null;
+            mPackageCacheObservers.finishBroadcast();
+        }
+    }
+
+    @Override
+    public int registerPackageCacheObserver(IPackageCacheObserver observer) {
+        synchronized (mPackageCacheObservers) {
+            mPackageCacheObservers.register(observer);
+            return mPackageCacheGeneration;
         }
     }
 
+    @Override
+    public void unregisterPackageCacheObserver(IPackageCacheObserver observer) {
+        mPackageCacheObservers.unregister(observer);
+    }
+
+    /**
+     * Cached infos are shared, only hand them out to remote callers as their result is parceled.
+     */
+    static boolean canUseGeneratedInfoCache(int flags) {
+        return Binder.getCallingPid() != Process.myPid() && GeneratedInfoCache.isCacheable(flags);
+    }
+
     @Override
     public PackageInfo getPackageInfo(String packageName, int flags, int userId) {
         checkUserId(userId);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                return generatePackageInfo(p, ps, flags, userId);
+        boolean useCache = canUseGeneratedInfoCache(flags);
+        if (useCache) {
+            PackageInfo cached = mPackageInfoCache.get(packageName, userId, flags);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int generation = mPackageInfoCache.getGeneration();
+        VPackage p = PackageCacheManager.get(packageName);
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            PackageInfo info = generatePackageInfo(p, ps, flags, userId);
+            if (useCache) {
+                mPackageInfoCache.put(packageName, userId, flags, info, generation);
             }
+            return info;
         }
         return null;
     }
 
     private PackageSetting getPackageSettingLocked(String packageName) {
-        VPackage p;
-        synchronized (mPackages) {
-            p = mPackages.get(packageName);
-        }
+        VPackage p = PackageCacheManager.get(packageName);
         if (p != null) {
             return (PackageSetting) p.mExtras;
         }
@@ -307,52 +519,58 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ActivityInfo getActivityInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ActivityComponent a = mActivities.mActivities.get(component);
-                if (a != null) {
-                    ActivityInfo activityInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(activityInfo);
-                    return activityInfo;
-                }
+        PackageSnapshot snapshot = getSnapshot();
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ActivityComponent a = snapshot.activities.mActivities.get(component);
+            if (a != null) {
+                ActivityInfo activityInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(activityInfo);
+                return activityInfo;
             }
         }
         return null;
     }
 
+    /**
+     * @return the window style of the activity resolved when its package was parsed,
+     * or {@link VPackage.ActivityComponent#WINDOW_STYLE_UNKNOWN}
+     */
+    public int getActivityWindowStyle(ComponentName component) {
+        VPackage.ActivityComponent a = getSnapshot().activities.mActivities.get(component);
+        return a != null ? a.windowStyle : VPackage.ActivityComponent.WINDOW_STYLE_UNKNOWN;
+    }
+
     @Override
     public boolean activitySupportsIntent(ComponentName component, Intent intent, String resolvedType) {
-        synchronized (mPackages) {
-            VPackage.ActivityComponent a = mActivities.mActivities.get(component);
-            if (a == null) {
-                return false;
-            }
-            for (int i = 0; i < a.intents.size(); i++) {
-                if (a.intents.get(i).filter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(),
-                        intent.getCategories(), TAG) >= 0) {
-                    return true;
-                }
-            }
+        PackageSnapshot snapshot = getSnapshot();
+        VPackage.ActivityComponent a = snapshot.activities.mActivities.get(component);
+        if (a == null) {
             return false;
         }
+        for (int i = 0; i < a.intents.size(); i++) {
+            if (a.intents.get(i).filter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(),
+                    intent.getCategories(), TAG) >= 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public ActivityInfo getReceiverInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ActivityComponent a = mReceivers.mActivities.get(component);
-                if (a != null && isEnabledLPr(a.info, flags, userId)) {
-                    ActivityInfo receiverInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(receiverInfo);
-                    return receiverInfo;
-                }
+        PackageSnapshot snapshot = getSnapshot();
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ActivityComponent a = snapshot.receivers.mActivities.get(component);
+            if (a != null && isEnabledLPr(a.info, flags, userId)) {
+                ActivityInfo receiverInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(receiverInfo);
+                return receiverInfo;
             }
         }
         return null;
@@ -362,16 +580,15 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ServiceInfo getServiceInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ServiceComponent s = mServices.mServices.get(component);
-                if (s != null) {
-                    ServiceInfo serviceInfo = PackageParserEx.generateServiceInfo(s, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(serviceInfo);
-                    return serviceInfo;
-                }
+        PackageSnapshot snapshot = getSnapshot();
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ServiceComponent s = snapshot.services.mServices.get(component);
+            if (s != null) {
+                ServiceInfo serviceInfo = PackageParserEx.generateServiceInfo(s, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(serviceInfo);
+                return serviceInfo;
             }
         }
         return null;
@@ -381,16 +598,15 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ProviderInfo getProviderInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ProviderComponent provider = mProvidersByComponent.get(component);
-                if (provider != null && isEnabledLPr(provider.info, flags, userId)) {
-                    ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(providerInfo);
-                    return providerInfo;
-                }
+        PackageSnapshot snapshot = getSnapshot();
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ProviderComponent provider = snapshot.providersByComponent.get(component);
+            if (provider != null && isEnabledLPr(provider.info, flags, userId)) {
+                ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(providerInfo);
+                return providerInfo;
             }
         }
         return null;
@@ -464,17 +680,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
 
         // reader
-        synchronized (mPackages) {
-            final String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mActivities.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mActivities.queryIntentForPackage(intent, resolvedType, flags, pkg.activities, userId);
-            }
-            return Collections.emptyList();
+        PackageSnapshot snapshot = getSnapshot();
+        final String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            return snapshot.activities.queryIntent(intent, resolvedType, flags, userId);
+        }
+        final VPackage pkg = snapshot.packages.get(pkgName);
+        if (pkg != null) {
+            return snapshot.activities.queryIntentForPackage(intent, resolvedType, flags, pkg.activities, userId);
         }
+        return Collections.emptyList();
     }
 
     @Override
@@ -502,17 +717,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
 
         // reader
-        synchronized (mPackages) {
-            String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mReceivers.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mReceivers.queryIntentForPackage(intent, resolvedType, flags, pkg.receivers, userId);
-            }
-            return Collections.emptyList();
+        PackageSnapshot snapshot = getSnapshot();
+        String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            return snapshot.receivers.queryIntent(intent, resolvedType, flags, userId);
+        }
+        final VPackage pkg = snapshot.packages.get(pkgName);
+        if (pkg != null) {
+            return snapshot.receivers.queryIntentForPackage(intent, resolvedType, flags, pkg.receivers, userId);
         }
+        return Collections.emptyList();
     }
 
     @Override
@@ -555,17 +769,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
 
         // reader
-        synchronized (mPackages) {
-            String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mServices.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mServices.queryIntentForPackage(intent, resolvedType, flags, pkg.services, userId);
-            }
-            return Collections.emptyList();
+        PackageSnapshot snapshot = getSnapshot();
+        String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            return snapshot.services.queryIntent(intent, resolvedType, flags, userId);
         }
+        final VPackage pkg = snapshot.packages.get(pkgName);
+        if (pkg != null) {
+            return snapshot.services.queryIntentForPackage(intent, resolvedType, flags, pkg.services, userId);
+        }
+        return Collections.emptyList();
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -593,17 +806,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
             return list;
         }
         // reader
-        synchronized (mPackages) {
-            String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mProviders.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mProviders.queryIntentForPackage(intent, resolvedType, flags, pkg.providers, userId);
-            }
-            return Collections.emptyList();
+        PackageSnapshot snapshot = getSnapshot();
+        String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            return snapshot.providers.queryIntent(intent, resolvedType, flags, userId);
+        }
+        final VPackage pkg = snapshot.packages.get(pkgName);
+        if (pkg != null) {
+            return snapshot.providers.queryIntentForPackage(intent, resolvedType, flags, pkg.providers, userId);
         }
+        return Collections.emptyList();
     }
 
     @Override
@@ -613,17 +825,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
         flags = updateFlagsNought(flags);
         ArrayList<ProviderInfo> finalList = new ArrayList<>(3);
         // reader
-        synchronized (mPackages) {
-            for (VPackage.ProviderComponent p : mProvidersByAuthority.values()) {
-                if (!isEnabledLPr(p.info, flags, userId)) {
-                    continue;
-                }
-                PackageSetting ps = (PackageSetting) p.owner.mExtras;
-                if (processName == null
-                        || (ps.appId == VUserHandle.getAppId(vuid) && p.info.processName.equals(processName))) {
-                    ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(p, flags, ps.readUserState(userId), userId);
-                    finalList.add(providerInfo);
-                }
+        PackageSnapshot snapshot = getSnapshot();
+        for (VPackage.ProviderComponent p : snapshot.providersByAuthority.values()) {
+            if (!isEnabledLPr(p.info, flags, userId)) {
+                continue;
+            }
+            PackageSetting ps = (PackageSetting) p.owner.mExtras;
+            if (processName == null
+                    || (ps.appId == VUserHandle.getAppId(vuid) && p.info.processName.equals(processName))) {
+                ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(p, flags, ps.readUserState(userId), userId);
+                finalList.add(providerInfo);
             }
         }
         if (!finalList.isEmpty()) {
@@ -657,14 +868,13 @@ public class VPackageManagerService extends IPackageManager.Stub {
     @Override
     public VParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId) {
         checkUserId(userId);
-        ArrayList<PackageInfo> pkgList = new ArrayList<>(mPackages.size());
-        synchronized (mPackages) {
-            for (VPackage p : mPackages.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                PackageInfo info = generatePackageInfo(p, ps, flags, userId);
-                if (info != null) {
-                    pkgList.add(info);
-                }
+        Map<String, VPackage> packages = PackageCacheManager.packages();
+        ArrayList<PackageInfo> pkgList = new ArrayList<>(packages.size());
+        for (VPackage p : packages.values()) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            PackageInfo info = generatePackageInfo(p, ps, flags, userId);
+            if (info != null) {
+                pkgList.add(info);
             }
         }
         return new VParceledListSlice<>(pkgList);
@@ -674,15 +884,14 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public VParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        ArrayList<ApplicationInfo> list = new ArrayList<>(mPackages.size());
-        synchronized (mPackages) {
-            for (VPackage p : mPackages.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                ApplicationInfo info = PackageParserEx.generateApplicationInfo(p, flags,
-                        ps.readUserState(userId), userId);
-                if (info != null) {
-                    list.add(info);
-                }
+        Map<String, VPackage> packages = PackageCacheManager.packages();
+        ArrayList<ApplicationInfo> list = new ArrayList<>(packages.size());
+        for (VPackage p : packages.values()) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            ApplicationInfo info = PackageParserEx.generateApplicationInfo(p, flags,
+                    ps.readUserState(userId), userId);
+            if (info != null) {
+                list.add(info);
             }
         }
         return new VParceledListSlice<>(list);
@@ -691,22 +900,20 @@ public class VPackageManagerService extends IPackageManager.Stub {
     @Override
     public List<ReceiverInfo> getReceiverInfos(String packageName, String processName, int userId) {
         List<ReceiverInfo> list = new ArrayList<>();
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p == null) {
-                return Collections.emptyList();
-            }
-            for (VPackage.ActivityComponent receiver : p.receivers) {
-                if (!isEnabledLPr(receiver.info, 0, userId)) {
-                    continue;
-                }
-                if (receiver.info.processName.equals(processName)) {
-                    List<IntentFilter> filters = new ArrayList<>();
-                    for (VPackage.ActivityIntentInfo intentInfo : receiver.intents) {
-                        filters.add(intentInfo.filter);
-                    }
-                    list.add(new ReceiverInfo(receiver.info, filters));
+        VPackage p = PackageCacheManager.get(packageName);
+        if (p == null) {
+            return Collections.emptyList();
+        }
+        for (VPackage.ActivityComponent receiver : p.receivers) {
+            if (!isEnabledLPr(receiver.info, 0, userId)) {
+                continue;
+            }
+            if (receiver.info.processName.equals(processName)) {
+                List<IntentFilter> filters = new ArrayList<>();
+                for (VPackage.ActivityIntentInfo intentInfo : receiver.intents) {
+                    filters.add(intentInfo.filter);
                 }
+                list.add(new ReceiverInfo(receiver.info, filters));
             }
         }
         return list;
@@ -714,11 +921,10 @@ public class VPackageManagerService extends IPackageManager.Stub {
 
     @Override
     public PermissionInfo getPermissionInfo(String name, int flags) {
-        synchronized (mPackages) {
-            VPackage.PermissionComponent p = mPermissions.get(name);
-            if (p != null) {
-                return new PermissionInfo(p.info);
-            }
+        PackageSnapshot snapshot = getSnapshot();
+        VPackage.PermissionComponent p = snapshot.permissions.get(name);
+        if (p != null) {
+            return new PermissionInfo(p.info);
         }
         return null;
     }
@@ -727,11 +933,10 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public List<PermissionInfo> queryPermissionsByGroup(String group, int flags) {
         List<PermissionInfo> infos = new ArrayList<>();
         if (group != null) {
-            synchronized (mPackages) {
-                for (VPackage.PermissionComponent p : mPermissions.values()) {
-                    if (p.info.group.equals(group)) {
-                        infos.add(p.info);
-                    }
+            PackageSnapshot snapshot = getSnapshot();
+            for (VPackage.PermissionComponent p : snapshot.permissions.values()) {
+                if (p.info.group.equals(group)) {
+                    infos.add(p.info);
                 }
             }
         }
@@ -740,35 +945,30 @@ public class VPackageManagerService extends IPackageManager.Stub {
 
     @Override
     public PermissionGroupInfo getPermissionGroupInfo(String name, int flags) {
-        synchronized (mPackages) {
-            VPackage.PermissionGroupComponent p = mPermissionGroups.get(name);
-            if (p != null) {
-                return new PermissionGroupInfo(p.info);
-            }
+        PackageSnapshot snapshot = getSnapshot();
+        VPackage.PermissionGroupComponent p = snapshot.permissionGroups.get(name);
+        if (p != null) {
+            return new PermissionGroupInfo(p.info);
         }
         return null;
     }
 
     @Override
     public List<PermissionGroupInfo> getAllPermissionGroups(int flags) {
-        synchronized (mPackages) {
-            final int N = mPermissionGroups.size();
-            ArrayList<PermissionGroupInfo> out = new ArrayList<>(N);
-            for (VPackage.PermissionGroupComponent pg : mPermissionGroups.values()) {
-                out.add(new PermissionGroupInfo(pg.info));
-            }
-            return out;
+        PackageSnapshot snapshot = getSnapshot();
+        final int N = snapshot.permissionGroups.size();
+        ArrayList<PermissionGroupInfo> out = new ArrayList<>(N);
+        for (VPackage.PermissionGroupComponent pg : snapshot.permissionGroups.values()) {
+            out.add(new PermissionGroupInfo(pg.info));
         }
+        return out;
     }
 
     @Override
     public ProviderInfo resolveContentProvider(String name, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        final VPackage.ProviderComponent provider;
-        synchronized (mProvidersByAuthority) {
-            provider = mProvidersByAuthority.get(name);
-        }
+        final VPackage.ProviderComponent provider = getSnapshot().providersByAuthority.get(name);
         if (provider != null && isEnabledLPr(provider.info, flags, userId)) {
             PackageSetting ps = (PackageSetting) provider.owner.mExtras;
             ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
@@ -784,13 +984,23 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ApplicationInfo getApplicationInfo(String packageName, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                return PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId),
-                        userId);
+        boolean useCache = canUseGeneratedInfoCache(flags);
+        if (useCache) {
+            ApplicationInfo cached = mApplicationInfoCache.get(packageName, userId, flags);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int generation = mApplicationInfoCache.getGeneration();
+        VPackage p = PackageCacheManager.get(packageName);
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            ApplicationInfo info = PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId),
+                    userId);
+            if (useCache) {
+                mApplicationInfoCache.put(packageName, userId, flags, info, generation);
             }
+            return info;
         }
         return null;
     }
@@ -799,66 +1009,54 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public String[] getPackagesForUid(int uid) {
         int userId = VUserHandle.getUserId(uid);
         checkUserId(userId);
-        synchronized (this) {
-            List<String> pkgList = new ArrayList<>(2);
-            for (VPackage p : mPackages.values()) {
-                PackageSetting settings = (PackageSetting) p.mExtras;
-                if (VUserHandle.getUid(userId, settings.appId) == uid) {
-                    pkgList.add(p.packageName);
-                }
-            }
-            if (pkgList.isEmpty()) {
-                VLog.e(TAG, "getPackagesForUid return an empty result.");
-                return null;
-            }
-            return pkgList.toArray(new String[0]);
+        String[] names;
+        synchronized (mUidIndex) {
+            names = mUidIndex.get(VUserHandle.getAppId(uid));
         }
+        if (names == null) {
+            VLog.e(TAG, "getPackagesForUid return an empty result.");
+            return null;
+        }
+        // The memoized array is shared, local callers get their own copy.
+        return Binder.getCallingPid() != Process.myPid() ? names : names.clone();
     }
 
     @Override
     public int getPackageUid(String packageName, int userId) {
         checkUserId(userId);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                return VUserHandle.getUid(userId, ps.appId);
-            }
-            return -1;
+        VPackage p = PackageCacheManager.get(packageName);
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            return VUserHandle.getUid(userId, ps.appId);
         }
+        return -1;
     }
 
     @Override
     public String getNameForUid(int uid) {
-        int appId = VUserHandle.getAppId(uid);
-        synchronized (mPackages) {
-            for (VPackage p : mPackages.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                if (ps.appId == appId) {
-                    return ps.packageName;
-                }
-            }
-            return null;
+        synchronized (mUidIndex) {
+            String[] names = mUidIndex.get(VUserHandle.getAppId(uid));
+            return names != null ? names[0] : null;
         }
     }
 
 
     @Override
     public List<String> querySharedPackages(String packageName) {
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p == null || p.mSharedUserId == null) {
-                // noinspection unchecked
-                return Collections.EMPTY_LIST;
-            }
-            ArrayList<String> list = new ArrayList<>();
-            for (VPackage one : mPackages.values()) {
-                if (TextUtils.equals(one.mSharedUserId, p.mSharedUserId)) {
-                    list.add(one.packageName);
-                }
-            }
-            return list;
+        VPackage p = PackageCacheManager.get(packageName);
+        if (p == null || p.mSharedUserId == null) {
+            // noinspection unchecked
+            return Collections.EMPTY_LIST;
+        }
+        String[] names;
+        synchronized (mUidIndex) {
+            names = mSharedUserIndex.get(p.mSharedUserId);
+        }
+        if (names == null) {
+            // noinspection unchecked
+            return Collections.EMPTY_LIST;
         }
+        return new ArrayList<>(Arrays.asList(names));
     }
 
     @Override
@@ -868,9 +1066,8 @@ public class VPackageManagerService extends IPackageManager.Stub {
 
     @Override
     public boolean isVirtualAuthority(String authority) {
-        synchronized (mProvidersByAuthority) {
-            return mProvidersByAuthority.containsKey(authority);
-        }
+        PackageSnapshot snapshot = getSnapshot();
+        return snapshot.providersByAuthority.containsKey(authority);
     }
 
     @Override
@@ -880,6 +1077,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
         checkUserId(userId);
         ComponentStateManager.get().setComponentState(component, newState, userId);
+        invalidateGeneratedInfos(component.getPackageName());
     }
 
     @Override
@@ -888,37 +1086,38 @@ public class VPackageManagerService extends IPackageManager.Stub {
             return 0;
         }
         checkUserId(userId);
-        synchronized (mPackages) {
-            return ComponentStateManager.get().getComponentState(component, userId);
-        }
+        return ComponentStateManager.get().getComponentState(component, userId);
     }
 
     void createNewUser(int userId, File userPath) {
-        for (VPackage p : mPackages.values()) {
+        Map<String, VPackage> packages = PackageCacheManager.packages();
+        for (VPackage p : packages.values()) {
             PackageSetting setting = (PackageSetting) p.mExtras;
             setting.modifyUserState(userId);
         }
+        invalidateAllGeneratedInfos();
     }
 
     void cleanUpUser(int userId) {
-        for (VPackage p : mPackages.values()) {
+        Map<String, VPackage> packages = PackageCacheManager.packages();
+        for (VPackage p : packages.values()) {
             PackageSetting ps = (PackageSetting) p.mExtras;
             ps.removeUser(userId);
         }
         //clear component states
         ComponentStateManager.get().clearAll(userId);
+        invalidateAllGeneratedInfos();
     }
 
 
     private PermissionInfo findPermission(String permission) {
-        synchronized (mPackages) {
-            for (VPackage pkg : mPackages.values()) {
-                ArrayList<VPackage.PermissionComponent> permissions = pkg.permissions;
-                if (permissions != null) {
-                    for (VPackage.PermissionComponent component : permissions) {
-                        if (component.info != null && TextUtils.equals(permission, component.info.name)) {
-                            return component.info;
-                        }
+        Map<String, VPackage> packages = PackageCacheManager.packages();
+        for (VPackage pkg : packages.values()) {
+            ArrayList<VPackage.PermissionComponent> permissions = pkg.permissions;
+            if (permissions != null) {
+                for (VPackage.PermissionComponent component : permissions) {
+                    if (component.info != null && TextUtils.equals(permission, component.info.name)) {
+                        return component.info;
                     }
                 }
             }
@@ -928,10 +1127,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
 
 
     private boolean hasRequestedPermission(String permission, String packageName) {
-        VPackage pkg;
-        synchronized (mPackages) {
-            pkg = mPackages.get(packageName);
-        }
+        VPackage pkg = PackageCacheManager.get(packageName);
         if (pkg != null && pkg.requestedPermissions != null) {
             return pkg.requestedPermissions.contains(permission);
         }
@@ -993,15 +1189,12 @@ public class VPackageManagerService extends IPackageManager.Stub {
     private final class ActivityIntentResolver extends IntentResolver<VPackage.ActivityIntentInfo, ResolveInfo> {
         // Keys are String (activity class name), values are Activity.
         private final HashMap<ComponentName, VPackage.ActivityComponent> mActivities = new HashMap<>();
-        private int mFlags;
 
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
-            mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
-            return super.queryIntent(intent, resolvedType, defaultOnly, userId);
+            return super.queryIntent(intent, resolvedType, defaultOnly, defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0, userId);
         }
 
         List<ResolveInfo> queryIntent(Intent intent, String resolvedType, int flags, int userId) {
-            mFlags = flags;
             if (intent.getAction() == null && intent.getPackage() == null && (flags & PackageManager.GET_ACTIVITIES) != 0 && (flags & PackageManager.GET_META_DATA) != 0) {
                 List<ResolveInfo> resolveInfos = new ArrayList<>();
                 for (VPackage.ActivityComponent activityComponent : mActivities.values()) {
@@ -1014,7 +1207,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
                 }
                 return resolveInfos;
             }
-            return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
+            return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, flags, userId);
         }
 
         List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
@@ -1022,7 +1215,6 @@ public class VPackageManagerService extends IPackageManager.Stub {
             if (packageActivities == null) {
                 return null;
             }
-            mFlags = flags;
             final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
             final int N = packageActivities.size();
             ArrayList<VPackage.ActivityIntentInfo[]> listCut = new ArrayList<VPackage.ActivityIntentInfo[]>(
@@ -1038,7 +1230,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
                     listCut.add(array);
                 }
             }
-            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
+            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, flags, userId);
         }
 
         public final void addActivity(VPackage.ActivityComponent a, String type) {
@@ -1076,6 +1268,11 @@ public class VPackageManagerService extends IPackageManager.Stub {
             return true;
         }
 
+        @Override
+        protected boolean canCacheResults(int flags) {
+            return canUseGeneratedInfoCache(flags);
+        }
+
         @Override
         protected VPackage.ActivityIntentInfo[] newArray(int size) {
             return new VPackage.ActivityIntentInfo[size];
@@ -1092,19 +1289,19 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
 
         @Override
-        protected ResolveInfo newResult(VPackage.ActivityIntentInfo info, int match, int userId) {
+        protected ResolveInfo newResult(VPackage.ActivityIntentInfo info, int match, int flags, int userId) {
             final VPackage.ActivityComponent activity = info.activity;
-            if (!isEnabledLPr(activity.info, mFlags, userId)) {
+            if (!isEnabledLPr(activity.info, flags, userId)) {
                 return null;
             }
             PackageSetting ps = (PackageSetting) activity.owner.mExtras;
-            ActivityInfo ai = PackageParserEx.generateActivityInfo(activity, mFlags, ps.readUserState(userId), userId);
+            ActivityInfo ai = PackageParserEx.generateActivityInfo(activity, flags, ps.readUserState(userId), userId);
             if (ai == null) {
                 return null;
             }
             final ResolveInfo res = new ResolveInfo();
             res.activityInfo = ai;
-            if ((mFlags & PackageManager.GET_RESOLVED_FILTER) != 0) {
+            if ((flags & PackageManager.GET_RESOLVED_FILTER) != 0) {
                 res.filter = info.filter;
             }
             res.priority = info.filter.getPriority();
@@ -1161,16 +1358,13 @@ public class VPackageManagerService extends IPackageManager.Stub {
     private final class ServiceIntentResolver extends IntentResolver<VPackage.ServiceIntentInfo, ResolveInfo> {
         // Keys are String (activity class name), values are Activity.
         private final HashMap<ComponentName, VPackage.ServiceComponent> mServices = new HashMap<>();
-        private int mFlags;
 
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
-            mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
-            return super.queryIntent(intent, resolvedType, defaultOnly, userId);
+            return super.queryIntent(intent, resolvedType, defaultOnly, defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0, userId);
         }
 
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, int flags, int userId) {
-            mFlags = flags;
-            return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
+            return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, flags, userId);
         }
 
         public List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
@@ -1178,7 +1372,6 @@ public class VPackageManagerService extends IPackageManager.Stub {
             if (packageServices == null) {
                 return null;
             }
-            mFlags = flags;
             final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
             final int N = packageServices.size();
             ArrayList<VPackage.ServiceIntentInfo[]> listCut = new ArrayList<VPackage.ServiceIntentInfo[]>(N);
@@ -1192,7 +1385,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
                     listCut.add(array);
                 }
             }
-            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
+            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, flags, userId);
         }
 
         public final void addService(VPackage.ServiceComponent s) {
@@ -1228,6 +1421,11 @@ public class VPackageManagerService extends IPackageManager.Stub {
             return true;
         }
 
+        @Override
+        protected boolean canCacheResults(int flags) {
+            return canUseGeneratedInfoCache(flags);
+        }
+
         @Override
         protected VPackage.ServiceIntentInfo[] newArray(int size) {
             return new VPackage.ServiceIntentInfo[size];
@@ -1244,19 +1442,19 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
 
         @Override
-        protected ResolveInfo newResult(VPackage.ServiceIntentInfo filter, int match, int userId) {
+        protected ResolveInfo newResult(VPackage.ServiceIntentInfo filter, int match, int flags, int userId) {
             final VPackage.ServiceComponent service = filter.service;
-            if (!isEnabledLPr(service.info, mFlags, userId)) {
+            if (!isEnabledLPr(service.info, flags, userId)) {
                 return null;
             }
             PackageSetting ps = (PackageSetting) service.owner.mExtras;
-            ServiceInfo si = PackageParserEx.generateServiceInfo(service, mFlags, ps.readUserState(userId), userId);
+            ServiceInfo si = PackageParserEx.generateServiceInfo(service, flags, ps.readUserState(userId), userId);
             if (si == null) {
                 return null;
             }
             final ResolveInfo res = new ResolveInfo();
             res.serviceInfo = si;
-            if ((mFlags & PackageManager.GET_RESOLVED_FILTER) != 0) {
+            if ((flags & PackageManager.GET_RESOLVED_FILTER) != 0) {
                 res.filter = filter.filter;
             }
             res.priority = filter.filter.getPriority();
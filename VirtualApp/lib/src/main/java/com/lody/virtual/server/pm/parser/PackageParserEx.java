@@ -13,10 +13,14 @@ import android.content.pm.PermissionInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
 import android.os.Build;
 import android.os.Parcel;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import com.lody.virtual.GmsSupport;
 import com.lody.virtual.client.core.SettingConfig;
@@ -47,6 +51,7 @@ import java.util.List;
 
 import mirror.android.content.pm.ApplicationInfoL;
 import mirror.android.content.pm.ApplicationInfoN;
+import mirror.com.android.internal.R_Hide;
 
 /**
  * @author Lody
@@ -83,7 +88,77 @@ public class PackageParserEx {
                 e.printStackTrace();
             }
         }
-        return buildPackageCache(p);
+        VPackage cache = buildPackageCache(p);
+        resolveWindowStyles(cache, packageFile);
+        return cache;
+    }
+
+    /**
+     * Resolve the window attributes of the activity themes once, so that the server
+     * picks the stub of an activity without loading the resources of its package.
+     *
+     * @return false if the resources of the package could not be loaded
+     */
+    public static boolean resolveWindowStyles(VPackage p, File apkFile) {
+        AssetManager assets = null;
+        try {
+            assets = mirror.android.content.res.AssetManager.ctor.newInstance();
+            mirror.android.content.res.AssetManager.addAssetPath.call(assets, apkFile.getPath());
+            Resources hostRes = VirtualCore.get().getContext().getResources();
+            Resources res = new Resources(assets, hostRes.getDisplayMetrics(), hostRes.getConfiguration());
+            int[] styleable = R_Hide.styleable.Window.get();
+            int isFloating = R_Hide.styleable.Window_windowIsFloating.get();
+            int isTranslucent = R_Hide.styleable.Window_windowIsTranslucent.get();
+            int showWallpaper = R_Hide.styleable.Window_windowShowWallpaper.get();
+            // Most of the activities share a few themes.
+            SparseIntArray themeStyles = new SparseIntArray();
+            for (VPackage.ActivityComponent a : p.activities) {
+                int theme = a.info.theme;
+                int index = themeStyles.indexOfKey(theme);
+                if (index >= 0) {
+                    a.windowStyle = themeStyles.valueAt(index);
+                    continue;
+                }
+                int style = 0;
+                try {
+                    TypedArray array = res.newTheme().obtainStyledAttributes(theme, styleable);
+                    if (array.getBoolean(isFloating, false)) {
+                        style |= VPackage.ActivityComponent.WINDOW_IS_FLOATING;
+                    }
+                    if (array.getBoolean(isTranslucent, false)) {
+                        style |= VPackage.ActivityComponent.WINDOW_IS_TRANSLUCENT;
+                    }
+                    if (array.getBoolean(showWallpaper, false)) {
+                        style |= VPackage.ActivityComponent.WINDOW_SHOW_WALLPAPER;
+                    }
+                    array.recycle();
+                } catch (Resources.NotFoundException e) {
+                    // Same as a theme without any of these attributes.
+                }
+                themeStyles.put(theme, style);
+                a.windowStyle = style;
+            }
+            return true;
+        } catch (Throwable e) {
+            VLog.w(TAG, "Unable to resolve the window styles of " + p.packageName + ": " + e);
+            return false;
+        } finally {
+            if (assets != null) {
+                assets.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the package was cached before the window styles were resolved at parse time
+     */
+    public static boolean hasUnresolvedWindowStyles(VPackage p) {
+        for (VPackage.ActivityComponent a : p.activities) {
+            if (a.windowStyle == VPackage.ActivityComponent.WINDOW_STYLE_UNKNOWN) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static void buildSignature(PackageParser.Package p, Signature[] signatures) {
@@ -105,10 +180,11 @@ public class PackageParserEx {
             is.close();
             p.unmarshall(bytes, 0, bytes.length);
             p.setDataPosition(0);
-            if (p.readInt() != 4) {
+            int version = p.readInt();
+            if (version != VPackage.CACHE_VERSION && version != 4) {
                 throw new IllegalStateException("Invalid version.");
             }
-            VPackage pkg = new VPackage(p);
+            VPackage pkg = new VPackage(p, version);
             addOwner(pkg);
             return pkg;
         } catch (Exception e) {
@@ -152,7 +228,7 @@ public class PackageParserEx {
         Parcel p = Parcel.obtain();
 
         try {
-            p.writeInt(4);
+            p.writeInt(VPackage.CACHE_VERSION);
             pkg.writeToParcel(p, 0);
             FileOutputStream fos = new FileOutputStream(cacheFile);
             fos.write(p.marshall());
@@ -538,7 +614,7 @@ public class PackageParserEx {
                 final ActivityInfo[] res = new ActivityInfo[N];
                 for (int i = 0; i < N; i++) {
                     final VPackage.ActivityComponent a = p.activities.get(i);
-                    res[num++] = generateActivityInfo(a, flags, state, userId);
+                    res[num++] = generateActivityInfo(a, flags, state, userId, pi.applicationInfo);
                 }
                 pi.activities = res;
             }
@@ -550,7 +626,7 @@ public class PackageParserEx {
                 final ActivityInfo[] res = new ActivityInfo[N];
                 for (int i = 0; i < N; i++) {
                     final VPackage.ActivityComponent a = p.receivers.get(i);
-                    res[num++] = generateActivityInfo(a, flags, state, userId);
+                    res[num++] = generateActivityInfo(a, flags, state, userId, pi.applicationInfo);
                 }
                 pi.receivers = res;
             }
@@ -562,7 +638,7 @@ public class PackageParserEx {
                 final ServiceInfo[] res = new ServiceInfo[N];
                 for (int i = 0; i < N; i++) {
                     final VPackage.ServiceComponent s = p.services.get(i);
-                    res[num++] = generateServiceInfo(s, flags, state, userId);
+                    res[num++] = generateServiceInfo(s, flags, state, userId, pi.applicationInfo);
                 }
                 pi.services = res;
             }
@@ -574,7 +650,7 @@ public class PackageParserEx {
                 final ProviderInfo[] res = new ProviderInfo[N];
                 for (int i = 0; i < N; i++) {
                     final VPackage.ProviderComponent pr = p.providers.get(i);
-                    res[num++] = generateProviderInfo(pr, flags, state, userId);
+                    res[num++] = generateProviderInfo(pr, flags, state, userId, pi.applicationInfo);
                 }
                 pi.providers = res;
             }
@@ -654,6 +730,14 @@ public class PackageParserEx {
 
     public static ActivityInfo generateActivityInfo(VPackage.ActivityComponent a, int flags,
                                                     PackageUserState state, int userId) {
+        return generateActivityInfo(a, flags, state, userId, null);
+    }
+
+    /**
+     * @param applicationInfo the application info to share with the result, generated if null
+     */
+    public static ActivityInfo generateActivityInfo(VPackage.ActivityComponent a, int flags,
+                                                    PackageUserState state, int userId, ApplicationInfo applicationInfo) {
         if (a == null) return null;
         if (!checkUseInstalledOrHidden(state, flags)) {
             return null;
@@ -664,7 +748,8 @@ public class PackageParserEx {
                 && (a.metaData != null)) {
             ai.metaData = a.metaData;
         }
-        ai.applicationInfo = generateApplicationInfo(a.owner, flags, state, userId);
+        ai.applicationInfo = applicationInfo != null ? applicationInfo
+                : generateApplicationInfo(a.owner, flags, state, userId);
         if(ai.applicationInfo == null){
             return null;
         }
@@ -673,6 +758,14 @@ public class PackageParserEx {
 
     public static ServiceInfo generateServiceInfo(VPackage.ServiceComponent s, int flags,
                                                   PackageUserState state, int userId) {
+        return generateServiceInfo(s, flags, state, userId, null);
+    }
+
+    /**
+     * @param applicationInfo the application info to share with the result, generated if null
+     */
+    public static ServiceInfo generateServiceInfo(VPackage.ServiceComponent s, int flags,
+                                                  PackageUserState state, int userId, ApplicationInfo applicationInfo) {
         if (s == null) return null;
         if (!checkUseInstalledOrHidden(state, flags)) {
             return null;
@@ -682,7 +775,8 @@ public class PackageParserEx {
         if ((flags & PackageManager.GET_META_DATA) != 0 && s.metaData != null) {
             si.metaData = s.metaData;
         }
-        si.applicationInfo = generateApplicationInfo(s.owner, flags, state, userId);
+        si.applicationInfo = applicationInfo != null ? applicationInfo
+                : generateApplicationInfo(s.owner, flags, state, userId);
         if(si.applicationInfo == null){
             return null;
         }
@@ -691,6 +785,14 @@ public class PackageParserEx {
 
     public static ProviderInfo generateProviderInfo(VPackage.ProviderComponent p, int flags,
                                                     PackageUserState state, int userId) {
+        return generateProviderInfo(p, flags, state, userId, null);
+    }
+
+    /**
+     * @param applicationInfo the application info to share with the result, generated if null
+     */
+    public static ProviderInfo generateProviderInfo(VPackage.ProviderComponent p, int flags,
+                                                    PackageUserState state, int userId, ApplicationInfo applicationInfo) {
         if (p == null) return null;
         if (!checkUseInstalledOrHidden(state, flags)) {
             return null;
@@ -705,7 +807,8 @@ public class PackageParserEx {
         if ((flags & PackageManager.GET_URI_PERMISSION_PATTERNS) == 0) {
             pi.uriPermissionPatterns = null;
         }
-        pi.applicationInfo = generateApplicationInfo(p.owner, flags, state, userId);
+        pi.applicationInfo = applicationInfo != null ? applicationInfo
+                : generateApplicationInfo(p.owner, flags, state, userId);
         if(pi.applicationInfo == null){
             return null;
         }
@@ -27,6 +27,15 @@ import java.util.ArrayList;
 
 public class VPackage implements Parcelable {
 
+    /**
+     * Version of the parceled form, written first in the package cache.
+     */
+    public static final int CACHE_VERSION = 5;
+    /**
+     * First version holding the {@link ActivityComponent#windowStyle} of the activities.
+     */
+    static final int FIRST_WINDOW_STYLE_VERSION = 5;
+
     public static final Creator<VPackage> CREATOR = new Creator<VPackage>() {
         @Override
         public VPackage createFromParcel(Parcel source) {
@@ -68,6 +77,10 @@ public class VPackage implements Parcelable {
     }
 
     protected VPackage(Parcel in) {
+        this(in, CACHE_VERSION);
+    }
+
+    VPackage(Parcel in, int version) {
         int N = in.readInt();
         this.activities = new ArrayList<>(N);
         while (N-- > 0) {
@@ -117,6 +130,14 @@ public class VPackage implements Parcelable {
         this.configPreferences = in.createTypedArrayList(ConfigurationInfo.CREATOR);
         this.reqFeatures = in.createTypedArrayList(FeatureInfo.CREATOR);
         this.usesOptionalLibraries = in.createStringArrayList();
+        if (version >= FIRST_WINDOW_STYLE_VERSION) {
+            int[] windowStyles = in.createIntArray();
+            if (windowStyles != null && windowStyles.length == activities.size()) {
+                for (int i = 0; i < windowStyles.length; i++) {
+                    activities.get(i).windowStyle = windowStyles[i];
+                }
+            }
+        }
     }
 
     @Override
@@ -224,6 +245,11 @@ public class VPackage implements Parcelable {
         dest.writeTypedList(this.configPreferences);
         dest.writeTypedList(this.reqFeatures);
         dest.writeStringList(this.usesOptionalLibraries);
+        int[] windowStyles = new int[activities.size()];
+        for (int i = 0; i < windowStyles.length; i++) {
+            windowStyles[i] = activities.get(i).windowStyle;
+        }
+        dest.writeIntArray(windowStyles);
     }
 
     public static class ActivityIntentInfo extends IntentInfo {
@@ -355,7 +381,17 @@ public class VPackage implements Parcelable {
     }
 
     public static class ActivityComponent extends Component<ActivityIntentInfo> {
+        public static final int WINDOW_STYLE_UNKNOWN = -1;
+        public static final int WINDOW_IS_FLOATING = 1;
+        public static final int WINDOW_IS_TRANSLUCENT = 1 << 1;
+        public static final int WINDOW_SHOW_WALLPAPER = 1 << 2;
+
         public ActivityInfo info;
+        /**
+         * Window attributes of the theme, resolved when the package is parsed,
+         * see {@link PackageParserEx#resolveWindowStyles}.
+         */
+        public int windowStyle = WINDOW_STYLE_UNKNOWN;
 
         public ActivityComponent(PackageParser.Activity activity) {
             super(activity);
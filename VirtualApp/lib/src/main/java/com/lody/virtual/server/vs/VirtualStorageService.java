@@ -35,7 +35,7 @@ public class VirtualStorageService extends IVirtualStorageService.Stub {
         synchronized (mConfigs) {
             VSConfig config = getOrCreateVSConfigLocked(packageName, userId);
             config.vsPath = vsPath;
-            mLayer.save();
+            mLayer.scheduleSave();
         }
     }
 
@@ -70,7 +70,7 @@ public class VirtualStorageService extends IVirtualStorageService.Stub {
         synchronized (mConfigs) {
             VSConfig config = getOrCreateVSConfigLocked(packageName, userId);
             config.enable = enable;
-            mLayer.save();
+            mLayer.scheduleSave();
         }
 
     }